@@ -1,18 +1,35 @@
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Predicate;
 
 import frame.Frame;
+import frame.Label;
 import frame.mips.MipsFrame;
 import minijava.parser.*;
 import minijava.lexer.*;
 import minijava.node.*;
 
 import symbol.SymbolTable;
+import tree.BoundsChecks;
+import tree.Canon;
+import tree.EscapeAnalysis;
+import tree.InductionVariables;
+import tree.Inliner;
+import tree.LoopInvariants;
+import tree.SSA;
+import tree.Simplify;
+import tree.SparseConstants;
+import tree.SparseValueNumbering;
+import tree.TailCalls;
+import tree.ValueNumbering;
 import visitor.*;
+import visitor.jvm.JvmCompiler;
+import visitor.translate.DataFrag;
 import visitor.translate.Frag;
 import visitor.translate.ProcFrag;
 import visitor.translate.Translate;
@@ -21,10 +38,109 @@ public class MiniJava {
     public static void main(String[] args) {
         System.out.println("MiniJava v0.6");
 
+        long heapLimit = -1;
+        boolean collect = true;
+        boolean gcLog = false;
+        String engine = "interpreter";
+        boolean fuse = true;
+        boolean fusionLog = false;
+        String fusionProfile = null;
+        String profileOutput = null;
+        boolean tiered = false;
+        int invocationThreshold = -1;
+        int backedgeThreshold = -1;
+        boolean tierLog = false;
+        boolean canon = false;
+        boolean fold = false;
+        boolean gvn = false;
+        boolean licm = false;
+        boolean iv = false;
+        boolean bce = false;
+        boolean inline = false;
+        boolean escape = false;
+        boolean tailCalls = false;
+        boolean ssa = false;
+        boolean devirtualize = true;
+        boolean devirtLog = false;
+        String callProfile = null;
+        String callProfileOutput = null;
+        int argi = 0;
+        for(; argi < args.length && args[argi].startsWith("--"); argi++) {
+            String arg = args[argi];
+            if(arg.startsWith("--heap-limit=")) {
+                heapLimit = parseSize(arg.substring("--heap-limit=".length()));
+            } else if(arg.equals("--gc-log")) {
+                gcLog = true;
+            } else if(arg.equals("--no-gc")) {
+                collect = false;
+            } else if(arg.equals("--no-fusion")) {
+                fuse = false;
+            } else if(arg.equals("--fusion-log")) {
+                fusionLog = true;
+            } else if(arg.startsWith("--fusions=")) {
+                fusionProfile = arg.substring("--fusions=".length());
+            } else if(arg.startsWith("--profile-fusions=")) {
+                profileOutput = arg.substring("--profile-fusions=".length());
+            } else if(arg.equals("--canon")) {
+                canon = true;
+            } else if(arg.equals("--fold")) {
+                fold = true;
+            } else if(arg.equals("--gvn")) {
+                // value numbering works on canonical trees
+                gvn = true;
+                canon = true;
+            } else if(arg.equals("--licm")) {
+                // and so does loop detection
+                licm = true;
+                canon = true;
+            } else if(arg.equals("--iv")) {
+                iv = true;
+                canon = true;
+            } else if(arg.equals("--bce")) {
+                bce = true;
+                canon = true;
+            } else if(arg.equals("--inline")) {
+                inline = true;
+                canon = true;
+            } else if(arg.equals("--tail-calls")) {
+                tailCalls = true;
+                canon = true;
+            } else if(arg.equals("--escape")) {
+                escape = true;
+                canon = true;
+            } else if(arg.equals("--ssa")) {
+                ssa = true;
+                canon = true;
+            } else if(arg.startsWith("--calls=")) {
+                callProfile = arg.substring("--calls=".length());
+                inline = true;
+                canon = true;
+            } else if(arg.startsWith("--profile-calls=")) {
+                callProfileOutput = arg.substring("--profile-calls=".length());
+            } else if(arg.equals("--no-devirt")) {
+                devirtualize = false;
+            } else if(arg.equals("--devirt-log")) {
+                devirtLog = true;
+            } else if(arg.equals("--tiered")) {
+                tiered = true;
+            } else if(arg.startsWith("--invocation-threshold=")) {
+                invocationThreshold = parseCount(arg.substring("--invocation-threshold=".length()));
+            } else if(arg.startsWith("--backedge-threshold=")) {
+                backedgeThreshold = parseCount(arg.substring("--backedge-threshold=".length()));
+            } else if(arg.equals("--tier-log")) {
+                tierLog = true;
+            } else if(arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else {
+                System.out.println("Error: unknown option " + arg);
+                System.exit(1);
+            }
+        }
+
         try {
             Input input;
-            if(args.length > 0)
-                input = new Input(args[0]);
+            if(argi < args.length)
+                input = new Input(args[argi]);
             else
                 input = new Input("stdin", System.in);
 
@@ -60,29 +176,211 @@ public class MiniJava {
             Translate translate = new Translate(globalFrame, symbolTable,
                                                 typeCheckAnalysis.getTypes());
             translate.setInput(input);
+            translate.setDevirtualize(devirtualize);
             ast.apply(translate);
+            if (devirtualize && devirtLog)
+                System.out.println("CHA: " + translate.directCalls + " calls made directly, "
+                                   + translate.virtualCalls + " through method tables");
             
             PrintWriter writer = new PrintWriter(System.out);
             tree.Print printer = new tree.Print(writer);//, globalFrame);
             
-            List<Frag> frags = translate.getResults();
+            List<Frag> frags = new ArrayList<>(translate.getResults());
+            Map<Frame, List<tree.Stm>> bodies = new LinkedHashMap<>();
+            TailCalls tail = new TailCalls();
+            int eliminated = 0, accumulated = 0;
+            for(Frag frag: frags) {
+                 if(frag instanceof ProcFrag) {
+                     ProcFrag procFrag = (ProcFrag)frag;
+                     if(fold)
+                         procFrag.body = Simplify.simplify(procFrag.body);
+                     if(canon)
+                         bodies.put(procFrag.frame, Canon.canonicalize(procFrag.body));
+                     if(tailCalls) {
+                         // before inlining, which leaves recursive calls alone
+                         bodies.put(procFrag.frame, tail.apply(procFrag.frame, bodies.get(procFrag.frame)));
+                         eliminated += tail.eliminated;
+                         accumulated += tail.accumulated;
+                     }
+                 }
+            }
+            if(tailCalls)
+                System.out.println("TAIL: " + eliminated + " calls made jumps, " + accumulated
+                                   + " through accumulators");
+            if(inline) {
+                // across procedures, so before each one is optimized alone
+                Inliner inliner = new Inliner();
+                for(Frag frag: frags) {
+                    if(frag instanceof DataFrag && ((DataFrag) frag).words != null) {
+                        for(Label word: ((DataFrag) frag).words)
+                            inliner.keep(word.toString());
+                    }
+                }
+                if(callProfile != null) {
+                    try(Reader reader = new FileReader(callProfile)) {
+                        inliner.setProfile(Inliner.readProfile(reader));
+                    }
+                }
+                final Map<Frame, List<tree.Stm>> inlined = inliner.apply(bodies);
+                frags.removeIf(frag -> frag instanceof ProcFrag
+                               && !inlined.containsKey(((ProcFrag) frag).frame));
+                bodies = inlined;
+                System.out.println("INLINE: " + inliner.sites + " calls inlined, " + inliner.nodes
+                                   + " nodes added, " + inliner.dropped + " procedures dropped");
+            }
             for(Frag frag: frags) {
                  if(frag instanceof ProcFrag) {
                      ProcFrag procFrag = (ProcFrag)frag;
                      System.out.println(procFrag.frame.label.name);
-                     printer.apply(procFrag.body, 0);
-                     writer.println();
-                     writer.flush();
+                     if(canon) {
+                         List<tree.Stm> stms = bodies.get(procFrag.frame);
+                         if(escape) {
+                             // after inlining, which takes objects out of the calls
+                             EscapeAnalysis analysis = new EscapeAnalysis();
+                             stms = analysis.apply(procFrag.frame, stms);
+                             System.out.println("ESCAPE: " + analysis.replaced + " objects replaced by "
+                                                + analysis.fields + " temps");
+                         }
+                         if(bce) {
+                             // before anything else reshapes the checks
+                             BoundsChecks checks = new BoundsChecks();
+                             stms = checks.apply(stms);
+                             System.out.println("BCE: " + checks.removed + " checks removed, " + checks.hoisted
+                                                + " hoisted out of " + checks.loops + " loops");
+                         }
+                         if(ssa) {
+                             SSA form = new SSA(procFrag.frame, stms);
+                             SparseConstants constants = new SparseConstants();
+                             constants.apply(form);
+                             SparseValueNumbering numbering = new SparseValueNumbering();
+                             numbering.apply(form);
+                             stms = form.destruct();
+                             System.out.println("SSA: " + form.placed + " phis placed, " + form.coalesced
+                                                + " copies coalesced, " + form.copies + " left");
+                             System.out.println("SCCP: " + constants.constants + " constants propagated, "
+                                                + constants.folded + " branches folded, "
+                                                + constants.unreachable + " blocks removed");
+                             System.out.println("SVN: " + numbering.expressions + " redundant expressions, "
+                                                + numbering.copies + " copies propagated");
+                         }
+                         if(licm) {
+                             LoopInvariants invariants = new LoopInvariants();
+                             stms = invariants.apply(stms);
+                             System.out.println("LICM: " + invariants.hoisted + " expressions hoisted out of "
+                                                + invariants.loops + " loops");
+                         }
+                         if(iv) {
+                             InductionVariables induction = new InductionVariables();
+                             stms = induction.apply(stms);
+                             System.out.println("IV: " + induction.reduced + " expressions strength-reduced, "
+                                                + induction.deleted + " induction variables deleted");
+                         }
+                         if(gvn) {
+                             ValueNumbering numbering = new ValueNumbering();
+                             stms = numbering.apply(stms);
+                             System.out.println("GVN: " + numbering.nodes + " nodes eliminated in "
+                                                + numbering.expressions + " redundant expressions");
+                         }
+                         printer.apply(stms);
+                         procFrag.body = Canon.seq(stms);
+                     } else {
+                         printer.apply(procFrag.body, 0);
+                         writer.println();
+                         writer.flush();
+                     }
                  }
             }
 
-            if(true) {
+            if(engine.equals("closure")) {
+                ClosureCompiler compiler = new ClosureCompiler(frags.iterator());
+                if(heapLimit > 0)
+                    compiler.setHeapLimit(heapLimit);
+                compiler.start();
+            } else if(engine.equals("register")) {
+                RegisterVM vm = new RegisterVM(frags.iterator());
+                if(heapLimit > 0)
+                    vm.setHeapLimit(heapLimit);
+                vm.start();
+            } else if(engine.equals("jvm")) {
+                JvmCompiler compiler = new JvmCompiler(frags.iterator());
+                if(heapLimit > 0)
+                    compiler.setHeapLimit(heapLimit);
+                compiler.start();
+            } else if(engine.equals("interpreter")) {
                 InterpreterVisitor interpreter = new InterpreterVisitor(frags.iterator());
+                if(heapLimit > 0)
+                    interpreter.setHeapLimit(heapLimit);
+                interpreter.setCollect(collect);
+                if(gcLog)
+                    interpreter.setGcLog(System.err);
+                interpreter.setFuse(fuse);
+                if(fusionProfile != null) {
+                    try(Reader reader = new FileReader(fusionProfile)) {
+                        interpreter.readFusionProfile(reader);
+                    }
+                }
+                if(profileOutput != null || callProfileOutput != null)
+                    interpreter.setProfiling(true);
+                if(fusionLog)
+                    interpreter.setFusionLog(System.err);
+                interpreter.setTiered(tiered);
+                if(invocationThreshold > 0)
+                    interpreter.setInvocationThreshold(invocationThreshold);
+                if(backedgeThreshold > 0)
+                    interpreter.setBackedgeThreshold(backedgeThreshold);
+                if(tierLog)
+                    interpreter.setTierLog(System.err);
                 interpreter.start();
+                if(profileOutput != null) {
+                    try(Writer out = new FileWriter(profileOutput)) {
+                        interpreter.writeFusionProfile(out);
+                    }
+                }
+                if(callProfileOutput != null) {
+                    try(Writer out = new FileWriter(callProfileOutput)) {
+                        interpreter.writeCallProfile(out);
+                    }
+                }
+            } else {
+                System.out.println("Error: unknown engine " + engine);
+                System.exit(1);
             }
-        } catch(LexerException|ParserException|IOException|CompilationException e) {
+        } catch(LexerException|ParserException|IOException|CompilationException|
+                InterpreterException e) {
             System.out.println("Error: " + e.getMessage());
             System.exit(1);
         }
     }
+
+    // sizes are in bytes, with an optional k, m or g suffix
+    private static long parseSize(String size) {
+        long unit = 1;
+        switch(Character.toLowerCase(size.charAt(size.length() - 1))) {
+            case 'k': unit = 1L << 10; break;
+            case 'm': unit = 1L << 20; break;
+            case 'g': unit = 1L << 30; break;
+        }
+        if(unit > 1)
+            size = size.substring(0, size.length() - 1);
+
+        try {
+            return Long.parseLong(size) * unit;
+        } catch(NumberFormatException e) {
+            System.out.println("Error: invalid size " + size);
+            System.exit(1);
+            return 0;
+        }
+    }
+
+    private static int parseCount(String count) {
+        try {
+            int value = Integer.parseInt(count);
+            if(value > 0)
+                return value;
+        } catch(NumberFormatException e) {
+        }
+        System.out.println("Error: invalid count " + count);
+        System.exit(1);
+        return 0;
+    }
 }
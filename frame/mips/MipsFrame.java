@@ -188,6 +188,16 @@ public class MipsFrame extends Frame {
         "         j $ra            \n" +
         "                          \n" +
         "         .text            \n" +
+        "         .globl _newarray \n" +
+        "_newarray:                \n" +
+        "         sll $a1, $a0, 2  \n" +
+        "         addiu $a0, $a1, 4\n" +
+        "         li $v0, 9        \n" +
+        "         syscall          \n" +
+        "         sw $a1, 0($v0)   \n" +
+        "         j $ra            \n" +
+        "                          \n" +
+        "         .text            \n" +
         "         .globl _printint \n" +
         "_printint:                \n" +
         "         li $v0, 1        \n" +
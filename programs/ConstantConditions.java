@@ -0,0 +1,52 @@
+// Boolean constants joined by && and !: as values they are passed to a
+// method and stored, as conditions they pick a branch. Once the constant
+// operand is folded, the code it would have skipped is left behind a jump
+
+class ConstantConditions{
+    public static void main(String[] a){
+  System.out.println(new Conditions().Start());
+    }
+}
+
+class Conditions {
+
+    public int Count(boolean b){
+  int r ;
+  if (b)
+      r = 1 ;
+  else
+      r = 0 ;
+  return r ;
+    }
+
+    public int Start(){
+  int c ;
+  boolean t ;
+  boolean f ;
+  c = this.Count(true && !false);
+  c = c + (this.Count(false && true));
+  c = c + (this.Count(!(true && false)));
+  t = true && !false ;
+  f = !true && t ;
+  if (t && !f)
+      c = c + 10 ;
+  else
+      c = c + 100 ;
+  if (false && t)
+      c = c + 1000 ;
+  else
+      c = c + 20 ;
+  if (!(true && false))
+      c = c + 40 ;
+  else
+      c = c + 2000 ;
+  t = true ;
+  while (t && !false) {
+      c = c + 1 ;
+      t = false ;
+  }
+  System.out.println(c);
+  return (this.Count(!(!true))) + (this.Count(false && !true)) ;
+    }
+
+}
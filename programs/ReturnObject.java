@@ -0,0 +1,78 @@
+// Objects built by one method and returned to its caller: once the
+// initializer is inlined into Make, the new object is only stored to
+// and then returned, which is an escape all the same. Make is called
+// through the method table, so it stays a procedure of its own
+
+class ReturnObject{
+    public static void main(String[] a){
+  System.out.println(new Runner().Start());
+    }
+}
+
+class Point {
+    int x ;
+    int y ;
+
+    public boolean Init(int v_x, int v_y){
+  x = v_x ;
+  y = v_y ;
+  return true ;
+    }
+
+    public int Sum(){
+  return x + y ;
+    }
+}
+
+class Maker {
+
+    public Point Make(int v_x, int v_y){
+  Point p ;
+  boolean aux ;
+  p = new Point();
+  aux = p.Init(v_x, v_y);
+  return p ;
+    }
+
+}
+
+class Shifter extends Maker {
+
+    public Point Make(int v_x, int v_y){
+  Point p ;
+  boolean aux ;
+  p = new Point();
+  aux = p.Init(v_x + 1, v_y);
+  return p ;
+    }
+
+}
+
+class Runner {
+
+    public int Start(){
+  Maker m ;
+  Point p ;
+  boolean even ;
+  int i ;
+  int total ;
+  total = 0 ;
+  even = true ;
+  i = 0 ;
+  while (i < 10) {
+      if (even)
+          m = new Maker();
+      else
+          m = new Shifter();
+      p = m.Make(i, 1);
+      total = total + (p.Sum());
+      even = !even ;
+      i = i + 1 ;
+  }
+  System.out.println(total);
+  m = new Shifter();
+  p = m.Make(3, 4);
+  return p.Sum() ;
+    }
+
+}
@@ -36,6 +36,10 @@ public class SymbolTable {
         return classes.containsKey(Symbol.cleanId(id));
     }
 
+    /**
+     * Whether a value of type t2 may be used where t1 is expected: the
+     * same type, or for objects t1 or one of its subclasses.
+     */
     public boolean compareTypes(PType t1, PType t2) {
         if (t1 == null || t2 == null) return false;
 
@@ -49,7 +53,7 @@ public class SymbolTable {
             if (c1 == null || c2 == null)
                 return false;
 
-            return c1.isCompatibleWith(c2);
+            return c2.isCompatibleWith(c1);
         }
 
         return t1.getClass().equals(t2.getClass());
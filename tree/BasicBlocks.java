@@ -0,0 +1,45 @@
+package tree;
+
+import frame.Label;
+import tree.node.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a linearized body into basic blocks: each starts with a LABEL,
+ * ends with a JUMP or CJUMP, and has no other label or jump in between.
+ * Blocks that fell into the next one get an explicit JUMP to it, and the
+ * last one jumps to {@link #done}, which marks the end of the body.
+ */
+public class BasicBlocks {
+    public final List<List<Stm>> blocks = new ArrayList<>();
+    public final Label done = new Label();
+
+    public BasicBlocks(List<Stm> stms) {
+        List<Stm> block = null;
+        for (Stm stm : stms) {
+            if (stm instanceof LABEL) {
+                if (block != null)
+                    block.add(new JUMP(((LABEL) stm).label));
+                block = new ArrayList<>();
+                blocks.add(block);
+            } else if (block == null) {
+                // dead statements after a jump still get a block, and a
+                // label to name it by
+                block = new ArrayList<>();
+                blocks.add(block);
+                block.add(new LABEL(new Label()));
+            }
+            block.add(stm);
+            if (stm instanceof JUMP || stm instanceof CJUMP)
+                block = null;
+        }
+        if (block != null)
+            block.add(new JUMP(done));
+    }
+
+    static String label(List<Stm> block) {
+        return ((LABEL) block.get(0)).label.toString();
+    }
+}
@@ -0,0 +1,746 @@
+package tree;
+
+import frame.Label;
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Array bounds check elimination over a canonical body (see {@link Canon}).
+ * The checks are those Translate emits: an unsigned compare of an index
+ * against the element count of an array, leaving for _error when out of
+ * range.
+ *
+ * A check is dropped when what holds where it runs proves 0 <= index <
+ * length. That comes from the statements and branches dominating it whose
+ * temps nothing assigns on the way there: copies, constants, the size an
+ * array is allocated with and the taken edges of conditional jumps, each a
+ * relation between temps, constants and array lengths. An index is also
+ * known not to be negative when no definition of it can make it so, as a
+ * counter starting at 0 and stepped by 1 below some bound.
+ *
+ * A check left in an innermost loop is hoisted when its array is
+ * invariant and its index either is too or counts up by 1 below an
+ * invariant bound: the loop is copied without it, and a preheader runs the
+ * copy when one combined test of the index on entry and the bound against
+ * the length passes, the loop as it was otherwise.
+ */
+public class BoundsChecks {
+    /** Checks proven unneeded by the last {@link #apply}. */
+    public int removed;
+    /** Checks hoisted out of loops by the last {@link #apply}. */
+    public int hoisted;
+    /** Loops copied without their hoisted checks by the last {@link #apply}. */
+    public int loops;
+
+    private ControlFlow cfg;
+    private List<Stm> stms;
+    private List<Set<Temp>> assigns;
+    private Map<Long, BitSet> between;
+
+    // the in range edge of a check of index against the length of array
+    private static class Check {
+        final int at;
+        final Exp index;
+        final Temp array;
+        final Label ok;
+
+        Check(int at, Exp index, Temp array, Label ok) {
+            this.at = at;
+            this.index = index;
+            this.array = array;
+            this.ok = ok;
+        }
+    }
+
+    /**
+     * left < right, or left <= right, between symbols: "c:" and a value for
+     * a constant, "t:" and a number for a temp and "#" and a number for the
+     * length of the array in that temp.
+     */
+    private static class Fact {
+        final String left, right;
+        final boolean strict;
+
+        Fact(String left, String right, boolean strict) {
+            this.left = left;
+            this.right = right;
+            this.strict = strict;
+        }
+    }
+
+    /**
+     * Returns the body with its unneeded bounds checks removed and those of
+     * its loops hoisted where they can be; the body given is not changed.
+     */
+    public List<Stm> apply(List<Stm> body) {
+        removed = 0;
+        hoisted = 0;
+        loops = 0;
+        List<Stm> stms = eliminate(new ArrayList<>(body));
+
+        Set<String> done = new HashSet<>();
+        while (true) {
+            analyze(stms);
+            Loops nest = new Loops(cfg);
+            Loops.Loop next = null;
+            for (Loops.Loop l : nest.loops) {
+                if (l.children.isEmpty() && !done.contains(name(l.header)))
+                    next = l;
+            }
+            if (next == null)
+                break;
+            done.add(name(next.header));
+            List<Stm> versioned = version(next, done);
+            if (versioned != null)
+                stms = versioned;
+        }
+        return removed + hoisted > 0 ? reachable(stms) : stms;
+    }
+
+    private void analyze(List<Stm> stms) {
+        this.stms = stms;
+        cfg = new ControlFlow(stms);
+        assigns = new ArrayList<>();
+        for (int b = 0; b < cfg.size(); b++) {
+            Set<Temp> assigned = new HashSet<>();
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++)
+                assigned(stms.get(i), assigned);
+            assigns.add(assigned);
+        }
+        between = new HashMap<>();
+    }
+
+    private String name(int block) {
+        return ((LABEL) stms.get(cfg.start[block])).label.toString();
+    }
+
+    // the checks proven unneeded, each replaced by a jump to its in range
+    // edge
+    private List<Stm> eliminate(List<Stm> body) {
+        analyze(body);
+        Set<Temp> nonNegative = nonNegative();
+        Map<Integer, Label> unneeded = new HashMap<>();
+        for (int b = 0; b < cfg.size(); b++) {
+            Check check = check(b);
+            if (check == null)
+                continue;
+            List<Fact> facts = factsAt(b, check.at);
+            if (atLeastZero(facts, check.index, nonNegative)
+                    && compare(facts, symbol(check.index, b, check.at), length(check.array)) == 2)
+                unneeded.put(check.at, check.ok);
+        }
+        if (unneeded.isEmpty())
+            return stms;
+        removed += unneeded.size();
+
+        Set<Integer> dropped = dropped(unneeded);
+        List<Stm> result = new ArrayList<>(stms.size());
+        for (int i = 0; i < stms.size(); i++) {
+            if (dropped.contains(i))
+                continue;
+            Label ok = unneeded.get(i);
+            result.add(ok != null ? Trees.tagged(new JUMP(ok), stms.get(i)) : stms.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * The statements going with checks that are removed: a check falling
+     * into its in range edge, and the length only the check reads.
+     */
+    private Set<Integer> dropped(Map<Integer, Label> checks) {
+        Map<Temp, Integer> reads = new HashMap<>();
+        for (Stm stm : stms)
+            reads(stm, reads);
+        Set<Integer> dropped = new HashSet<>();
+        for (Map.Entry<Integer, Label> e : checks.entrySet()) {
+            int at = e.getKey();
+            Stm next = at + 1 < stms.size() ? stms.get(at + 1) : null;
+            if (next instanceof LABEL && ((LABEL) next).label.toString().equals(e.getValue().toString()))
+                dropped.add(at);
+            CJUMP cjump = (CJUMP) stms.get(at);
+            for (Exp operand : Arrays.asList(cjump.left, cjump.right)) {
+                if (operand instanceof TEMP && reads.get(((TEMP) operand).temp) == 1
+                        && at > 0 && definesLength(stms.get(at - 1), ((TEMP) operand).temp))
+                    dropped.add(at - 1);
+            }
+        }
+        return dropped;
+    }
+
+    private static boolean definesLength(Stm stm, Temp t) {
+        return stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP
+            && ((TEMP) ((MOVE) stm).dst).temp.equals(t) && lengthOf(((MOVE) stm).src) != null;
+    }
+
+    /**
+     * The check a block ends in, or null. The block it leaves for when out
+     * of range calls _error first thing.
+     */
+    private Check check(int b) {
+        if (!(cfg.last(b) instanceof CJUMP))
+            return null;
+        CJUMP cjump = (CJUMP) cfg.last(b);
+        boolean errorTrue = isError(cfg.blockOf(cjump.iftrue));
+        if (errorTrue == isError(cfg.blockOf(cjump.iffalse)))
+            return null;
+        int at = cfg.start[b + 1] - 1;
+        // the relation holding in range
+        int relop = errorTrue ? CJUMP.notRel(cjump.relop) : cjump.relop;
+        Exp index, length;
+        if (relop == CJUMP.ULT) {
+            index = cjump.left;
+            length = cjump.right;
+        } else if (relop == CJUMP.UGT) {
+            index = cjump.right;
+            length = cjump.left;
+        } else {
+            return null;
+        }
+        if (!(index instanceof TEMP || index instanceof CONST))
+            return null;
+        String symbol = symbol(length, b, at);
+        if (symbol == null || !symbol.startsWith("#"))
+            return null;
+        return new Check(at, index, temp(symbol), errorTrue ? cjump.iffalse : cjump.iftrue);
+    }
+
+    private boolean isError(int b) {
+        if (b < 0)
+            return false;
+        for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+            Stm stm = stms.get(i);
+            if (stm instanceof LABEL)
+                continue;
+            Exp exp = stm instanceof MOVE ? ((MOVE) stm).src
+                : stm instanceof EXPR ? ((EXPR) stm).exp : null;
+            return exp instanceof CALL && ((CALL) exp).func instanceof NAME
+                && ((NAME) ((CALL) exp).func).label.toString().equals("_error");
+        }
+        return false;
+    }
+
+    /**
+     * The facts holding before statement at of block b: those of the
+     * statements before it in b and in the blocks dominating b, and of the
+     * edges into those blocks, for which no temp they name is assigned on
+     * the way to it.
+     */
+    private List<Fact> factsAt(int b, int at) {
+        List<Fact> facts = new ArrayList<>();
+        Set<Temp> before = new HashSet<>();
+        for (int i = cfg.start[b]; i < at; i++)
+            assigned(stms.get(i), before);
+        for (int d = b; d >= 0; d = cfg.idom[d]) {
+            Set<Temp> assigned = new HashSet<>();
+            if (d != b) {
+                assigned.addAll(before);
+                BitSet on = between(d, b);
+                for (int x = on.nextSetBit(0); x >= 0; x = on.nextSetBit(x + 1))
+                    assigned.addAll(assigns.get(x));
+            }
+            // later statements first, so what they assign kills the facts
+            // of earlier ones
+            for (int i = (d == b ? at : cfg.start[d + 1]) - 1; i >= cfg.start[d]; i--) {
+                for (Fact fact : factsOf(stms.get(i), d, i)) {
+                    if (!killed(fact, assigned))
+                        facts.add(fact);
+                }
+                assigned(stms.get(i), assigned);
+            }
+            if (d != 0 && cfg.preds[d].length == 1 && cfg.last(cfg.preds[d][0]) instanceof CJUMP) {
+                int p = cfg.preds[d][0];
+                CJUMP cjump = (CJUMP) cfg.last(p);
+                boolean taken = cfg.blockOf(cjump.iftrue) == d;
+                if (taken != (cfg.blockOf(cjump.iffalse) == d)) {
+                    for (Fact fact : factsOf(cjump, taken, p, cfg.start[p + 1] - 1)) {
+                        if (!killed(fact, assigned))
+                            facts.add(fact);
+                    }
+                }
+            }
+        }
+        return facts;
+    }
+
+    private BitSet between(int a, int b) {
+        return between.computeIfAbsent((long) a * cfg.size() + b, k -> cfg.between(a, b));
+    }
+
+    private static boolean killed(Fact fact, Set<Temp> assigned) {
+        Temp l = temp(fact.left), r = temp(fact.right);
+        return l != null && assigned.contains(l) || r != null && assigned.contains(r);
+    }
+
+    // what a statement makes hold after it
+    private List<Fact> factsOf(Stm stm, int b, int at) {
+        List<Fact> facts = new ArrayList<>();
+        if (!(stm instanceof MOVE))
+            return facts;
+        MOVE move = (MOVE) stm;
+        if (move.dst instanceof TEMP) {
+            Temp t = ((TEMP) move.dst).temp;
+            if (reads(move.src, t))
+                return facts;
+            String src = symbol(move.src, b, at);
+            if (src != null)
+                equal(facts, symbol(t), src);
+            if (move.src instanceof TEMP)
+                equal(facts, length(t), length(((TEMP) move.src).temp));
+            // a new array, whose length is the count it is allocated with
+            Exp count = newArray(move.src);
+            String symbol = count == null ? null : symbol(count, b, at);
+            if (symbol != null)
+                equal(facts, length(t), symbol);
+        }
+        return facts;
+    }
+
+    // what holds on one edge out of a conditional jump
+    private List<Fact> factsOf(CJUMP cjump, boolean taken, int b, int at) {
+        List<Fact> facts = new ArrayList<>();
+        String l = symbol(cjump.left, b, at), r = symbol(cjump.right, b, at);
+        if (l == null || r == null)
+            return facts;
+        switch (taken ? cjump.relop : CJUMP.notRel(cjump.relop)) {
+            case CJUMP.EQ:
+                equal(facts, l, r);
+                break;
+            case CJUMP.LT:
+                facts.add(new Fact(l, r, true));
+                break;
+            case CJUMP.LE:
+                facts.add(new Fact(l, r, false));
+                break;
+            case CJUMP.GT:
+                facts.add(new Fact(r, l, true));
+                break;
+            case CJUMP.GE:
+                facts.add(new Fact(r, l, false));
+                break;
+            case CJUMP.ULT:
+                unsigned(facts, l, r, true);
+                break;
+            case CJUMP.ULE:
+                unsigned(facts, l, r, false);
+                break;
+            case CJUMP.UGT:
+                unsigned(facts, r, l, true);
+                break;
+            case CJUMP.UGE:
+                unsigned(facts, r, l, false);
+                break;
+        }
+        return facts;
+    }
+
+    private static void equal(List<Fact> facts, String a, String b) {
+        facts.add(new Fact(a, b, false));
+        facts.add(new Fact(b, a, false));
+    }
+
+    // below a bound that is not negative, unsigned is as signed
+    private static void unsigned(List<Fact> facts, String l, String r, boolean strict) {
+        if (r.startsWith("#") || r.startsWith("c:") && value(r) >= 0) {
+            facts.add(new Fact(l, r, strict));
+            facts.add(new Fact("c:0", l, false));
+        }
+    }
+
+    /**
+     * The symbol of a constant, temp or length read by statement at of
+     * block b, or null. A temp is the length it was last set to in b,
+     * when that array is not assigned since.
+     */
+    private String symbol(Exp exp, int b, int at) {
+        if (exp instanceof CONST)
+            return "c:" + ((CONST) exp).value;
+        Temp array = lengthOf(exp);
+        if (array != null)
+            return length(array);
+        if (!(exp instanceof TEMP))
+            return null;
+        Temp t = ((TEMP) exp).temp;
+        Set<Temp> assigned = new HashSet<>();
+        for (int i = at - 1; i >= cfg.start[b]; i--) {
+            Stm stm = stms.get(i);
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP
+                    && ((TEMP) ((MOVE) stm).dst).temp.equals(t)) {
+                array = lengthOf(((MOVE) stm).src);
+                if (array != null && !assigned.contains(array))
+                    return length(array);
+                break;
+            }
+            assigned(stm, assigned);
+        }
+        return symbol(t);
+    }
+
+    private static String symbol(Temp t) {
+        return "t:" + t.num;
+    }
+
+    private static String length(Temp array) {
+        return "#" + array.num;
+    }
+
+    // the temp a symbol names, or null for a constant
+    private static Temp temp(String symbol) {
+        if (symbol.startsWith("c:"))
+            return null;
+        return new Temp(Integer.parseInt(symbol.substring(symbol.startsWith("#") ? 1 : 2)));
+    }
+
+    private static int value(String constant) {
+        return Integer.parseInt(constant.substring(2));
+    }
+
+    // the array whose element count an expression reads, or null
+    private static Temp lengthOf(Exp exp) {
+        if (exp instanceof BINOP && ((BINOP) exp).binop == BINOP.RSHIFT
+                && ((BINOP) exp).right instanceof CONST && ((CONST) ((BINOP) exp).right).value == 2
+                && ((BINOP) exp).left instanceof MEM && ((MEM) ((BINOP) exp).left).exp instanceof TEMP)
+            return ((TEMP) ((MEM) ((BINOP) exp).left).exp).temp;
+        return null;
+    }
+
+    // n, when an expression is a call of _newarray(n)
+    private static Exp newArray(Exp exp) {
+        if (!(exp instanceof CALL) || !(((CALL) exp).func instanceof NAME)
+                || ((CALL) exp).args.size() != 1)
+            return null;
+        return ((NAME) ((CALL) exp).func).label.toString().equals("_newarray")
+            ? ((CALL) exp).args.get(0) : null;
+    }
+
+    /**
+     * 2 when the facts prove from < to, 1 when they prove from <= to, and
+     * 0 otherwise.
+     */
+    private static int compare(List<Fact> facts, String from, String to) {
+        if (from == null || to == null)
+            return 0;
+        return bounds(facts, from).getOrDefault(to, 0);
+    }
+
+    // every symbol the facts prove from below, 2 for strictly and 1 for not
+    private static Map<String, Integer> bounds(List<Fact> facts, String from) {
+        Map<String, List<Fact>> out = new HashMap<>();
+        Set<String> constants = new LinkedHashSet<>();
+        for (Fact fact : facts) {
+            out.computeIfAbsent(fact.left, k -> new ArrayList<>()).add(fact);
+            for (String s : Arrays.asList(fact.left, fact.right)) {
+                if (s.startsWith("c:"))
+                    constants.add(s);
+            }
+        }
+
+        Map<String, Integer> best = new LinkedHashMap<>();
+        ArrayDeque<String> work = new ArrayDeque<>();
+        best.put(from, 1);
+        work.add(from);
+        while (!work.isEmpty()) {
+            String x = work.poll();
+            int strict = best.get(x);
+            List<String> to = new ArrayList<>();
+            List<Integer> how = new ArrayList<>();
+            for (Fact fact : out.getOrDefault(x, Collections.<Fact>emptyList())) {
+                to.add(fact.right);
+                how.add(fact.strict ? 2 : strict);
+            }
+            // and constants are ordered by their values
+            if (x.startsWith("c:")) {
+                for (String c : constants) {
+                    if (value(c) >= value(x)) {
+                        to.add(c);
+                        how.add(value(c) > value(x) ? 2 : strict);
+                    }
+                }
+            }
+            for (int k = 0; k < to.size(); k++) {
+                if (how.get(k) > best.getOrDefault(to.get(k), 0)) {
+                    best.put(to.get(k), how.get(k));
+                    work.add(to.get(k));
+                }
+            }
+        }
+        return best;
+    }
+
+    private boolean atLeastZero(List<Fact> facts, Exp index, Set<Temp> nonNegative) {
+        if (index instanceof CONST)
+            return ((CONST) index).value >= 0;
+        Temp t = ((TEMP) index).temp;
+        return nonNegative.contains(t) || compare(facts, "c:0", symbol(t)) > 0;
+    }
+
+    /**
+     * The temps never negative: every path assigns them before reading
+     * them, and each of their definitions gives a value that is not
+     * negative when the temps it reads are not. The largest such set, so a
+     * counter may count itself up.
+     */
+    private Set<Temp> nonNegative() {
+        Map<Temp, List<Integer>> definitions = new HashMap<>();
+        for (int i = 0; i < stms.size(); i++) {
+            Stm stm = stms.get(i);
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                definitions.computeIfAbsent(((TEMP) ((MOVE) stm).dst).temp, k -> new ArrayList<>()).add(i);
+        }
+        int[] blockAt = new int[stms.size()];
+        for (int b = 0; b < cfg.size(); b++)
+            Arrays.fill(blockAt, cfg.start[b], cfg.start[b + 1], b);
+
+        Set<Temp> result = new HashSet<>(definitions.keySet());
+        result.removeAll(cfg.exposed());
+        Map<Integer, List<Fact>> facts = new HashMap<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Iterator<Temp> it = result.iterator(); it.hasNext(); ) {
+                for (int i : definitions.get(it.next())) {
+                    List<Fact> at = facts.computeIfAbsent(i, k -> factsAt(blockAt[k], k));
+                    if (!nonNegative(((MOVE) stms.get(i)).src, at, result)) {
+                        it.remove();
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean nonNegative(Exp exp, List<Fact> facts, Set<Temp> temps) {
+        if (exp instanceof CONST)
+            return ((CONST) exp).value >= 0;
+        if (exp instanceof TEMP)
+            return temps.contains(((TEMP) exp).temp);
+        if (lengthOf(exp) != null)
+            return true;
+        if (!(exp instanceof BINOP))
+            return false;
+        BINOP b = (BINOP) exp;
+        switch (b.binop) {
+            case BINOP.RSHIFT:
+                return b.right instanceof CONST && (((CONST) b.right).value & 31) != 0;
+            case BINOP.AND:
+                return nonNegative(b.left, facts, temps) || nonNegative(b.right, facts, temps);
+            case BINOP.PLUS: {
+                Exp t = b.left instanceof CONST ? b.right : b.left;
+                Exp c = b.left instanceof CONST ? b.left : b.right;
+                if (!(t instanceof TEMP) || !(c instanceof CONST) || !temps.contains(((TEMP) t).temp))
+                    return false;
+                int value = ((CONST) c).value;
+                String symbol = symbol(((TEMP) t).temp);
+                // one more than what is below something does not wrap
+                if (value == 0)
+                    return true;
+                if (value == 1)
+                    return bounds(facts, symbol).containsValue(2);
+                return value < 0 && compare(facts, "c:" + -value, symbol) > 0;
+            }
+            case BINOP.MINUS:
+                if (!(b.left instanceof TEMP) || !(b.right instanceof CONST)
+                        || !temps.contains(((TEMP) b.left).temp) || ((CONST) b.right).value < 0)
+                    return false;
+                return compare(facts, "c:" + ((CONST) b.right).value, symbol(((TEMP) b.left).temp)) > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Copies an innermost loop without the checks that can be hoisted out
+     * of it, behind a preheader testing for all of them at once; returns
+     * null when there are none.
+     */
+    private List<Stm> version(Loops.Loop loop, Set<String> done) {
+        Set<Temp> defined = new HashSet<>();
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1))
+            defined.addAll(assigns.get(b));
+        Set<Temp> nonNegative = null;
+
+        Label slow = new Label();
+        Map<String, Stm> guards = new LinkedHashMap<>();
+        Map<Integer, Label> hoistable = new HashMap<>();
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            Check check = check(b);
+            if (check == null || defined.contains(check.array))
+                continue;
+            Exp length = arrayLength(check.array);
+            if (check.index instanceof CONST || !defined.contains(((TEMP) check.index).temp)) {
+                // the same every iteration
+                guards.put(LoopInvariants.key(check.index) + " " + check.array,
+                           new CJUMP(CJUMP.UGE, check.index, length, slow, null));
+                hoistable.put(check.at, check.ok);
+                continue;
+            }
+
+            Temp index = ((TEMP) check.index).temp;
+            List<Fact> facts = factsAt(b, check.at);
+            String bound = null;
+            for (Map.Entry<String, Integer> e : bounds(facts, symbol(index)).entrySet()) {
+                Temp t = temp(e.getKey());
+                if (e.getValue() == 2 && (t == null || !defined.contains(t))) {
+                    bound = e.getKey();
+                    break;
+                }
+            }
+            if (bound == null || !countsUp(loop, index))
+                continue;
+            if (nonNegative == null)
+                nonNegative = nonNegative();
+            if (!atLeastZero(facts, check.index, nonNegative))
+                guards.put(index + " < 0", new CJUMP(CJUMP.LT, new TEMP(index), new CONST(0), slow, null));
+            guards.put(bound + " > " + check.array,
+                       new CJUMP(CJUMP.GT, expression(bound), length, slow, null));
+            hoistable.put(check.at, check.ok);
+        }
+        if (hoistable.isEmpty())
+            return null;
+
+        // the loop once more, with labels of its own
+        Map<String, Label> renamed = new HashMap<>();
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            for (int i = cfg.start[b]; i < cfg.start[b + 1] && stms.get(i) instanceof LABEL; i++)
+                renamed.put(((LABEL) stms.get(i)).label.toString(), new Label());
+        }
+        Label end = new Label();
+        Set<Integer> dropped = dropped(hoistable);
+        List<Stm> copy = new ArrayList<>();
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                Label ok = hoistable.get(i);
+                // the copy of the next block only follows when it is in the loop
+                if (dropped.contains(i) && (ok == null || loop.contains(b + 1)))
+                    continue;
+                copy.add(ok != null ? new JUMP(renamed.getOrDefault(ok.toString(), ok))
+                         : relabel(stms.get(i), renamed));
+            }
+            Stm last = cfg.last(b);
+            if (!(last instanceof JUMP || last instanceof CJUMP) && !loop.contains(b + 1)) {
+                // it falls out of the loop, which the copy is not before
+                Label next = b + 1 < cfg.size() ? ((LABEL) stms.get(cfg.start[b + 1])).label : end;
+                copy.add(new JUMP(renamed.getOrDefault(next.toString(), next)));
+            }
+        }
+        Label fast = renamed.get(name(loop.header));
+        // the slow way in starts the header from now on
+        done.add(fast.toString());
+        done.add(slow.toString());
+
+        List<Stm> preheader = new ArrayList<>();
+        for (Stm guard : guards.values()) {
+            CJUMP cjump = (CJUMP) guard;
+            Label next = new Label();
+            preheader.add(new CJUMP(cjump.relop, cjump.left, cjump.right, slow, next));
+            preheader.add(new LABEL(next));
+        }
+        preheader.add(new JUMP(fast));
+        preheader.add(new LABEL(slow));
+
+        List<Stm> result = Loops.enter(cfg, loop, stms, preheader, null);
+        if (!(result.get(result.size() - 1) instanceof JUMP))
+            result.add(new JUMP(end));
+        result.addAll(copy);
+        result.add(new LABEL(end));
+        hoisted += hoistable.size();
+        loops++;
+        return result;
+    }
+
+    /**
+     * Whether the loop assigns a temp only as t = t + 1, each below some
+     * bound, so that it never wraps around and is never less than on entry.
+     */
+    private boolean countsUp(Loops.Loop loop, Temp t) {
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                Stm stm = stms.get(i);
+                if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP)
+                        || !((TEMP) ((MOVE) stm).dst).temp.equals(t))
+                    continue;
+                Exp src = ((MOVE) stm).src;
+                if (!(src instanceof BINOP) || ((BINOP) src).binop != BINOP.PLUS)
+                    return false;
+                BINOP plus = (BINOP) src;
+                boolean step = plus.left instanceof TEMP && ((TEMP) plus.left).temp.equals(t)
+                    && plus.right instanceof CONST && ((CONST) plus.right).value == 1;
+                if (!step || !bounds(factsAt(b, i), symbol(t)).containsValue(2))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static Exp expression(String symbol) {
+        if (symbol.startsWith("c:"))
+            return new CONST(value(symbol));
+        if (symbol.startsWith("#"))
+            return arrayLength(temp(symbol));
+        return new TEMP(temp(symbol));
+    }
+
+    private static Exp arrayLength(Temp array) {
+        return new BINOP(BINOP.RSHIFT, new MEM(new TEMP(array)), new CONST(2));
+    }
+
+    private static Stm relabel(Stm stm, Map<String, Label> renamed) {
+        Stm copy;
+        if (stm instanceof LABEL) {
+            copy = new LABEL(renamed.get(((LABEL) stm).label.toString()));
+        } else if (stm instanceof JUMP && ((JUMP) stm).exp instanceof NAME) {
+            Label target = ((NAME) ((JUMP) stm).exp).label;
+            copy = new JUMP(renamed.getOrDefault(target.toString(), target));
+        } else if (stm instanceof CJUMP) {
+            CJUMP cjump = (CJUMP) stm;
+            copy = new CJUMP(cjump.relop, LoopInvariants.copy(cjump.left), LoopInvariants.copy(cjump.right),
+                             renamed.getOrDefault(cjump.iftrue.toString(), cjump.iftrue),
+                             renamed.getOrDefault(cjump.iffalse.toString(), cjump.iffalse));
+        } else {
+            return LoopInvariants.copy(stm);
+        }
+        copy.tag = stm.tag;
+        return copy;
+    }
+
+    // the body without the blocks the entry no longer reaches
+    private List<Stm> reachable(List<Stm> body) {
+        ControlFlow cfg = new ControlFlow(body);
+        List<Stm> result = new ArrayList<>(body.size());
+        for (int b = 0; b < cfg.size(); b++) {
+            if (b == 0 || cfg.idom[b] >= 0)
+                result.addAll(body.subList(cfg.start[b], cfg.start[b + 1]));
+        }
+        return result;
+    }
+
+    private static void assigned(Stm stm, Set<Temp> into) {
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+            into.add(((TEMP) ((MOVE) stm).dst).temp);
+    }
+
+    private static boolean reads(Exp exp, Temp t) {
+        Map<Temp, Integer> read = new HashMap<>();
+        reads(exp, read);
+        return read.containsKey(t);
+    }
+
+    private static void reads(Stm stm, Map<Temp, Integer> into) {
+        if (stm instanceof LABEL)
+            return;
+        for (Exp kid : stm.kids())
+            reads(kid, into);
+    }
+
+    private static void reads(Exp exp, Map<Temp, Integer> into) {
+        if (exp instanceof TEMP) {
+            into.merge(((TEMP) exp).temp, 1, Integer::sum);
+        } else if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                reads(kid, into);
+        }
+    }
+}
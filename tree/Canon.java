@@ -0,0 +1,256 @@
+package tree;
+
+import frame.Label;
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Rewrites a procedure body into canonical trees, after Appel's Canon:
+ * no ESEQs, no SEQs, and every CALL either alone in an EXPR or the source
+ * of a MOVE to a TEMP, so no CALL is ever the argument of another.
+ * Subexpressions are hoisted into temps when a later sibling's statements
+ * could change their value.
+ *
+ * {@link #canonicalize} also runs {@link BasicBlocks} and
+ * {@link TraceSchedule} over the result.
+ */
+public class Canon {
+    // statements hoisted out of a list of expressions, and what is left of
+    // the expressions
+    private static class Reordered {
+        final Stm stm;
+        final LinkedList<Exp> exps;
+
+        Reordered(Stm stm, LinkedList<Exp> exps) {
+            this.stm = stm;
+            this.exps = exps;
+        }
+    }
+
+    // Translate shares some subtrees between two places of the body (an
+    // array index is both checked and used); an ESEQ met a second time is
+    // copied with fresh labels, so that each label is defined once
+    private final Set<ESEQ> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private Canon() {
+    }
+
+    /**
+     * The body as a list of canonical statements, in order.
+     */
+    public static List<Stm> linearize(Stm body) {
+        List<Stm> stms = new ArrayList<>();
+        linear(new Canon().doStm(body), stms);
+        return stms;
+    }
+
+    /**
+     * The body linearized and ordered into traces, where every CJUMP is
+     * followed by its false label.
+     */
+    public static List<Stm> canonicalize(Stm body) {
+        return new TraceSchedule(new BasicBlocks(linearize(body))).stms;
+    }
+
+    /**
+     * Joins a list of statements back into one, for the consumers that take
+     * a single body. The SEQs are balanced, so walking them recurses only
+     * logarithmically deep.
+     */
+    public static Stm seq(List<Stm> stms) {
+        if (stms.isEmpty())
+            return nop();
+        return seq(stms, 0, stms.size());
+    }
+
+    private static Stm seq(List<Stm> stms, int from, int to) {
+        if (to - from == 1)
+            return stms.get(from);
+        int middle = (from + to) >>> 1;
+        return new SEQ(seq(stms, from, middle), seq(stms, middle, to));
+    }
+
+    private static void linear(Stm stm, List<Stm> into) {
+        if (stm instanceof SEQ) {
+            linear(((SEQ) stm).left, into);
+            linear(((SEQ) stm).right, into);
+        } else if (!isNop(stm)) {
+            into.add(stm);
+        }
+    }
+
+    private static Stm nop() {
+        return new EXPR(new CONST(0));
+    }
+
+    private static boolean isNop(Stm stm) {
+        return stm instanceof EXPR && ((EXPR) stm).exp instanceof CONST;
+    }
+
+    private static Stm seq(Stm a, Stm b) {
+        if (isNop(a))
+            return b;
+        if (isNop(b))
+            return a;
+        return new SEQ(a, b);
+    }
+
+    // whether running stm before exp cannot change exp's value
+    private static boolean commute(Stm stm, Exp exp) {
+        return isNop(stm) || exp instanceof NAME || exp instanceof CONST;
+    }
+
+    private Stm doStm(Stm stm) {
+        if (stm instanceof SEQ)
+            return seq(doStm(((SEQ) stm).left), doStm(((SEQ) stm).right));
+        if (stm instanceof MOVE)
+            return doStm((MOVE) stm);
+        if (stm instanceof EXPR)
+            return doStm((EXPR) stm);
+        return reorderStm(stm);
+    }
+
+    private Stm doStm(MOVE move) {
+        if (move.dst instanceof TEMP && move.src instanceof CALL) {
+            // the one place a CALL may stay: hoist its arguments only
+            CALL call = (CALL) move.src;
+            Reordered r = reorder(call.kids());
+            return seq(r.stm, Trees.tagged(new MOVE(move.dst, Trees.tagged(call.build(r.exps), call)), move));
+        }
+        if (move.dst instanceof ESEQ) {
+            ESEQ dst = unshare((ESEQ) move.dst);
+            return doStm(new SEQ(dst.stm, Trees.tagged(new MOVE(dst.exp, move.src), move)));
+        }
+        return reorderStm(move);
+    }
+
+    private Stm doStm(EXPR expr) {
+        if (expr.exp instanceof CALL) {
+            CALL call = (CALL) expr.exp;
+            Reordered r = reorder(call.kids());
+            return seq(r.stm, Trees.tagged(new EXPR(Trees.tagged(call.build(r.exps), call)), expr));
+        }
+        return reorderStm(expr);
+    }
+
+    private Stm reorderStm(Stm stm) {
+        Reordered r = reorder(stm.kids());
+        return seq(r.stm, Trees.tagged(stm.build(r.exps), stm));
+    }
+
+    private ESEQ doExp(Exp exp) {
+        if (exp instanceof CALL) {
+            // a CALL inside an expression gets a temp of its own
+            Temp t = new Temp();
+            exp = new ESEQ(new MOVE(new TEMP(t), exp), new TEMP(t));
+        }
+        if (exp instanceof ESEQ) {
+            ESEQ eseq = unshare((ESEQ) exp);
+            Stm stm = doStm(eseq.stm);
+            ESEQ rest = doExp(eseq.exp);
+            return new ESEQ(seq(stm, rest.stm), rest.exp);
+        }
+        Reordered r = reorder(exp.kids());
+        return new ESEQ(r.stm, Trees.tagged(exp.build(r.exps), exp));
+    }
+
+    private Reordered reorder(LinkedList<Exp> exps) {
+        if (exps.isEmpty())
+            return new Reordered(nop(), new LinkedList<>());
+
+        ESEQ head = doExp(exps.removeFirst());
+        Reordered rest = reorder(exps);
+        if (commute(rest.stm, head.exp)) {
+            rest.exps.addFirst(head.exp);
+            return new Reordered(seq(head.stm, rest.stm), rest.exps);
+        }
+        Temp t = new Temp();
+        rest.exps.addFirst(new TEMP(t));
+        return new Reordered(seq(head.stm, seq(new MOVE(new TEMP(t), head.exp), rest.stm)),
+                             rest.exps);
+    }
+
+    private ESEQ unshare(ESEQ eseq) {
+        if (seen.add(eseq))
+            return eseq;
+        Map<String, Label> fresh = new HashMap<>();
+        defined(eseq.stm, fresh);
+        return (ESEQ) copy(eseq, fresh);
+    }
+
+    private static void defined(Stm stm, Map<String, Label> into) {
+        if (stm instanceof SEQ) {
+            defined(((SEQ) stm).left, into);
+            defined(((SEQ) stm).right, into);
+        } else if (stm instanceof LABEL) {
+            into.put(((LABEL) stm).label.toString(), new Label());
+        } else if (stm instanceof MOVE) {
+            defined(((MOVE) stm).dst, into);
+            defined(((MOVE) stm).src, into);
+        } else if (stm instanceof EXPR) {
+            defined(((EXPR) stm).exp, into);
+        } else if (stm instanceof CJUMP) {
+            defined(((CJUMP) stm).left, into);
+            defined(((CJUMP) stm).right, into);
+        }
+    }
+
+    private static void defined(Exp exp, Map<String, Label> into) {
+        if (exp instanceof ESEQ) {
+            defined(((ESEQ) exp).stm, into);
+            defined(((ESEQ) exp).exp, into);
+        } else {
+            for (Exp kid : exp.kids())
+                defined(kid, into);
+        }
+    }
+
+    private static Label rename(Label label, Map<String, Label> fresh) {
+        Label renamed = fresh.get(label.toString());
+        return renamed != null ? renamed : label;
+    }
+
+    private static Stm copy(Stm stm, Map<String, Label> fresh) {
+        Stm copy;
+        if (stm instanceof SEQ) {
+            copy = new SEQ(copy(((SEQ) stm).left, fresh), copy(((SEQ) stm).right, fresh));
+        } else if (stm instanceof LABEL) {
+            copy = new LABEL(rename(((LABEL) stm).label, fresh));
+        } else if (stm instanceof JUMP) {
+            JUMP jump = (JUMP) stm;
+            LinkedList<Label> targets = new LinkedList<>();
+            for (Label target : jump.targets)
+                targets.add(rename(target, fresh));
+            copy = new JUMP(copy(jump.exp, fresh), targets);
+        } else if (stm instanceof CJUMP) {
+            CJUMP cjump = (CJUMP) stm;
+            copy = new CJUMP(cjump.relop, copy(cjump.left, fresh), copy(cjump.right, fresh),
+                             rename(cjump.iftrue, fresh), rename(cjump.iffalse, fresh));
+        } else if (stm instanceof MOVE) {
+            copy = new MOVE(copy(((MOVE) stm).dst, fresh), copy(((MOVE) stm).src, fresh));
+        } else if (stm instanceof EXPR) {
+            copy = new EXPR(copy(((EXPR) stm).exp, fresh));
+        } else {
+            throw new Error("Unexpected " + stm.getClass().getSimpleName());
+        }
+        return Trees.tagged(copy, stm);
+    }
+
+    private static Exp copy(Exp exp, Map<String, Label> fresh) {
+        Exp copy;
+        if (exp instanceof ESEQ) {
+            copy = new ESEQ(copy(((ESEQ) exp).stm, fresh), copy(((ESEQ) exp).exp, fresh));
+        } else if (exp instanceof NAME) {
+            Label label = rename(((NAME) exp).label, fresh);
+            copy = label == ((NAME) exp).label ? exp : new NAME(label);
+        } else {
+            LinkedList<Exp> kids = new LinkedList<>();
+            for (Exp kid : exp.kids())
+                kids.add(copy(kid, fresh));
+            copy = exp.build(kids);
+        }
+        return Trees.tagged(copy, exp);
+    }
+}
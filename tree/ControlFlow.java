@@ -0,0 +1,282 @@
+package tree;
+
+import frame.Label;
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * The basic blocks of a canonical body (see {@link Canon}), the edges
+ * between them, the immediate dominator of each and their dominance
+ * frontiers.
+ *
+ * A block starts at a label, unless it follows another, and after a jump;
+ * blocks are numbered in the order of the body, so block 0 is the entry.
+ */
+public class ControlFlow {
+    public final List<Stm> stms;
+    /** Block b is stms[start[b]] up to stms[start[b + 1]]. */
+    public final int[] start;
+    public final int[][] succs, preds;
+    /** Immediate dominator of each block, -1 for the entry and unreachable blocks. */
+    public final int[] idom;
+
+    private final HashMap<String, Integer> labels = new HashMap<>();
+
+    public ControlFlow(List<Stm> stms) {
+        this.stms = stms;
+
+        TreeSet<Integer> starts = new TreeSet<>();
+        for (int i = 0; i < stms.size(); i++) {
+            Stm stm = stms.get(i);
+            if (i == 0 || stm instanceof LABEL && !(stms.get(i - 1) instanceof LABEL))
+                starts.add(i);
+            if ((stm instanceof JUMP || stm instanceof CJUMP) && i + 1 < stms.size())
+                starts.add(i + 1);
+        }
+        int n = starts.size();
+        start = new int[n + 1];
+        int k = 0;
+        for (int s : starts)
+            start[k++] = s;
+        start[n] = stms.size();
+
+        for (int b = 0; b < n; b++) {
+            for (int i = start[b]; i < start[b + 1] && stms.get(i) instanceof LABEL; i++)
+                labels.put(((LABEL) stms.get(i)).label.toString(), b);
+        }
+
+        succs = new int[n][];
+        List<List<Integer>> p = new ArrayList<>();
+        for (int b = 0; b < n; b++)
+            p.add(new ArrayList<>());
+        for (int b = 0; b < n; b++) {
+            List<Integer> s = new ArrayList<>();
+            Stm last = last(b);
+            if (last instanceof JUMP) {
+                for (Label target : ((JUMP) last).targets)
+                    add(s, labels.get(target.toString()));
+            } else if (last instanceof CJUMP) {
+                add(s, labels.get(((CJUMP) last).iftrue.toString()));
+                add(s, labels.get(((CJUMP) last).iffalse.toString()));
+            } else if (b + 1 < n) {
+                s.add(b + 1);
+            }
+            succs[b] = toArray(s);
+            for (int t : s)
+                p.get(t).add(b);
+        }
+        preds = new int[n][];
+        for (int b = 0; b < n; b++)
+            preds[b] = toArray(p.get(b));
+
+        idom = dominators();
+    }
+
+    public int size() {
+        return start.length - 1;
+    }
+
+    /** The block a label starts, or -1. */
+    public int blockOf(Label label) {
+        Integer b = labels.get(label.toString());
+        return b != null ? b : -1;
+    }
+
+    /** The last statement of a block, null for an empty one. */
+    public Stm last(int b) {
+        return start[b + 1] > start[b] ? stms.get(start[b + 1] - 1) : null;
+    }
+
+    public boolean dominates(int a, int b) {
+        for (; b >= 0; b = idom[b]) {
+            if (b == a)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The dominance frontier of each block: the blocks it does not strictly
+     * dominate with a predecessor it dominates. Empty for unreachable ones.
+     */
+    public int[][] frontiers() {
+        int n = size();
+        List<List<Integer>> frontiers = new ArrayList<>();
+        for (int b = 0; b < n; b++)
+            frontiers.add(new ArrayList<>());
+        for (int b = 0; b < n; b++) {
+            // the entry joins its predecessors with the way in
+            if (preds[b].length < (b == 0 ? 1 : 2) || b != 0 && idom[b] < 0)
+                continue;
+            for (int p : preds[b]) {
+                if (p != 0 && idom[p] < 0)
+                    continue;
+                for (int runner = p; runner >= 0 && runner != idom[b]; runner = idom[runner]) {
+                    List<Integer> frontier = frontiers.get(runner);
+                    if (frontier.isEmpty() || frontier.get(frontier.size() - 1) != b)
+                        frontier.add(b);
+                }
+            }
+        }
+        int[][] result = new int[n][];
+        for (int b = 0; b < n; b++)
+            result[b] = toArray(frontiers.get(b));
+        return result;
+    }
+
+    /**
+     * The blocks on the paths from a to b that do not go through a again:
+     * those reachable from a, and reaching b, without going through a. b
+     * is one of them when it is in a loop a does not hold.
+     */
+    public BitSet between(int a, int b) {
+        int n = size();
+        BitSet reached = new BitSet(n), reaching = new BitSet(n);
+        walk(succs[a], succs, a, reached);
+        walk(preds[b], preds, a, reaching);
+        reached.and(reaching);
+        return reached;
+    }
+
+    /**
+     * The temps some path from the entry reads before assigning: the
+     * formals, and those left as a call starts them.
+     */
+    public Set<Temp> exposed() {
+        return new Liveness(this).liveIn(0);
+    }
+
+    static void reads(Stm stm, Set<Temp> into) {
+        if (stm instanceof LABEL)
+            return;
+        for (Exp kid : stm.kids())
+            reads(kid, into);
+    }
+
+    private static void reads(Exp exp, Set<Temp> into) {
+        if (exp instanceof TEMP) {
+            into.add(((TEMP) exp).temp);
+        } else if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                reads(kid, into);
+        }
+    }
+
+    private static void walk(int[] from, int[][] edges, int avoid, BitSet into) {
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        for (int b : from) {
+            if (b != avoid && !into.get(b)) {
+                into.set(b);
+                work.push(b);
+            }
+        }
+        while (!work.isEmpty()) {
+            for (int s : edges[work.pop()]) {
+                if (s != avoid && !into.get(s)) {
+                    into.set(s);
+                    work.push(s);
+                }
+            }
+        }
+    }
+
+    private static void add(List<Integer> list, Integer block) {
+        if (block != null && !list.contains(block))
+            list.add(block);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    // Lengauer and Tarjan, with path compression, over the blocks the
+    // entry reaches
+    private int[] dominators() {
+        int n = size();
+        int[] idom = new int[n];
+        Arrays.fill(idom, -1);
+        if (n == 0)
+            return idom;
+
+        // depth-first numbering; semi holds numbers, -1 for unreached
+        int[] semi = new int[n], vertex = new int[n], parent = new int[n];
+        int[] ancestor = new int[n], label = new int[n];
+        Arrays.fill(semi, -1);
+        Arrays.fill(ancestor, -1);
+        int[] stack = new int[n], next = new int[n];
+        int sp = 0, count = 0;
+        stack[sp++] = 0;
+        semi[0] = count;
+        vertex[count++] = 0;
+        while (sp > 0) {
+            int b = stack[sp - 1];
+            if (next[b] < succs[b].length) {
+                int s = succs[b][next[b]++];
+                if (semi[s] < 0) {
+                    parent[s] = b;
+                    semi[s] = count;
+                    vertex[count++] = s;
+                    stack[sp++] = s;
+                }
+            } else {
+                sp--;
+            }
+        }
+        for (int b = 0; b < n; b++)
+            label[b] = b;
+
+        // buckets as linked lists through bucketNext
+        int[] bucket = new int[n], bucketNext = new int[n];
+        Arrays.fill(bucket, -1);
+        int[] path = new int[n];
+        for (int k = count - 1; k > 0; k--) {
+            int w = vertex[k];
+            for (int v : preds[w]) {
+                if (semi[v] < 0)
+                    continue;
+                int u = eval(v, ancestor, label, semi, path);
+                if (semi[u] < semi[w])
+                    semi[w] = semi[u];
+            }
+            int s = vertex[semi[w]];
+            bucketNext[w] = bucket[s];
+            bucket[s] = w;
+            int p = parent[w];
+            ancestor[w] = p;
+            for (int v = bucket[p]; v >= 0; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, path);
+                idom[v] = semi[u] < semi[v] ? u : p;
+            }
+            bucket[p] = -1;
+        }
+        for (int k = 1; k < count; k++) {
+            int w = vertex[k];
+            if (idom[w] != vertex[semi[w]])
+                idom[w] = idom[idom[w]];
+        }
+        idom[0] = -1;
+        return idom;
+    }
+
+    // the block of least semidominator on the forest path up to v
+    private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] path) {
+        if (ancestor[v] < 0)
+            return v;
+        int top = 0;
+        for (int x = v; ancestor[ancestor[x]] >= 0; x = ancestor[x])
+            path[top++] = x;
+        while (top > 0) {
+            int x = path[--top];
+            int a = ancestor[x];
+            if (semi[label[a]] < semi[label[x]])
+                label[x] = label[a];
+            ancestor[x] = ancestor[a];
+        }
+        return label[v];
+    }
+}
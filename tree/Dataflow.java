@@ -0,0 +1,211 @@
+package tree;
+
+import java.util.Arrays;
+
+/**
+ * A dataflow problem over the blocks of a body, with sets of facts as bit
+ * sets of {@code long} words, solved by iterating to a fixed point.
+ *
+ * A subclass numbers its facts densely, see {@link Temps}, calls
+ * {@link #sets} with how many there are, fills in what each block
+ * generates and kills, then calls {@link #solve}. Forward, the facts at
+ * the start of a block meet those at the end of its predecessors, and
+ * those at its end are gen | (start & ~kill); backward, the same with the
+ * successors and the ends swapped. The meet is union, for facts true along
+ * some path, or intersection, for facts true along every one; the entry,
+ * forward, and the blocks without successors, backward, meet the empty set.
+ *
+ * Blocks are worked on in reverse postorder, forward, and in postorder
+ * backward, and once the first pass is done only those some block they
+ * depend on changed for are worked on again.
+ */
+public abstract class Dataflow {
+    public final int[][] succs, preds;
+    /** The facts at the start and at the end of each block, once solved. */
+    public long[][] in, out;
+    protected long[][] gen, kill;
+    /** The number of facts, and of words in each set. */
+    protected int bits, words;
+
+    private final boolean forward, every;
+
+    /**
+     * A problem over blocks with the given successors, negative ones left
+     * out; forward or backward, meeting by intersection when every is
+     * set.
+     */
+    protected Dataflow(int[][] succs, boolean forward, boolean every) {
+        this.succs = succs;
+        this.forward = forward;
+        this.every = every;
+        int n = succs.length;
+        int[] counts = new int[n];
+        for (int[] ss : succs) {
+            for (int s : ss) {
+                if (s >= 0)
+                    counts[s]++;
+            }
+        }
+        preds = new int[n][];
+        for (int b = 0; b < n; b++)
+            preds[b] = new int[counts[b]];
+        for (int b = 0; b < n; b++) {
+            for (int s : succs[b]) {
+                if (s >= 0)
+                    preds[s][preds[s].length - counts[s]--] = b;
+            }
+        }
+    }
+
+    protected Dataflow(ControlFlow cfg, boolean forward, boolean every) {
+        this(cfg.succs, forward, every);
+    }
+
+    /** Makes gen and kill for each block, empty, for as many facts. */
+    protected void sets(int bits) {
+        this.bits = bits;
+        words = bits + 63 >>> 6;
+        gen = new long[succs.length][words];
+        kill = new long[succs.length][words];
+    }
+
+    /**
+     * Facts that only hold along one edge, the set the meet takes over it
+     * is joined with: after the end of from, forward, or before the start
+     * of to, backward. None by default.
+     */
+    protected long[] edge(int from, int to) {
+        return null;
+    }
+
+    protected void solve() {
+        int n = succs.length;
+        in = new long[n][words];
+        out = new long[n][words];
+        if (every) {
+            for (int b = 0; b < n; b++) {
+                fill(in[b]);
+                fill(out[b]);
+            }
+        }
+
+        int[] order = order();
+        boolean[] pending = new boolean[n];
+        Arrays.fill(pending, true);
+        int left = n;
+        long[] meet = new long[words];
+        while (left > 0) {
+            for (int b : order) {
+                if (!pending[b])
+                    continue;
+                pending[b] = false;
+                left--;
+                long[] met = forward ? in[b] : out[b], result = forward ? out[b] : in[b];
+                meet(b, meet);
+                System.arraycopy(meet, 0, met, 0, words);
+                boolean changed = false;
+                long[] g = gen[b], k = kill[b];
+                for (int w = 0; w < words; w++) {
+                    long word = g[w] | meet[w] & ~k[w];
+                    if (word != result[w]) {
+                        result[w] = word;
+                        changed = true;
+                    }
+                }
+                if (!changed)
+                    continue;
+                for (int d : forward ? succs[b] : preds[b]) {
+                    if (d >= 0 && !pending[d]) {
+                        pending[d] = true;
+                        left++;
+                    }
+                }
+            }
+        }
+    }
+
+    // the meet of the sets flowing into a block
+    private void meet(int b, long[] meet) {
+        int[] others = forward ? preds[b] : succs[b];
+        boolean first = true;
+        if (forward && b == 0 || others.length == 0) {
+            Arrays.fill(meet, 0);
+            first = false;
+        }
+        for (int o : others) {
+            if (o < 0)
+                continue;
+            long[] set = forward ? out[o] : in[o];
+            long[] along = forward ? edge(o, b) : edge(b, o);
+            if (first) {
+                for (int w = 0; w < words; w++)
+                    meet[w] = along != null ? set[w] | along[w] : set[w];
+                first = false;
+            } else if (every) {
+                for (int w = 0; w < words; w++)
+                    meet[w] &= along != null ? set[w] | along[w] : set[w];
+            } else {
+                for (int w = 0; w < words; w++)
+                    meet[w] |= along != null ? set[w] | along[w] : set[w];
+            }
+        }
+        if (first)
+            Arrays.fill(meet, 0);
+    }
+
+    // reverse postorder of walks from the entry and then from each block
+    // not walked yet, the later walks ahead; reversed for a backward problem
+    private int[] order() {
+        int n = succs.length;
+        int[] order = new int[n];
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n], next = new int[n];
+        int count = n;
+        for (int root = 0; root < n; root++) {
+            if (visited[root])
+                continue;
+            int sp = 0;
+            stack[sp++] = root;
+            visited[root] = true;
+            while (sp > 0) {
+                int b = stack[sp - 1];
+                if (next[b] < succs[b].length) {
+                    int s = succs[b][next[b]++];
+                    if (s >= 0 && !visited[s]) {
+                        visited[s] = true;
+                        stack[sp++] = s;
+                    }
+                } else {
+                    order[--count] = b;
+                    sp--;
+                }
+            }
+        }
+        if (!forward) {
+            for (int i = 0, j = n - 1; i < j; i++, j--) {
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+        }
+        return order;
+    }
+
+    private void fill(long[] set) {
+        Arrays.fill(set, -1L);
+        if ((bits & 63) != 0)
+            set[words - 1] = -1L >>> 64 - (bits & 63);
+    }
+
+    public static boolean get(long[] set, int bit) {
+        return (set[bit >>> 6] & 1L << bit) != 0;
+    }
+
+    public static void set(long[] set, int bit) {
+        set[bit >>> 6] |= 1L << bit;
+    }
+
+    public static void clear(long[] set, int bit) {
+        set[bit >>> 6] &= ~(1L << bit);
+    }
+}
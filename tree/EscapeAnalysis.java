@@ -0,0 +1,309 @@
+package tree;
+
+import frame.Frame;
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Escape analysis with scalar replacement over a canonical body (see
+ * {@link Canon}). An object allocated by a _halloc of constant size does
+ * not escape when its address is only copied between temps and used as
+ * the base of loads and stores at constant offsets inside it: it is never
+ * passed to a call, stored, returned or compared. Returning it is moving
+ * it into the frame's RV, the one temp live when the procedure returns,
+ * so that temp never counts as a copy. Such an object is not
+ * allocated at all; each of its words becomes a temp, set to zero where
+ * the allocation was.
+ *
+ * A temp holding the address stands for the object last allocated at its
+ * site, so every use must see the temp as set since that allocation on
+ * every path; an allocation in a loop whose previous object is still
+ * reached through a copy is left alone.
+ *
+ * The analysis sees one procedure at a time, so it runs after the
+ * {@link Inliner}: a method called on a temporary object must have been
+ * inlined for the object not to escape through the call.
+ */
+public class EscapeAnalysis {
+    /** Allocations replaced by temps in the last {@link #apply}. */
+    public int replaced;
+    /** Temps the replaced objects' words became in the last {@link #apply}. */
+    public int fields;
+
+    private List<Stm> stms;
+    // the temp holding the result, live at the exit
+    private Temp rv;
+    // the temps holding the address of the object being looked at, each
+    // with its bit in the dataflow state
+    private Map<Temp, Integer> aliases;
+    private int site;
+    private int size;
+
+    /**
+     * Returns the body of the procedure of a frame with the objects that do
+     * not escape replaced by temps; the body given is not changed.
+     */
+    public List<Stm> apply(Frame frame, List<Stm> body) {
+        replaced = 0;
+        fields = 0;
+        rv = frame.RV();
+        stms = new ArrayList<>(body);
+        Set<Temp> tried = new HashSet<>();
+        for (int i = 0; i < stms.size(); i++) {
+            Temp object = allocation(stms.get(i));
+            if (object == null || object.equals(rv) || !tried.add(object))
+                continue;
+            site = i;
+            if (!aliases(object) || !local() || !current())
+                continue;
+            stms = replace();
+            replaced++;
+            fields += size >> 2;
+        }
+        return stms;
+    }
+
+    // the temp an allocation of constant size moves its result into
+    private static Temp allocation(Stm stm) {
+        if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP)
+                || !(((MOVE) stm).src instanceof CALL))
+            return null;
+        CALL call = (CALL) ((MOVE) stm).src;
+        if (!(call.func instanceof NAME) || !((NAME) call.func).label.toString().equals("_halloc")
+                || call.args.size() != 1 || !(call.args.get(0) instanceof CONST))
+            return null;
+        return ((TEMP) ((MOVE) stm).dst).temp;
+    }
+
+    /**
+     * Finds the temps that only ever hold the object: the one it is
+     * allocated into, assigned nowhere else, and those only assigned
+     * copies of them, but the RV. A copy into the RV is then a use like
+     * any other, which the object escapes through.
+     */
+    private boolean aliases(Temp object) {
+        size = ((CONST) ((CALL) ((MOVE) stms.get(site)).src).args.get(0)).value;
+        if (size <= 0 || (size & 3) != 0)
+            return false;
+        Map<Temp, List<Exp>> defs = new HashMap<>();
+        for (Stm stm : stms) {
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                defs.computeIfAbsent(((TEMP) ((MOVE) stm).dst).temp, t -> new ArrayList<>())
+                    .add(((MOVE) stm).src);
+        }
+        if (defs.get(object).size() != 1)
+            return false;
+
+        aliases = new LinkedHashMap<>();
+        aliases.put(object, 0);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Temp, List<Exp>> def : defs.entrySet()) {
+                if (aliases.containsKey(def.getKey()) || def.getKey().equals(rv))
+                    continue;
+                boolean copies = true;
+                for (Exp src : def.getValue())
+                    copies &= src instanceof TEMP && aliases.containsKey(((TEMP) src).temp);
+                if (copies) {
+                    aliases.put(def.getKey(), aliases.size());
+                    changed = true;
+                }
+            }
+        }
+        return true;
+    }
+
+    // whether every use of the object is a copy, a load or a store
+    private boolean local() {
+        for (int i = 0; i < stms.size(); i++) {
+            Stm stm = stms.get(i);
+            if (i == site || isCopy(stm))
+                continue;
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM) {
+                Exp address = ((MEM) ((MOVE) stm).dst).exp;
+                Integer offset = offset(address);
+                if (offset != null ? !inside(offset) : !local(address))
+                    return false;
+                if (!local(((MOVE) stm).src))
+                    return false;
+                continue;
+            }
+            for (Exp kid : stm.kids()) {
+                if (!local(kid))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean local(Exp exp) {
+        if (exp instanceof TEMP)
+            return !aliases.containsKey(((TEMP) exp).temp);
+        if (exp instanceof MEM) {
+            Integer offset = offset(((MEM) exp).exp);
+            if (offset != null)
+                return inside(offset);
+        }
+        for (Exp kid : exp.kids()) {
+            if (!local(kid))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean inside(int offset) {
+        return offset >= 0 && offset < size && (offset & 3) == 0;
+    }
+
+    // the offset an address is at inside the object, or null
+    private Integer offset(Exp address) {
+        if (isAlias(address))
+            return 0;
+        if (address instanceof BINOP && ((BINOP) address).binop == BINOP.PLUS) {
+            BINOP b = (BINOP) address;
+            if (isAlias(b.left) && b.right instanceof CONST)
+                return ((CONST) b.right).value;
+            if (isAlias(b.right) && b.left instanceof CONST)
+                return ((CONST) b.left).value;
+        }
+        return null;
+    }
+
+    private boolean isAlias(Exp exp) {
+        return exp instanceof TEMP && aliases.containsKey(((TEMP) exp).temp);
+    }
+
+    private boolean isCopy(Stm stm) {
+        return stm instanceof MOVE && isAlias(((MOVE) stm).dst);
+    }
+
+    /**
+     * Checks that every use of a temp holding the address comes after the
+     * temp was set from the latest allocation, on every path: a forward
+     * dataflow whose state holds a bit for each such temp, meeting by
+     * intersection.
+     */
+    private boolean current() {
+        ControlFlow cfg = new ControlFlow(stms);
+        int n = cfg.size();
+        BitSet[] in = new BitSet[n];
+        for (int b = 0; b < n; b++) {
+            in[b] = new BitSet();
+            if (b > 0)
+                in[b].set(0, aliases.size());
+        }
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        for (int b = 0; b < n; b++)
+            work.add(b);
+        BitSet queued = new BitSet();
+        queued.set(0, n);
+        while (!work.isEmpty()) {
+            int b = work.poll();
+            queued.clear(b);
+            BitSet state = (BitSet) in[b].clone();
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++)
+                step(i, state, false);
+            for (int s : cfg.succs[b]) {
+                BitSet meet = (BitSet) in[s].clone();
+                meet.and(state);
+                if (!meet.equals(in[s]) && s != 0) {
+                    in[s] = meet;
+                    if (!queued.get(s)) {
+                        queued.set(s);
+                        work.add(s);
+                    }
+                }
+            }
+        }
+
+        for (int b = 0; b < n; b++) {
+            BitSet state = in[b];
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                if (!step(i, state, true))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean step(int i, BitSet state, boolean check) {
+        Stm stm = stms.get(i);
+        if (i == site) {
+            state.clear();
+            state.set(0);
+            return true;
+        }
+        if (isCopy(stm)) {
+            Temp from = ((TEMP) ((MOVE) stm).src).temp;
+            boolean current = state.get(aliases.get(from));
+            state.set(aliases.get(((TEMP) ((MOVE) stm).dst).temp), current);
+            return !check || current;
+        }
+        if (check) {
+            Set<Temp> used = new HashSet<>();
+            uses(stm, used);
+            for (Temp t : used) {
+                if (!state.get(aliases.get(t)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // the temps holding the object a statement reads
+    private void uses(Stm stm, Set<Temp> into) {
+        for (Exp kid : stm.kids())
+            uses(kid, into);
+    }
+
+    private void uses(Exp exp, Set<Temp> into) {
+        if (isAlias(exp))
+            into.add(((TEMP) exp).temp);
+        for (Exp kid : exp.kids())
+            uses(kid, into);
+    }
+
+    private List<Stm> replace() {
+        Temp[] words = new Temp[size >> 2];
+        for (int k = 0; k < words.length; k++)
+            words[k] = new Temp();
+        List<Stm> result = new ArrayList<>();
+        for (int i = 0; i < stms.size(); i++) {
+            Stm stm = stms.get(i);
+            if (i == site) {
+                for (Temp word : words)
+                    result.add(Trees.tagged(new MOVE(new TEMP(word), new CONST(0)), stm));
+            } else if (isCopy(stm)) {
+                continue;
+            } else if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM
+                       && offset(((MEM) ((MOVE) stm).dst).exp) != null) {
+                int offset = offset(((MEM) ((MOVE) stm).dst).exp);
+                result.add(Trees.tagged(new MOVE(new TEMP(words[offset >> 2]),
+                                                          replace(((MOVE) stm).src, words)), stm));
+            } else {
+                LinkedList<Exp> kids = new LinkedList<>();
+                for (Exp kid : stm.kids())
+                    kids.add(replace(kid, words));
+                result.add(Trees.tagged(stm.build(kids), stm));
+            }
+        }
+        return result;
+    }
+
+    private Exp replace(Exp exp, Temp[] words) {
+        if (exp instanceof MEM) {
+            Integer offset = offset(((MEM) exp).exp);
+            if (offset != null)
+                return Trees.tagged(new TEMP(words[offset >> 2]), exp);
+        }
+        if (Trees.isLeaf(exp))
+            return exp;
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : exp.kids())
+            kids.add(replace(kid, words));
+        return Trees.tagged(exp.build(kids), exp);
+    }
+}
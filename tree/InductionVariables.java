@@ -0,0 +1,300 @@
+package tree;
+
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Strength reduction of induction variables over a canonical body (see
+ * {@link Canon}), innermost loops first.
+ *
+ * A basic induction variable of a loop is a temp the loop assigns once, as
+ * i = i + c. An expression that is a * i + b, with a and b built of
+ * constants and temps the loop does not assign, is a derived one; the
+ * array indexing of Translate makes one of (a + 4) + i * 4. Each derived
+ * expression that scales i is replaced by a temp the preheader sets to
+ * a * i + b and that is stepped by a * c right after i is. The arithmetic
+ * wraps around in both cases, so the two always agree.
+ *
+ * An induction variable left with no use but its own step, in or out of
+ * the loop, is dead, and its step is deleted.
+ */
+public class InductionVariables {
+    /** Expressions replaced by stepped temps in the last {@link #apply}. */
+    public int reduced;
+    /** Induction variables found dead and deleted in the last {@link #apply}. */
+    public int deleted;
+
+    private Set<Temp> defined;
+
+    // a * iv + b; b is null for 0
+    private static class Linear {
+        final Temp iv;
+        final int a;
+        final Exp b;
+
+        Linear(Temp iv, int a, Exp b) {
+            this.iv = iv;
+            this.a = a;
+            this.b = b;
+        }
+    }
+
+    /**
+     * Returns the body with its induction variables reduced; the body given
+     * is not changed.
+     */
+    public List<Stm> apply(List<Stm> body) {
+        reduced = 0;
+        deleted = 0;
+        List<Stm> stms = new ArrayList<>(body);
+        Set<String> done = new HashSet<>();
+        while (true) {
+            ControlFlow cfg = new ControlFlow(stms);
+            Loops nest = new Loops(cfg);
+            // loops come after those holding them, so the last one left
+            // holds none that is left
+            Loops.Loop next = null;
+            for (Loops.Loop l : nest.loops) {
+                if (!done.contains(name(cfg, l.header)))
+                    next = l;
+            }
+            if (next == null)
+                return stms;
+            done.add(name(cfg, next.header));
+            stms = reduce(cfg, next);
+        }
+    }
+
+    private static String name(ControlFlow cfg, int block) {
+        return ((LABEL) cfg.stms.get(cfg.start[block])).label.toString();
+    }
+
+    private List<Stm> reduce(ControlFlow cfg, Loops.Loop loop) {
+        List<Stm> stms = cfg.stms;
+
+        // the basic induction variables, by the statement stepping them
+        defined = new HashSet<>();
+        Map<Temp, Integer> definitions = new HashMap<>();
+        Map<Temp, Integer> steps = new HashMap<>();
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                Stm stm = stms.get(i);
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+                    Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+                    defined.add(t);
+                    definitions.merge(t, 1, Integer::sum);
+                    if (step(stm) != null)
+                        steps.put(t, i);
+                }
+            }
+        }
+        for (Map.Entry<Temp, Integer> e : definitions.entrySet()) {
+            if (e.getValue() > 1)
+                steps.remove(e.getKey());
+        }
+        if (steps.isEmpty())
+            return stms;
+        Set<Integer> stepAt = new HashSet<>(steps.values());
+
+        // derived expressions, replaced by temps kept in step
+        Map<String, Temp> reductions = new LinkedHashMap<>();
+        Map<String, Linear> forms = new HashMap<>();
+        Stm[] rewritten = new Stm[stms.size()];
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                Stm stm = stms.get(i);
+                if (!(stm instanceof LABEL) && !stepAt.contains(i))
+                    rewritten[i] = rewrite(stm, steps.keySet(), reductions, forms);
+            }
+        }
+        if (reductions.isEmpty())
+            return stms;
+
+        // each reduced temp starts as a * i + b and steps with i
+        List<Stm> preheader = new ArrayList<>();
+        Map<Temp, List<Stm>> stepped = new HashMap<>();
+        for (Map.Entry<String, Temp> e : reductions.entrySet()) {
+            Linear form = forms.get(e.getKey());
+            Temp p = e.getValue();
+            Exp scaled = form.a == 1 ? new TEMP(form.iv)
+                : new BINOP(BINOP.MUL, new TEMP(form.iv), new CONST(form.a));
+            // the base goes first, so a pointer stays one for the collector
+            preheader.add(new MOVE(new TEMP(p),
+                form.b == null ? scaled : new BINOP(BINOP.PLUS, LoopInvariants.copy(form.b), scaled)));
+            int c = step(stms.get(steps.get(form.iv)));
+            stepped.computeIfAbsent(form.iv, k -> new ArrayList<>())
+                   .add(new MOVE(new TEMP(p), new BINOP(BINOP.PLUS, new TEMP(p), new CONST(form.a * c))));
+        }
+        reduced += reductions.size();
+
+        // a step no one reads is gone with its variable; the preheader
+        // reads the value before the loop, which stays
+        Set<Temp> used = new HashSet<>();
+        for (int i = 0; i < stms.size(); i++) {
+            Stm stm = rewritten[i] != null ? rewritten[i] : stms.get(i);
+            if (!stepAt.contains(i))
+                uses(stm, used);
+        }
+
+        List<Stm> result = new ArrayList<>(stms.size() + stepped.size());
+        for (int i = 0; i < stms.size(); i++) {
+            Stm stm = rewritten[i] != null ? rewritten[i] : stms.get(i);
+            if (stepAt.contains(i)) {
+                Temp iv = ((TEMP) ((MOVE) stm).dst).temp;
+                if (used.contains(iv))
+                    result.add(stm);
+                else
+                    deleted++;
+                result.addAll(stepped.getOrDefault(iv, Collections.<Stm>emptyList()));
+            } else {
+                result.add(stm);
+            }
+        }
+        return Loops.enter(cfg, loop, result, preheader, null);
+    }
+
+    // c, if the statement is i = i + c or i = c + i
+    private static Integer step(Stm stm) {
+        if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP)
+                || !(((MOVE) stm).src instanceof BINOP))
+            return null;
+        Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+        BINOP b = (BINOP) ((MOVE) stm).src;
+        if (b.binop != BINOP.PLUS)
+            return null;
+        if (isTemp(b.left, t) && b.right instanceof CONST)
+            return ((CONST) b.right).value;
+        if (isTemp(b.right, t) && b.left instanceof CONST)
+            return ((CONST) b.left).value;
+        return null;
+    }
+
+    private static boolean isTemp(Exp exp, Temp t) {
+        return exp instanceof TEMP && ((TEMP) exp).temp.equals(t);
+    }
+
+    private Stm rewrite(Stm stm, Set<Temp> ivs, Map<String, Temp> reductions,
+                        Map<String, Linear> forms) {
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : stm.kids())
+            kids.add(rewrite(kid, ivs, reductions, forms));
+        return Trees.tagged(stm.build(kids), stm);
+    }
+
+    private Exp rewrite(Exp exp, Set<Temp> ivs, Map<String, Temp> reductions,
+                        Map<String, Linear> forms) {
+        if (Trees.isLeaf(exp))
+            return exp;
+        if (exp instanceof BINOP && scales(exp)) {
+            Linear form = linear(exp, ivs);
+            if (form != null && form.iv != null && form.a != 0) {
+                String key = form.iv + "*" + form.a + "+"
+                    + (form.b == null ? "0" : LoopInvariants.key(form.b));
+                Temp p = reductions.get(key);
+                if (p == null) {
+                    p = new Temp();
+                    reductions.put(key, p);
+                    forms.put(key, form);
+                }
+                return new TEMP(p);
+            }
+        }
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : exp.kids())
+            kids.add(rewrite(kid, ivs, reductions, forms));
+        return Trees.tagged(exp.build(kids), exp);
+    }
+
+    // whether the expression multiplies or shifts; adding alone costs what
+    // stepping would
+    private static boolean scales(Exp exp) {
+        if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            if ((b.binop == BINOP.MUL || b.binop == BINOP.LSHIFT) && !(b.left instanceof CONST
+                    && b.right instanceof CONST))
+                return true;
+            return scales(b.left) || scales(b.right);
+        }
+        return false;
+    }
+
+    /**
+     * The expression as a * iv + b over one of the induction variables, or
+     * null. iv is null when the expression is invariant.
+     */
+    private Linear linear(Exp exp, Set<Temp> ivs) {
+        if (exp instanceof CONST || exp instanceof NAME)
+            return new Linear(null, 0, exp);
+        if (exp instanceof TEMP) {
+            Temp t = ((TEMP) exp).temp;
+            if (ivs.contains(t))
+                return new Linear(t, 1, null);
+            return defined.contains(t) ? null : new Linear(null, 0, exp);
+        }
+        if (!(exp instanceof BINOP))
+            return null;
+        BINOP bin = (BINOP) exp;
+        Linear l = linear(bin.left, ivs), r = linear(bin.right, ivs);
+        if (l == null || r == null)
+            return null;
+        switch (bin.binop) {
+            case BINOP.PLUS:
+            case BINOP.MINUS: {
+                if (l.iv != null && r.iv != null && !l.iv.equals(r.iv))
+                    return null;
+                Temp iv = l.iv != null ? l.iv : r.iv;
+                int a = bin.binop == BINOP.PLUS ? l.a + r.a : l.a - r.a;
+                Exp b;
+                if (r.b == null)
+                    b = l.b;
+                else if (l.b == null)
+                    b = bin.binop == BINOP.PLUS ? r.b : new BINOP(BINOP.MINUS, new CONST(0), r.b);
+                else
+                    b = new BINOP(bin.binop, l.b, r.b);
+                return new Linear(iv, a, b);
+            }
+            case BINOP.MUL:
+                if (isConstant(r))
+                    return scale(l, ((CONST) r.b).value);
+                if (isConstant(l))
+                    return scale(r, ((CONST) l.b).value);
+                return l.iv == null && r.iv == null ? new Linear(null, 0, exp) : null;
+            case BINOP.LSHIFT:
+                if (isConstant(r))
+                    return scale(l, 1 << ((CONST) r.b).value);
+                return l.iv == null && r.iv == null ? new Linear(null, 0, exp) : null;
+            case BINOP.DIV:
+                // may fault, so it stays where it is
+                return null;
+            default:
+                return l.iv == null && r.iv == null ? new Linear(null, 0, exp) : null;
+        }
+    }
+
+    private static boolean isConstant(Linear form) {
+        return form.iv == null && form.b instanceof CONST;
+    }
+
+    private static Linear scale(Linear form, int c) {
+        Exp b = form.b == null ? null : new BINOP(BINOP.MUL, form.b, new CONST(c));
+        return new Linear(form.iv, form.a * c, b);
+    }
+
+    private static void uses(Stm stm, Set<Temp> into) {
+        if (stm instanceof LABEL)
+            return;
+        for (Exp kid : stm.kids())
+            uses(kid, into);
+    }
+
+    private static void uses(Exp exp, Set<Temp> into) {
+        if (exp instanceof TEMP) {
+            into.add(((TEMP) exp).temp);
+        } else if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                uses(kid, into);
+        }
+    }
+}
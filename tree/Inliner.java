@@ -0,0 +1,420 @@
+package tree;
+
+import frame.*;
+import tree.node.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Inlines calls between the procedures of a program, over canonical bodies
+ * (see {@link Canon}). A call is replaced by moves of its arguments into
+ * the callee's formals and a copy of the callee's body, with every temp
+ * and label renamed, which falls through to a move of its result. Temps
+ * the body may read before assigning start at zero, as they do in a fresh
+ * register window.
+ *
+ * Procedures are done callees first, so what gets inlined has had its own
+ * calls inlined; a call to a procedure not done yet is recursive and stays.
+ * A callee is inlined when it is small, when the call is its only one or
+ * when a call profile (see {@link #readProfile}) shows the caller calling it
+ * often, as long as the program grows by no more than its budget. A
+ * profile also keeps calls that never ran from growing the code at all.
+ * The procedures method tables name (see {@link #keep}) may be called from
+ * anywhere, so they are never dropped.
+ */
+public class Inliner {
+    // sizes in tree nodes, see size()
+    static final int SMALL = 40;
+    static final int LARGE = 400;
+    static final int CALLER_LIMIT = 4000;
+    // share of the profiled calls that makes a caller/callee pair hot
+    static final double HOT = 0.01;
+    // how much the program may grow, as a share of its size, and at least
+    static final double GROWTH = 0.5;
+    static final int MIN_BUDGET = 500;
+
+    /** Calls inlined in the last {@link #apply}. */
+    public int sites;
+    /** Tree nodes the program grew by in the last {@link #apply}. */
+    public int nodes;
+    /** Procedures no longer called, dropped in the last {@link #apply}. */
+    public int dropped;
+
+    // calls of each "caller callee" pair, or null without a profile
+    private Map<String, Long> profile;
+    private long calls;
+    private Set<String> kept = new HashSet<>();
+
+    private Map<String, Frame> frames;
+    private Map<String, List<Stm>> bodies;
+    // call sites left to each procedure, anywhere
+    private Map<String, Integer> callers;
+    private Map<String, Boolean> done;
+    private Map<String, Set<Temp>> exposed;
+    private int budget;
+
+    private static class Site {
+        final int at;
+        final String callee;
+        final int size;
+        final long count;
+
+        Site(int at, String callee, int size, long count) {
+            this.at = at;
+            this.callee = callee;
+            this.size = size;
+            this.count = count;
+        }
+    }
+
+    /** Makes the call counts of a profiling run drive the choice of calls. */
+    public void setProfile(Map<String, Long> profile) {
+        this.profile = profile;
+        calls = 0;
+        for (long count : profile.values())
+            calls += count;
+    }
+
+    /** Keeps a procedure a table names, which indirect calls may reach. */
+    public void keep(String procedure) {
+        kept.add(procedure);
+    }
+
+    /**
+     * Returns the bodies of the procedures the first one, the entry, or a
+     * table still reaches, with calls inlined; the bodies given are not
+     * changed.
+     */
+    public Map<Frame, List<Stm>> apply(Map<Frame, List<Stm>> procedures) {
+        sites = 0;
+        nodes = 0;
+        dropped = 0;
+        frames = new LinkedHashMap<>();
+        bodies = new HashMap<>();
+        callers = new HashMap<>();
+        done = new HashMap<>();
+        exposed = new HashMap<>();
+        int total = 0;
+        for (Map.Entry<Frame, List<Stm>> e : procedures.entrySet()) {
+            String name = e.getKey().label.toString();
+            frames.put(name, e.getKey());
+            bodies.put(name, e.getValue());
+            total += size(e.getValue());
+            for (String callee : callees(e.getValue()))
+                callers.merge(callee, 1, Integer::sum);
+        }
+        // a table is one more caller, one that never goes away
+        for (String name : kept)
+            callers.merge(name, 1, Integer::sum);
+        budget = Math.max(MIN_BUDGET, (int) (total * GROWTH));
+
+        for (String name : frames.keySet()) {
+            if (!done.containsKey(name))
+                visit(name);
+        }
+
+        // what the entry reaches through the calls left
+        Set<String> reached = new HashSet<>();
+        ArrayDeque<String> work = new ArrayDeque<>();
+        if (!frames.isEmpty()) {
+            String entry = frames.keySet().iterator().next();
+            reached.add(entry);
+            work.push(entry);
+        }
+        for (String name : kept) {
+            if (frames.containsKey(name) && reached.add(name))
+                work.push(name);
+        }
+        while (!work.isEmpty()) {
+            for (String callee : callees(bodies.get(work.pop()))) {
+                if (frames.containsKey(callee) && reached.add(callee))
+                    work.push(callee);
+            }
+        }
+        Map<Frame, List<Stm>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Frame> e : frames.entrySet()) {
+            if (reached.contains(e.getKey()))
+                result.put(e.getValue(), bodies.get(e.getKey()));
+            else
+                dropped++;
+        }
+        return result;
+    }
+
+    private void visit(String name) {
+        done.put(name, false);
+        for (String callee : callees(bodies.get(name))) {
+            if (frames.containsKey(callee) && !done.containsKey(callee))
+                visit(callee);
+        }
+        bodies.put(name, inline(name, bodies.get(name)));
+        done.put(name, true);
+    }
+
+    private List<Stm> inline(String caller, List<Stm> stms) {
+        List<Site> candidates = new ArrayList<>();
+        for (int i = 0; i < stms.size(); i++) {
+            CALL call = call(stms.get(i));
+            if (call == null)
+                continue;
+            String callee = ((NAME) call.func).label.toString();
+            if (!done.getOrDefault(callee, false) || !inlinable(callee, call))
+                continue;
+            int size = size(bodies.get(callee));
+            long count = profile == null ? -1 : profile.getOrDefault(caller + " " + callee, 0L);
+            if (worth(callee, size, count, size(stms.get(i))))
+                candidates.add(new Site(i, callee, size, count));
+        }
+        if (candidates.isEmpty())
+            return stms;
+
+        // the hottest and then the smallest first, while the budget lasts
+        candidates.sort(Comparator.comparingLong((Site s) -> -s.count).thenComparingInt(s -> s.size));
+        int callerSize = size(stms);
+        Map<Integer, String> chosen = new HashMap<>();
+        for (Site site : candidates) {
+            int growth = site.size - size(stms.get(site.at));
+            if (nodes + growth > budget || callerSize + growth > CALLER_LIMIT)
+                continue;
+            chosen.put(site.at, site.callee);
+            nodes += growth;
+            callerSize += growth;
+        }
+
+        List<Stm> result = new ArrayList<>(stms.size());
+        for (int i = 0; i < stms.size(); i++) {
+            String callee = chosen.get(i);
+            if (callee == null) {
+                result.add(stms.get(i));
+                continue;
+            }
+            result.addAll(expand(stms.get(i), callee));
+            sites++;
+            callers.merge(callee, -1, Integer::sum);
+            for (String c : callees(bodies.get(callee)))
+                callers.merge(c, 1, Integer::sum);
+        }
+        return result;
+    }
+
+    private boolean worth(String callee, int size, long count, int callSize) {
+        // no growth at all for a call that never ran
+        if (count == 0)
+            return size <= callSize;
+        if (size <= SMALL)
+            return true;
+        if (size > LARGE)
+            return false;
+        return callers.getOrDefault(callee, 0) == 1 || count > 0 && count >= HOT * calls;
+    }
+
+    // whether the callee's formals are all temps the call can be given
+    private boolean inlinable(String callee, CALL call) {
+        Frame frame = frames.get(callee);
+        if (call.args.size() != frame.formals.size())
+            return false;
+        for (Access formal : frame.formals) {
+            if (!(formal instanceof InReg))
+                return false;
+        }
+        Set<Temp> read = new HashSet<>();
+        for (Stm stm : bodies.get(callee))
+            temps(stm, read);
+        return !read.contains(frame.FP());
+    }
+
+    /**
+     * The callee's body in place of a call to it: its arguments moved into
+     * fresh formals, a renamed copy of the body, and its result moved to
+     * the call's temp.
+     */
+    private List<Stm> expand(Stm stm, String callee) {
+        Frame frame = frames.get(callee);
+        List<Stm> body = bodies.get(callee);
+        CALL call = call(stm);
+        Map<Temp, Temp> temps = new HashMap<>();
+        Map<String, Label> labels = new HashMap<>();
+        for (Stm s : body) {
+            if (s instanceof LABEL)
+                labels.put(((LABEL) s).label.toString(), new Label());
+        }
+
+        List<Stm> result = new ArrayList<>(body.size() + frame.formals.size() + 1);
+        Set<Temp> formals = new HashSet<>();
+        Iterator<Exp> args = call.args.iterator();
+        for (Access formal : frame.formals) {
+            Temp t = ((InReg) formal).temp;
+            formals.add(t);
+            result.add(Trees.tagged(new MOVE(new TEMP(rename(t, temps)), args.next()), stm));
+        }
+        List<Temp> unset = new ArrayList<>(exposed.computeIfAbsent(callee, k -> {
+            // the result is read on the way out
+            List<Stm> returning = new ArrayList<>(body);
+            returning.add(new EXPR(new TEMP(frame.RV())));
+            return new ControlFlow(returning).exposed();
+        }));
+        unset.removeAll(formals);
+        unset.sort(Comparator.comparingInt(t -> t.num));
+        for (Temp t : unset)
+            result.add(Trees.tagged(new MOVE(new TEMP(rename(t, temps)), new CONST(0)), stm));
+        for (Stm s : body)
+            result.add(copy(s, temps, labels));
+        if (stm instanceof MOVE)
+            result.add(Trees.tagged(new MOVE(((MOVE) stm).dst, new TEMP(rename(frame.RV(), temps))), stm));
+        return result;
+    }
+
+    private static Temp rename(Temp t, Map<Temp, Temp> temps) {
+        return temps.computeIfAbsent(t, k -> new Temp());
+    }
+
+    private static Label relabel(Label l, Map<String, Label> labels) {
+        return labels.getOrDefault(l.toString(), l);
+    }
+
+    private static Stm copy(Stm stm, Map<Temp, Temp> temps, Map<String, Label> labels) {
+        Stm copied;
+        if (stm instanceof LABEL) {
+            copied = new LABEL(relabel(((LABEL) stm).label, labels));
+        } else if (stm instanceof JUMP) {
+            JUMP jump = (JUMP) stm;
+            LinkedList<Label> targets = new LinkedList<>();
+            for (Label l : jump.targets)
+                targets.add(relabel(l, labels));
+            copied = new JUMP(copy(jump.exp, temps, labels), targets);
+        } else if (stm instanceof CJUMP) {
+            CJUMP cjump = (CJUMP) stm;
+            copied = new CJUMP(cjump.relop, copy(cjump.left, temps, labels), copy(cjump.right, temps, labels),
+                               relabel(cjump.iftrue, labels), relabel(cjump.iffalse, labels));
+        } else if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+            MOVE move = (MOVE) stm;
+            copied = new MOVE(copy(move.dst, temps, labels), copy(move.src, temps, labels));
+        } else {
+            LinkedList<Exp> kids = new LinkedList<>();
+            for (Exp kid : stm.kids())
+                kids.add(copy(kid, temps, labels));
+            copied = stm.build(kids);
+        }
+        return Trees.tagged(copied, stm);
+    }
+
+    private static Exp copy(Exp exp, Map<Temp, Temp> temps, Map<String, Label> labels) {
+        Exp copied;
+        if (exp instanceof TEMP) {
+            copied = new TEMP(rename(((TEMP) exp).temp, temps));
+        } else if (exp instanceof NAME) {
+            // procedures keep their names
+            Label l = ((NAME) exp).label;
+            copied = labels.containsKey(l.toString()) ? new NAME(labels.get(l.toString())) : exp;
+        } else if (exp instanceof CONST) {
+            copied = exp;
+        } else {
+            LinkedList<Exp> kids = new LinkedList<>();
+            for (Exp kid : exp.kids())
+                kids.add(copy(kid, temps, labels));
+            copied = exp.build(kids);
+        }
+        return Trees.tagged(copied, exp);
+    }
+
+    // the call of a canonical statement, if it makes one
+    private static CALL call(Stm stm) {
+        Exp exp = null;
+        if (stm instanceof EXPR)
+            exp = ((EXPR) stm).exp;
+        else if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+            exp = ((MOVE) stm).src;
+        return exp instanceof CALL && ((CALL) exp).func instanceof NAME ? (CALL) exp : null;
+    }
+
+    // the procedures a body calls, once per call, in order
+    private static List<String> callees(List<Stm> stms) {
+        List<String> callees = new ArrayList<>();
+        for (Stm stm : stms) {
+            CALL call = call(stm);
+            if (call != null)
+                callees.add(((NAME) call.func).label.toString());
+        }
+        return callees;
+    }
+
+    private static void temps(Stm stm, Set<Temp> into) {
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+            into.add(((TEMP) ((MOVE) stm).dst).temp);
+        if (stm instanceof LABEL)
+            return;
+        for (Exp kid : stm.kids())
+            temps(kid, into);
+    }
+
+    private static void temps(Exp exp, Set<Temp> into) {
+        if (exp instanceof TEMP) {
+            into.add(((TEMP) exp).temp);
+        } else if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                temps(kid, into);
+        }
+    }
+
+    // tree nodes of the statements, labels aside
+    private static int size(List<Stm> stms) {
+        int size = 0;
+        for (Stm stm : stms)
+            size += size(stm);
+        return size;
+    }
+
+    private static int size(Stm stm) {
+        if (stm instanceof LABEL)
+            return 0;
+        int size = stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP ? 2 : 1;
+        for (Exp kid : stm.kids())
+            size += size(kid);
+        return size;
+    }
+
+    private static int size(Exp exp) {
+        int size = 1;
+        if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                size += size(kid);
+        }
+        return size;
+    }
+
+    /**
+     * Reads a profile written by {@link #writeProfile}: a caller, a callee
+     * and the calls between them per line.
+     */
+    public static Map<String, Long> readProfile(Reader in) throws IOException {
+        Map<String, Long> profile = new HashMap<>();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length != 3)
+                continue;
+            try {
+                profile.merge(fields[0] + " " + fields[1], Long.parseLong(fields[2]), Long::sum);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad call profile line: " + line);
+            }
+        }
+        return profile;
+    }
+
+    /** Writes call counts keyed "caller callee", one pair per line. */
+    public static void writeProfile(Map<String, Long> profile, Writer out) {
+        PrintWriter writer = new PrintWriter(out);
+        List<String> pairs = new ArrayList<>(profile.keySet());
+        Collections.sort(pairs);
+        for (String pair : pairs)
+            writer.println(pair + " " + profile.get(pair));
+        writer.flush();
+    }
+}
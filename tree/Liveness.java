@@ -0,0 +1,75 @@
+package tree;
+
+import frame.Temp;
+import tree.node.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The temps live at the start and at the end of each block of a canonical
+ * body: those some path from there reads before assigning them.
+ */
+public class Liveness extends Dataflow {
+    public final ControlFlow cfg;
+    public final Temps temps;
+
+    public Liveness(ControlFlow cfg) {
+        super(cfg, false, false);
+        this.cfg = cfg;
+        temps = new Temps(cfg.stms);
+        sets(temps.size());
+        for (int b = 0; b < cfg.size(); b++) {
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                Stm stm = cfg.stms.get(i);
+                if (stm instanceof LABEL)
+                    continue;
+                for (Exp kid : stm.kids())
+                    reads(kid, gen[b], kill[b]);
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                    set(kill[b], temps.indexOf(((TEMP) ((MOVE) stm).dst).temp));
+            }
+        }
+        solve();
+    }
+
+    // a read is live at the start of its block unless the block assigned
+    // the temp before
+    private void reads(Exp exp, long[] gen, long[] kill) {
+        if (exp instanceof TEMP) {
+            int id = temps.indexOf(((TEMP) exp).temp);
+            if (!get(kill, id))
+                set(gen, id);
+        } else if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                reads(kid, gen, kill);
+        }
+    }
+
+    public boolean isLiveIn(int b, Temp t) {
+        int id = temps.indexOf(t);
+        return id >= 0 && get(in[b], id);
+    }
+
+    public boolean isLiveOut(int b, Temp t) {
+        int id = temps.indexOf(t);
+        return id >= 0 && get(out[b], id);
+    }
+
+    public Set<Temp> liveIn(int b) {
+        return temps(in[b]);
+    }
+
+    public Set<Temp> liveOut(int b) {
+        return temps(out[b]);
+    }
+
+    private Set<Temp> temps(long[] set) {
+        Set<Temp> result = new HashSet<>();
+        for (int w = 0; w < words; w++) {
+            for (long word = set[w]; word != 0; word &= word - 1)
+                result.add(temps.get(w << 6 | Long.numberOfTrailingZeros(word)));
+        }
+        return result;
+    }
+}
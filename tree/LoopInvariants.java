@@ -0,0 +1,276 @@
+package tree;
+
+import frame.Label;
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Loop-invariant code motion over a canonical body (see {@link Canon}),
+ * innermost loops first. An expression is invariant in a loop when no temp
+ * it reads is assigned in the loop and, for a load, when the loop makes no
+ * call (but to the runtime) and no store that may alias it; a store at
+ * base + c only spares loads at base + d, d != c. Divisions are never
+ * moved, since they may fault.
+ *
+ * Invariant expressions are computed once into temps by a preheader, which
+ * every entry into the loop goes through. Those of the header are computed
+ * before a copy of the header's test, which then skips the loop or goes
+ * straight on to its body; those of the rest of the loop after it, so a
+ * loop that runs no iteration loads nothing. A load is only moved out of a
+ * block every iteration of the body runs, so no load happens that would not
+ * have happened anyway.
+ *
+ * One operator over leaves is left alone, as in {@link ValueNumbering}:
+ * the move to hold it costs what it saves.
+ */
+public class LoopInvariants {
+    /** Expressions moved out of loops by the last {@link #apply}. */
+    public int hoisted;
+    /** Loops given a preheader by the last {@link #apply}. */
+    public int loops;
+
+    // what one loop assigns and stores
+    private ControlFlow cfg;
+    private Loops.Loop loop;
+    private Set<Temp> defined;
+    private List<Exp> stores;
+    private boolean calls;
+
+    // invariants moved out of the loop, by shape, and the preheader
+    // statements computing them before and after the copied test
+    private Map<String, Temp> holders;
+    private List<Stm> before, after;
+
+    /**
+     * Returns the body with invariants moved out of its loops; the body
+     * given is not changed.
+     */
+    public List<Stm> apply(List<Stm> body) {
+        hoisted = 0;
+        loops = 0;
+        List<Stm> stms = new ArrayList<>(body);
+        Set<String> done = new HashSet<>();
+        while (true) {
+            cfg = new ControlFlow(stms);
+            Loops nest = new Loops(cfg);
+            // loops come after those holding them, so the last one left
+            // holds none that is left
+            Loops.Loop next = null;
+            for (Loops.Loop l : nest.loops) {
+                if (!done.contains(name(l.header)))
+                    next = l;
+            }
+            if (next == null)
+                return stms;
+            done.add(name(next.header));
+            stms = hoist(stms, next);
+        }
+    }
+
+    private String name(int block) {
+        return ((LABEL) cfg.stms.get(cfg.start[block])).label.toString();
+    }
+
+    private List<Stm> hoist(List<Stm> stms, Loops.Loop loop) {
+        this.loop = loop;
+        int h = loop.header;
+        if (!(cfg.last(h) instanceof CJUMP))
+            return stms;
+        CJUMP test = (CJUMP) cfg.last(h);
+        boolean trueIn = contains(cfg.blockOf(test.iftrue));
+        if (trueIn == contains(cfg.blockOf(test.iffalse)))
+            return stms;
+
+        defined = new HashSet<>();
+        stores = new ArrayList<>();
+        calls = false;
+        BitSet exiting = new BitSet();
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                Stm stm = stms.get(i);
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                    defined.add(((TEMP) ((MOVE) stm).dst).temp);
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM)
+                    stores.add(((MEM) ((MOVE) stm).dst).exp);
+                if (stm instanceof MOVE && ValueNumbering.isCall(((MOVE) stm).src)
+                        || stm instanceof EXPR && ValueNumbering.isCall(((EXPR) stm).exp))
+                    calls = true;
+            }
+            for (int s : cfg.succs[b]) {
+                if (!loop.contains(s))
+                    exiting.set(b);
+            }
+        }
+
+        holders = new HashMap<>();
+        before = new ArrayList<>();
+        after = new ArrayList<>();
+        Stm[] rewritten = new Stm[stms.size()];
+        int count = hoisted;
+        // the header first, so what it computes is computed before the test
+        List<Integer> blocks = new ArrayList<>();
+        blocks.add(h);
+        for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1)) {
+            if (b != h)
+                blocks.add(b);
+        }
+        for (int b : blocks) {
+            boolean loads = b == h || runsEveryIteration(b, exiting);
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++)
+                rewritten[i] = rewrite(stms.get(i), loads, b == h ? before : after);
+        }
+        if (hoisted == count)
+            return stms;
+        loops++;
+
+        List<Stm> preheader = new ArrayList<>(before);
+        Label entry = null;
+        if (!after.isEmpty()) {
+            // the header once more, leaving for the body through the rest
+            Label into = trueIn ? test.iftrue : test.iffalse;
+            Label out = trueIn ? test.iffalse : test.iftrue;
+            Label body = new Label();
+            for (int i = cfg.start[h]; i < cfg.start[h + 1] - 1; i++) {
+                if (!(stms.get(i) instanceof LABEL))
+                    preheader.add(copy(rewritten[i]));
+            }
+            CJUMP cjump = (CJUMP) rewritten[cfg.start[h + 1] - 1];
+            preheader.add(new CJUMP(trueIn ? CJUMP.notRel(cjump.relop) : cjump.relop,
+                                    copy(cjump.left), copy(cjump.right), out, body));
+            preheader.add(new LABEL(body));
+            preheader.addAll(after);
+            entry = into;
+        }
+
+        List<Stm> result = new ArrayList<>(stms.size());
+        for (int i = 0; i < stms.size(); i++)
+            result.add(rewritten[i] != null ? rewritten[i] : stms.get(i));
+        return Loops.enter(cfg, loop, result, preheader, entry);
+    }
+
+    private boolean contains(int block) {
+        return block >= 0 && loop.contains(block);
+    }
+
+    // whether the block runs in every iteration that gets past the header
+    private boolean runsEveryIteration(int b, BitSet exiting) {
+        for (int latch : loop.latches) {
+            if (!cfg.dominates(b, latch))
+                return false;
+        }
+        for (int x = exiting.nextSetBit(0); x >= 0; x = exiting.nextSetBit(x + 1)) {
+            if (x != loop.header && !cfg.dominates(b, x))
+                return false;
+        }
+        return true;
+    }
+
+    private Stm rewrite(Stm stm, boolean loads, List<Stm> into) {
+        if (stm instanceof LABEL)
+            return stm;
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : stm.kids())
+            kids.add(rewrite(kid, loads, into));
+        return Trees.tagged(stm.build(kids), stm);
+    }
+
+    private Exp rewrite(Exp exp, boolean loads, List<Stm> into) {
+        if (Trees.isLeaf(exp))
+            return exp;
+        if ((exp instanceof MEM || exp instanceof BINOP && !isCheap(exp))
+                && isInvariant(exp, loads)) {
+            String key = key(exp);
+            Temp holder = holders.get(key);
+            if (holder == null) {
+                holder = new Temp();
+                holders.put(key, holder);
+                into.add(new MOVE(new TEMP(holder), copy(exp)));
+                hoisted++;
+            }
+            return new TEMP(holder);
+        }
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : exp.kids())
+            kids.add(rewrite(kid, loads, into));
+        return Trees.tagged(exp.build(kids), exp);
+    }
+
+    private static boolean isCheap(Exp exp) {
+        return Trees.isLeaf(((BINOP) exp).left)
+            && Trees.isLeaf(((BINOP) exp).right);
+    }
+
+    private boolean isInvariant(Exp exp, boolean loads) {
+        if (exp instanceof CONST || exp instanceof NAME)
+            return true;
+        if (exp instanceof TEMP)
+            return !defined.contains(((TEMP) exp).temp);
+        if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            return b.binop != BINOP.DIV && isInvariant(b.left, loads) && isInvariant(b.right, loads);
+        }
+        if (exp instanceof MEM) {
+            Exp address = ((MEM) exp).exp;
+            if (!loads || calls || !isInvariant(address, true))
+                return false;
+            for (Exp store : stores) {
+                if (mayAlias(store, address))
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean mayAlias(Exp a, Exp b) {
+        return !key(base(a)).equals(key(base(b))) || offset(a) == offset(b);
+    }
+
+    private static Exp base(Exp address) {
+        if (address instanceof BINOP && ((BINOP) address).binop == BINOP.PLUS
+                && ((BINOP) address).right instanceof CONST)
+            return ((BINOP) address).left;
+        return address;
+    }
+
+    private static int offset(Exp address) {
+        return base(address) == address ? 0 : ((CONST) ((BINOP) address).right).value;
+    }
+
+    // the shape of an expression; two with the same shape and invariant
+    // leaves have the same value in the loop
+    static String key(Exp exp) {
+        if (exp instanceof CONST)
+            return Integer.toString(((CONST) exp).value);
+        if (exp instanceof TEMP)
+            return ((TEMP) exp).temp.toString();
+        if (exp instanceof NAME)
+            return ((NAME) exp).label.toString();
+        if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            return "(" + key(b.left) + " " + b.binop + " " + key(b.right) + ")";
+        }
+        if (exp instanceof MEM)
+            return "[" + key(((MEM) exp).exp) + "]";
+        // never invariant, so never equal to anything
+        return "?" + System.identityHashCode(exp);
+    }
+
+    static Stm copy(Stm stm) {
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : stm.kids())
+            kids.add(copy(kid));
+        return Trees.tagged(stm.build(kids), stm);
+    }
+
+    static Exp copy(Exp exp) {
+        if (Trees.isLeaf(exp))
+            return exp;
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : exp.kids())
+            kids.add(copy(kid));
+        return Trees.tagged(exp.build(kids), exp);
+    }
+}
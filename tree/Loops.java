@@ -0,0 +1,175 @@
+package tree;
+
+import frame.Label;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * The natural loops of a {@link ControlFlow}: for each back edge, an edge
+ * to a block that dominates its source, the header and every block that
+ * reaches the source without going through the header. Back edges to the
+ * same header make one loop.
+ *
+ * Loops are nested by containment; {@link #roots} are the outermost.
+ */
+public class Loops {
+    public static class Loop {
+        public final int header;
+        public final BitSet blocks = new BitSet();
+        /** Sources of the back edges. */
+        public final List<Integer> latches = new ArrayList<>();
+        public Loop parent;
+        public final List<Loop> children = new ArrayList<>();
+        /** 1 for an outermost loop. */
+        public int depth;
+
+        Loop(int header) {
+            this.header = header;
+            blocks.set(header);
+        }
+
+        public boolean contains(int block) {
+            return blocks.get(block);
+        }
+    }
+
+    /** Every loop, each after the loops containing it. */
+    public final List<Loop> loops = new ArrayList<>();
+    public final List<Loop> roots = new ArrayList<>();
+    private final Loop[] innermost;
+
+    public Loops(ControlFlow cfg) {
+        int n = cfg.size();
+        HashMap<Integer, Loop> byHeader = new HashMap<>();
+        for (int b = 0; b < n; b++) {
+            for (int h : cfg.succs[b]) {
+                if (!cfg.dominates(h, b))
+                    continue;
+                Loop loop = byHeader.computeIfAbsent(h, Loop::new);
+                loop.latches.add(b);
+                ArrayDeque<Integer> work = new ArrayDeque<>();
+                if (!loop.blocks.get(b)) {
+                    loop.blocks.set(b);
+                    work.push(b);
+                }
+                while (!work.isEmpty()) {
+                    for (int p : cfg.preds[work.pop()]) {
+                        // blocks the entry does not reach are in no loop
+                        if (!loop.blocks.get(p) && (p == 0 || cfg.idom[p] >= 0)) {
+                            loop.blocks.set(p);
+                            work.push(p);
+                        }
+                    }
+                }
+            }
+        }
+
+        // a loop holding another is larger, so the smallest loop holding a
+        // header is its parent
+        loops.addAll(byHeader.values());
+        loops.sort(Comparator.comparingInt((Loop l) -> -l.blocks.cardinality())
+                             .thenComparingInt(l -> l.header));
+        innermost = new Loop[n];
+        for (Loop loop : loops) {
+            Loop parent = innermost[loop.header];
+            loop.parent = parent;
+            loop.depth = parent == null ? 1 : parent.depth + 1;
+            if (parent == null)
+                roots.add(loop);
+            else
+                parent.children.add(loop);
+            for (int b = loop.blocks.nextSetBit(0); b >= 0; b = loop.blocks.nextSetBit(b + 1))
+                innermost[b] = loop;
+        }
+    }
+
+    /** The innermost loop holding a block, or null. */
+    public Loop innermost(int block) {
+        return innermost[block];
+    }
+
+    /**
+     * Returns the body with code run on every entry into a loop: jumps into
+     * the header from outside go to a new preheader instead, which runs the
+     * code and goes on to continueAt, or the header when that is null. The
+     * body holds the statements of cfg, where only the loop's own may have
+     * been rewritten.
+     */
+    public static List<Stm> enter(ControlFlow cfg, Loop loop, List<Stm> stms,
+                                  List<Stm> code, Label continueAt) {
+        int h = loop.header;
+        Label pre = new Label();
+        Label header = ((LABEL) stms.get(cfg.start[h])).label;
+        List<Stm> preheader = new ArrayList<>();
+        preheader.add(new LABEL(pre));
+        preheader.addAll(code);
+        if (continueAt == null)
+            continueAt = header;
+
+        Set<String> headerLabels = new HashSet<>();
+        for (int i = cfg.start[h]; i < cfg.start[h + 1] && stms.get(i) instanceof LABEL; i++)
+            headerLabels.add(((LABEL) stms.get(i)).label.toString());
+        List<Stm> body = new ArrayList<>(stms);
+        for (int p : cfg.preds[h]) {
+            if (!loop.contains(p)) {
+                int i = cfg.start[p + 1] - 1;
+                body.set(i, retarget(body.get(i), headerLabels, pre));
+            }
+        }
+
+        List<Stm> result = new ArrayList<>(body.size() + preheader.size() + 3);
+        for (int i = 0; i < body.size(); i++) {
+            if (i == cfg.start[h] && !fallsInFromLoop(cfg, loop, headerLabels)) {
+                if (continueAt != header)
+                    preheader.add(new JUMP(continueAt));
+                result.addAll(preheader);
+                preheader = null;
+            }
+            result.add(body.get(i));
+        }
+        if (preheader != null) {
+            // the loop falls into its header, so the preheader goes last,
+            // where nothing falls into it
+            Label end = null;
+            if (!result.isEmpty() && !(result.get(result.size() - 1) instanceof JUMP)) {
+                end = new Label();
+                result.add(new JUMP(end));
+            }
+            result.addAll(preheader);
+            result.add(new JUMP(continueAt));
+            if (end != null)
+                result.add(new LABEL(end));
+        }
+        return result;
+    }
+
+    // whether the block before the header is in the loop and falls into it
+    private static boolean fallsInFromLoop(ControlFlow cfg, Loop loop, Set<String> headerLabels) {
+        int h = loop.header;
+        if (h == 0 || !loop.contains(h - 1))
+            return false;
+        Stm last = cfg.last(h - 1);
+        if (last instanceof JUMP)
+            return false;
+        return !(last instanceof CJUMP)
+            || headerLabels.contains(((CJUMP) last).iffalse.toString());
+    }
+
+    private static Stm retarget(Stm stm, Set<String> from, Label to) {
+        Stm retargeted = stm;
+        if (stm instanceof JUMP) {
+            JUMP jump = (JUMP) stm;
+            if (jump.exp instanceof NAME && from.contains(((NAME) jump.exp).label.toString()))
+                retargeted = new JUMP(to);
+        } else if (stm instanceof CJUMP) {
+            CJUMP cjump = (CJUMP) stm;
+            Label t = from.contains(cjump.iftrue.toString()) ? to : cjump.iftrue;
+            Label f = from.contains(cjump.iffalse.toString()) ? to : cjump.iffalse;
+            retargeted = new CJUMP(cjump.relop, cjump.left, cjump.right, t, f);
+        }
+        if (retargeted != stm)
+            retargeted.tag = stm.tag;
+        return retargeted;
+    }
+}
@@ -0,0 +1,112 @@
+package tree;
+
+import frame.Temp;
+import tree.node.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The assignments to temps that may reach the start and the end of each
+ * block of a canonical body: those some path from them gets there along
+ * without assigning the temp again. Each is numbered in the order of the
+ * body; temps the body reads before any assignment have none reaching.
+ */
+public class ReachingDefinitions extends Dataflow {
+    public final ControlFlow cfg;
+    public final Temps temps = new Temps();
+    /** The statement of each assignment, by its number. */
+    public final int[] defs;
+    // the assignments to each temp, by temp number
+    private final List<List<Integer>> assigns = new ArrayList<>();
+
+    public ReachingDefinitions(ControlFlow cfg) {
+        super(cfg, true, false);
+        this.cfg = cfg;
+        List<Integer> statements = new ArrayList<>();
+        for (int i = 0; i < cfg.stms.size(); i++) {
+            Temp t = assigned(cfg.stms.get(i));
+            if (t == null)
+                continue;
+            int id = temps.number(t);
+            if (id == assigns.size())
+                assigns.add(new ArrayList<>());
+            assigns.get(id).add(statements.size());
+            statements.add(i);
+        }
+        defs = new int[statements.size()];
+        for (int d = 0; d < defs.length; d++)
+            defs[d] = statements.get(d);
+
+        sets(defs.length);
+        // the block that last killed each temp, and its last assignment there
+        int[] killed = new int[temps.size()], last = new int[temps.size()];
+        long[][] masks = new long[temps.size()][];
+        Arrays.fill(killed, -1);
+        int d = 0;
+        for (int b = 0; b < cfg.size(); b++) {
+            for (; d < defs.length && defs[d] < cfg.start[b + 1]; d++) {
+                int id = temps.indexOf(assigned(cfg.stms.get(defs[d])));
+                if (killed[id] != b) {
+                    kill(kill[b], id, masks);
+                    killed[id] = b;
+                } else {
+                    clear(gen[b], last[id]);
+                }
+                set(gen[b], d);
+                last[id] = d;
+            }
+        }
+        solve();
+    }
+
+    // all the assignments to a temp; as a mask of them when they are more
+    // than the words of a set
+    private void kill(long[] kill, int id, long[][] masks) {
+        List<Integer> all = assigns.get(id);
+        if (all.size() <= words) {
+            for (int d : all)
+                set(kill, d);
+            return;
+        }
+        if (masks[id] == null) {
+            masks[id] = new long[words];
+            for (int d : all)
+                set(masks[id], d);
+        }
+        for (int w = 0; w < words; w++)
+            kill[w] |= masks[id][w];
+    }
+
+    /**
+     * The statements assigning a temp whose assignment may reach statement
+     * i, just before it runs.
+     */
+    public List<Integer> reaching(int i, Temp t) {
+        List<Integer> result = new ArrayList<>();
+        int id = temps.indexOf(t);
+        if (id < 0)
+            return result;
+        int b = Arrays.binarySearch(cfg.start, 0, cfg.size(), i);
+        if (b < 0)
+            b = -b - 2;
+        for (int j = i - 1; j >= cfg.start[b]; j--) {
+            if (t.equals(assigned(cfg.stms.get(j)))) {
+                result.add(j);
+                return result;
+            }
+        }
+        for (int d : assigns.get(id)) {
+            if (get(in[b], d))
+                result.add(defs[d]);
+        }
+        return result;
+    }
+
+    private static Temp assigned(Stm stm) {
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+            return ((TEMP) ((MOVE) stm).dst).temp;
+        return null;
+    }
+}
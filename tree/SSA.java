@@ -0,0 +1,801 @@
+package tree;
+
+import frame.Frame;
+import frame.Label;
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Static single assignment form of a canonical body (see {@link Canon}),
+ * for sparse passes such as {@link SparseConstants} and
+ * {@link SparseValueNumbering} to work on, and the way back to plain moves.
+ *
+ * Phis go at the iterated dominance frontiers of the blocks assigning a
+ * temp, for the temps some block reads before assigning them, and a walk
+ * of the dominator tree renames every assignment to a fresh temp, a
+ * version of the temp assigned. A temp read before any assignment, such as
+ * a formal, is its own first version. Phis nothing reads in the end are
+ * dropped, and unreachable blocks keep only their labels. The return value
+ * is read once more after the body, so that its last version reaches the
+ * end.
+ *
+ * {@link #destruct} coalesces the versions a phi or a copy joins into one
+ * temp whenever their live ranges do not overlap, which leaves those copies
+ * out; a phi still joining versions apart becomes copies at the end of
+ * each predecessor, made as one parallel copy, on an edge of its own when
+ * the predecessor branches elsewhere too.
+ */
+public class SSA {
+    /** A phi at the top of a block. */
+    public static class Phi {
+        public Temp dst;
+        /**
+         * One argument for each predecessor in {@link ControlFlow#preds}: a
+         * TEMP, a CONST, or null for one the entry does not reach.
+         */
+        public final Exp[] args;
+        final Temp variable;
+
+        Phi(Temp variable, int preds) {
+            this.variable = variable;
+            dst = variable;
+            args = new Exp[preds];
+        }
+    }
+
+    public final ControlFlow cfg;
+    /** The statements of each block, after its phis. */
+    public final List<List<Stm>> code = new ArrayList<>();
+    public final List<List<Phi>> phis = new ArrayList<>();
+    /** The children of each block in the dominator tree. */
+    public final int[][] children;
+
+    /** Phis left by the construction. */
+    public int placed;
+    /** Copies {@link #destruct} coalesced away. */
+    public int coalesced;
+    /** Copies {@link #destruct} had to make. */
+    public int copies;
+
+    // the temp each version is of; those read before any assignment are
+    // their own, and not in it
+    private final Map<Temp, Temp> variables = new HashMap<>();
+    private final Temp rv;
+    // whether a block was put ahead of the entry, as the body jumps back to
+    // one of the labels it starts with
+    private final boolean entered;
+
+    /** Puts the body of a procedure in SSA form; the body is not changed. */
+    public SSA(Frame frame, List<Stm> body) {
+        rv = frame.RV();
+        List<Stm> stms = new ArrayList<>(body.size() + 3);
+        // consecutive labels make one block, so any of them may be the one
+        // jumped to
+        entered = !body.isEmpty() && new ControlFlow(body).preds[0].length > 0;
+        if (entered) {
+            // the entry block must have no predecessors, for the versions
+            // read before any assignment to reach every phi
+            stms.add(new LABEL(new Label()));
+            stms.add(new JUMP(((LABEL) body.get(0)).label));
+        }
+        stms.addAll(body);
+        stms.add(new EXPR(new TEMP(rv)));
+        cfg = new ControlFlow(stms);
+
+        int n = cfg.size();
+        for (int b = 0; b < n; b++) {
+            code.add(new ArrayList<>());
+            phis.add(new ArrayList<>());
+        }
+        children = dominatorTree();
+        place();
+        rename();
+        prune();
+    }
+
+    private int[][] dominatorTree() {
+        int n = cfg.size();
+        List<List<Integer>> tree = new ArrayList<>();
+        for (int b = 0; b < n; b++)
+            tree.add(new ArrayList<>());
+        for (int b = 1; b < n; b++) {
+            if (cfg.idom[b] >= 0)
+                tree.get(cfg.idom[b]).add(b);
+        }
+        int[][] children = new int[n][];
+        for (int b = 0; b < n; b++) {
+            children[b] = new int[tree.get(b).size()];
+            for (int k = 0; k < children[b].length; k++)
+                children[b][k] = tree.get(b).get(k);
+        }
+        return children;
+    }
+
+    /** Whether the entry reaches the block. */
+    public boolean reachable(int b) {
+        return b == 0 || cfg.idom[b] >= 0;
+    }
+
+    /** The position of p among the predecessors of s, which phi arguments follow. */
+    public int predIndex(int s, int p) {
+        int[] preds = cfg.preds[s];
+        for (int k = 0; k < preds.length; k++) {
+            if (preds[k] == p)
+                return k;
+        }
+        return -1;
+    }
+
+    /**
+     * The blocks a block goes on to as its code is now: the targets of its
+     * last jump, or the next block.
+     */
+    public int[] successors(int b) {
+        List<Stm> stms = code.get(b);
+        Stm last = stms.isEmpty() ? null : stms.get(stms.size() - 1);
+        if (last instanceof JUMP) {
+            List<Label> targets = ((JUMP) last).targets;
+            int[] succs = new int[targets.size()];
+            for (int k = 0; k < succs.length; k++)
+                succs[k] = cfg.blockOf(targets.get(k));
+            return succs;
+        }
+        if (last instanceof CJUMP) {
+            int t = cfg.blockOf(((CJUMP) last).iftrue), f = cfg.blockOf(((CJUMP) last).iffalse);
+            return t == f ? new int[] { t } : new int[] { t, f };
+        }
+        return b + 1 < cfg.size() ? new int[] { b + 1 } : new int[0];
+    }
+
+    // phis for the temps read in some block before it assigns them
+    private void place() {
+        int n = cfg.size();
+        Map<Temp, List<Integer>> assigning = new LinkedHashMap<>();
+        Set<Temp> global = new HashSet<>();
+        for (int b = 0; b < n; b++) {
+            if (!reachable(b))
+                continue;
+            Set<Temp> assigned = new HashSet<>();
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++) {
+                Stm stm = cfg.stms.get(i);
+                Set<Temp> read = new HashSet<>();
+                ControlFlow.reads(stm, read);
+                for (Temp t : read) {
+                    if (!assigned.contains(t))
+                        global.add(t);
+                }
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+                    Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+                    if (assigned.add(t))
+                        assigning.computeIfAbsent(t, k -> new ArrayList<>()).add(b);
+                }
+            }
+        }
+
+        int[][] frontiers = cfg.frontiers();
+        int[] placedFor = new int[n], queuedFor = new int[n];
+        int stamp = 0;
+        for (Map.Entry<Temp, List<Integer>> entry : assigning.entrySet()) {
+            if (!global.contains(entry.getKey()))
+                continue;
+            stamp++;
+            ArrayDeque<Integer> work = new ArrayDeque<>();
+            for (int b : entry.getValue()) {
+                queuedFor[b] = stamp;
+                work.add(b);
+            }
+            while (!work.isEmpty()) {
+                for (int f : frontiers[work.poll()]) {
+                    if (placedFor[f] != stamp) {
+                        placedFor[f] = stamp;
+                        phis.get(f).add(new Phi(entry.getKey(), cfg.preds[f].length));
+                    }
+                    if (queuedFor[f] != stamp) {
+                        queuedFor[f] = stamp;
+                        work.add(f);
+                    }
+                }
+            }
+        }
+    }
+
+    private final Map<Temp, Temp> current = new HashMap<>();
+    private final List<Temp> undoVariable = new ArrayList<>();
+    private final List<Temp> undoVersion = new ArrayList<>();
+
+    // a walk of the dominator tree, which undoes the versions a block
+    // made current when it is left
+    private void rename() {
+        int n = cfg.size();
+        int[] marks = new int[n];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int b = work.pop();
+            if (b < 0) {
+                b = ~b;
+                for (int u = undoVariable.size() - 1; u >= marks[b]; u--) {
+                    Temp previous = undoVersion.remove(u);
+                    Temp variable = undoVariable.remove(u);
+                    if (previous != null)
+                        current.put(variable, previous);
+                    else
+                        current.remove(variable);
+                }
+                continue;
+            }
+            marks[b] = undoVariable.size();
+            for (Phi phi : phis.get(b))
+                phi.dst = define(phi.variable);
+            List<Stm> stms = code.get(b);
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++)
+                stms.add(rename(cfg.stms.get(i)));
+            for (int s : cfg.succs[b]) {
+                int k = predIndex(s, b);
+                for (Phi phi : phis.get(s))
+                    phi.args[k] = new TEMP(current.getOrDefault(phi.variable, phi.variable));
+            }
+            work.push(~b);
+            for (int c = children[b].length - 1; c >= 0; c--)
+                work.push(children[b][c]);
+        }
+
+        // unreachable blocks keep their labels, for the jumps left to them
+        for (int b = 0; b < n; b++) {
+            if (reachable(b))
+                continue;
+            for (int i = cfg.start[b]; i < cfg.start[b + 1] && cfg.stms.get(i) instanceof LABEL; i++)
+                code.get(b).add(cfg.stms.get(i));
+        }
+    }
+
+    private Temp define(Temp variable) {
+        Temp version = new Temp();
+        variables.put(version, variable);
+        undoVariable.add(variable);
+        undoVersion.add(current.get(variable));
+        current.put(variable, version);
+        return version;
+    }
+
+    private Stm rename(Stm stm) {
+        if (stm instanceof LABEL)
+            return stm;
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+            Exp src = rename(((MOVE) stm).src);
+            Temp version = define(((TEMP) ((MOVE) stm).dst).temp);
+            return Trees.tagged(new MOVE(Trees.tagged(new TEMP(version), ((MOVE) stm).dst), src), stm);
+        }
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : stm.kids())
+            kids.add(rename(kid));
+        return Trees.tagged(stm.build(kids), stm);
+    }
+
+    private Exp rename(Exp exp) {
+        if (exp instanceof TEMP) {
+            Temp version = current.get(((TEMP) exp).temp);
+            return version != null ? Trees.tagged(new TEMP(version), exp) : exp;
+        }
+        if (Trees.isLeaf(exp))
+            return exp;
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : exp.kids())
+            kids.add(rename(kid));
+        return Trees.tagged(exp.build(kids), exp);
+    }
+
+    // drops the phis only other dropped phis read
+    private void prune() {
+        Map<Temp, Phi> phiOf = new HashMap<>();
+        for (List<Phi> block : phis) {
+            for (Phi phi : block)
+                phiOf.put(phi.dst, phi);
+        }
+        Set<Temp> live = new HashSet<>();
+        ArrayDeque<Temp> work = new ArrayDeque<>();
+        for (List<Stm> block : code) {
+            for (Stm stm : block) {
+                Set<Temp> read = new HashSet<>();
+                ControlFlow.reads(stm, read);
+                for (Temp t : read) {
+                    if (phiOf.containsKey(t) && live.add(t))
+                        work.push(t);
+                }
+            }
+        }
+        while (!work.isEmpty()) {
+            for (Exp arg : phiOf.get(work.pop()).args) {
+                if (arg instanceof TEMP && phiOf.containsKey(((TEMP) arg).temp) && live.add(((TEMP) arg).temp))
+                    work.push(((TEMP) arg).temp);
+            }
+        }
+        for (List<Phi> block : phis)
+            block.removeIf(phi -> !live.contains(phi.dst));
+        placed = live.size();
+    }
+
+    // destruction: versions by dense number, with where each is assigned:
+    // at a statement, at -1 for a phi, or at -2 of the entry for those read
+    // before any assignment
+    private Temps temps;
+    private int[] defBlock, defIndex;
+    // the last statement of each block reading each version
+    private List<Map<Integer, Integer>> lastUse;
+    private long[][] liveOut;
+    // preorder and postorder numbers in the dominator tree
+    private int[] pre, post;
+    private int[] parent, nextMember, entryMember;
+
+    /**
+     * Returns the body out of SSA form, with copies for the phis that are
+     * left.
+     */
+    public List<Stm> destruct() {
+        coalesced = 0;
+        copies = 0;
+        int n = cfg.size();
+        int[][] succs = new int[n][];
+        for (int b = 0; b < n; b++)
+            succs[b] = successors(b);
+        boolean[] reached = new boolean[n];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        reached[0] = true;
+        work.push(0);
+        while (!work.isEmpty()) {
+            for (int s : succs[work.pop()]) {
+                if (s >= 0 && !reached[s]) {
+                    reached[s] = true;
+                    work.push(s);
+                }
+            }
+        }
+
+        number(reached);
+        liveness(succs, reached);
+        dominatorOrder();
+        coalesce(succs, reached);
+        Temp[] names = names();
+
+        List<Stm> result = new ArrayList<>();
+        for (int b = 0; b < n; b++) {
+            List<Stm> stms = code.get(b);
+            if (!reached[b]) {
+                for (int i = 0; i < stms.size() && stms.get(i) instanceof LABEL; i++)
+                    result.add(stms.get(i));
+                continue;
+            }
+            int size = result.size();
+            Stm last = stms.isEmpty() ? null : stms.get(stms.size() - 1);
+            int end = last instanceof JUMP || last instanceof CJUMP ? stms.size() - 1 : stms.size();
+            for (int i = 0; i < end; i++) {
+                Stm stm = stms.get(i);
+                if (b == n - 1 && i == stms.size() - 1 && stm instanceof EXPR
+                        && !(((EXPR) stm).exp instanceof CALL)) {
+                    // the read of the return value after the body
+                    Exp value = rename(((EXPR) stm).exp, names);
+                    if (!(value instanceof TEMP) || !((TEMP) value).temp.equals(rv))
+                        result.add(new MOVE(new TEMP(rv), value));
+                    continue;
+                }
+                Stm renamed = rename(stm, names);
+                if (renamed instanceof MOVE && ((MOVE) renamed).dst instanceof TEMP
+                        && ((MOVE) renamed).src instanceof TEMP
+                        && ((TEMP) ((MOVE) renamed).dst).temp.equals(((TEMP) ((MOVE) renamed).src).temp)) {
+                    coalesced++;
+                    continue;
+                }
+                result.add(renamed);
+            }
+            if (last instanceof CJUMP) {
+                split(b, (CJUMP) rename(last, names), names, result);
+            } else {
+                for (int s : succs[b])
+                    result.addAll(copies(b, s, names));
+                if (last instanceof JUMP)
+                    result.add(rename(last, names));
+            }
+            // the block put ahead of the entry, if it still only jumps
+            if (b == 0 && entered && result.size() == size + 2)
+                result.subList(size, size + 2).clear();
+        }
+        return result;
+    }
+
+    // copies on the edges out of a conditional jump go on edges of their
+    // own, the false one first to keep it next to the jump
+    private void split(int b, CJUMP cjump, Temp[] names, List<Stm> into) {
+        List<Stm> onTrue = copies(b, cfg.blockOf(cjump.iftrue), names);
+        List<Stm> onFalse = copies(b, cfg.blockOf(cjump.iffalse), names);
+        if (onFalse.isEmpty() && !onTrue.isEmpty()) {
+            cjump = Trees.tagged(new CJUMP(CJUMP.notRel(cjump.relop), cjump.left, cjump.right,
+                                                    cjump.iffalse, cjump.iftrue), cjump);
+            List<Stm> swap = onTrue;
+            onTrue = onFalse;
+            onFalse = swap;
+        }
+        Label iftrue = cjump.iftrue, iffalse = cjump.iffalse;
+        Label newTrue = onTrue.isEmpty() ? iftrue : new Label();
+        Label newFalse = onFalse.isEmpty() ? iffalse : new Label();
+        into.add(Trees.tagged(new CJUMP(cjump.relop, cjump.left, cjump.right, newTrue, newFalse), cjump));
+        if (!onFalse.isEmpty()) {
+            into.add(new LABEL(newFalse));
+            into.addAll(onFalse);
+            into.add(new JUMP(iffalse));
+        }
+        if (!onTrue.isEmpty()) {
+            into.add(new LABEL(newTrue));
+            into.addAll(onTrue);
+            into.add(new JUMP(iftrue));
+        }
+    }
+
+    // the phis of s on the edge from b, made one parallel copy
+    private List<Stm> copies(int b, int s, Temp[] names) {
+        List<Stm> result = new ArrayList<>();
+        if (s < 0 || phis.get(s).isEmpty())
+            return result;
+        int k = predIndex(s, b);
+        List<Temp> dsts = new ArrayList<>();
+        List<Exp> srcs = new ArrayList<>();
+        for (Phi phi : phis.get(s)) {
+            Temp dst = names[find(temps.indexOf(phi.dst))];
+            Exp src = rename(phi.args[k], names);
+            if (src instanceof TEMP && ((TEMP) src).temp.equals(dst)) {
+                coalesced++;
+                continue;
+            }
+            dsts.add(dst);
+            srcs.add(src);
+        }
+        copies += dsts.size();
+
+        // a copy goes once no other reads what it overwrites; a cycle is
+        // broken by saving one of the temps in it
+        while (!dsts.isEmpty()) {
+            int ready = -1;
+            for (int c = 0; c < dsts.size() && ready < 0; c++) {
+                boolean read = false;
+                for (int d = 0; d < srcs.size() && !read; d++)
+                    read = d != c && srcs.get(d) instanceof TEMP && ((TEMP) srcs.get(d)).temp.equals(dsts.get(c));
+                if (!read)
+                    ready = c;
+            }
+            if (ready < 0) {
+                Temp saved = new Temp(), dst = dsts.get(0);
+                result.add(new MOVE(new TEMP(saved), new TEMP(dst)));
+                copies++;
+                for (int d = 0; d < srcs.size(); d++) {
+                    if (srcs.get(d) instanceof TEMP && ((TEMP) srcs.get(d)).temp.equals(dst))
+                        srcs.set(d, new TEMP(saved));
+                }
+                continue;
+            }
+            result.add(new MOVE(new TEMP(dsts.remove(ready)), srcs.remove(ready)));
+        }
+        return result;
+    }
+
+    private int id(Temp t) {
+        int id = temps.indexOf(t);
+        if (id >= 0)
+            return id;
+        id = temps.number(t);
+        if (id == defBlock.length) {
+            defBlock = Arrays.copyOf(defBlock, id * 2);
+            defIndex = Arrays.copyOf(defIndex, id * 2);
+        }
+        defIndex[id] = -2;
+        return id;
+    }
+
+    private void number(boolean[] reached) {
+        int n = cfg.size();
+        temps = new Temps();
+        defBlock = new int[16];
+        defIndex = new int[16];
+        lastUse = new ArrayList<>();
+        for (int b = 0; b < n; b++) {
+            Map<Integer, Integer> last = new HashMap<>();
+            lastUse.add(last);
+            if (!reached[b])
+                continue;
+            for (Phi phi : phis.get(b)) {
+                int id = id(phi.dst);
+                defBlock[id] = b;
+                defIndex[id] = -1;
+            }
+            List<Stm> stms = code.get(b);
+            for (int i = 0; i < stms.size(); i++) {
+                Stm stm = stms.get(i);
+                List<Temp> read = new ArrayList<>();
+                reads(stm, read);
+                for (Temp t : read)
+                    last.put(id(t), i);
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+                    int id = id(((TEMP) ((MOVE) stm).dst).temp);
+                    defBlock[id] = b;
+                    defIndex[id] = i;
+                }
+            }
+        }
+        for (int b = 0; b < n; b++) {
+            if (!reached[b])
+                continue;
+            for (Phi phi : phis.get(b)) {
+                for (Exp arg : phi.args) {
+                    if (arg instanceof TEMP)
+                        id(((TEMP) arg).temp);
+                }
+            }
+        }
+    }
+
+    private static void reads(Stm stm, List<Temp> into) {
+        if (stm instanceof LABEL)
+            return;
+        for (Exp kid : stm.kids())
+            reads(kid, into);
+    }
+
+    private static void reads(Exp exp, List<Temp> into) {
+        if (exp instanceof TEMP) {
+            into.add(((TEMP) exp).temp);
+        } else if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                reads(kid, into);
+        }
+    }
+
+    /**
+     * Versions live at the end of each block: those a successor reads
+     * before assigning, phis aside, and the arguments of its phis for the
+     * edge.
+     */
+    private void liveness(int[][] succs, boolean[] reached) {
+        liveOut = new Live(succs, reached).out;
+    }
+
+    private class Live extends Dataflow {
+        // the phi arguments for each edge, in the order of the successors
+        private final long[][][] args;
+
+        Live(int[][] succs, boolean[] reached) {
+            super(succs, false, false);
+            int n = succs.length;
+            sets(temps.size());
+            args = new long[n][][];
+            for (int b = 0; b < n; b++) {
+                if (!reached[b])
+                    continue;
+                for (Phi phi : phis.get(b))
+                    set(kill[b], temps.indexOf(phi.dst));
+                for (Stm stm : code.get(b)) {
+                    List<Temp> read = new ArrayList<>();
+                    reads(stm, read);
+                    for (Temp t : read) {
+                        int id = temps.indexOf(t);
+                        if (!get(kill[b], id))
+                            set(gen[b], id);
+                    }
+                    if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                        set(kill[b], temps.indexOf(((TEMP) ((MOVE) stm).dst).temp));
+                }
+                args[b] = new long[succs[b].length][];
+                for (int k = 0; k < succs[b].length; k++) {
+                    int s = succs[b][k];
+                    if (s < 0 || phis.get(s).isEmpty())
+                        continue;
+                    args[b][k] = new long[words];
+                    int p = predIndex(s, b);
+                    for (Phi phi : phis.get(s)) {
+                        if (phi.args[p] instanceof TEMP)
+                            set(args[b][k], temps.indexOf(((TEMP) phi.args[p]).temp));
+                    }
+                }
+            }
+            solve();
+        }
+
+        @Override
+        protected long[] edge(int from, int to) {
+            if (args[from] == null)
+                return null;
+            for (int k = 0; k < succs[from].length; k++) {
+                if (succs[from][k] == to)
+                    return args[from][k];
+            }
+            return null;
+        }
+    }
+
+    private void dominatorOrder() {
+        int n = cfg.size();
+        pre = new int[n];
+        post = new int[n];
+        int[] next = new int[n];
+        int[] stack = new int[n];
+        int sp = 0, preCount = 0, postCount = 0;
+        stack[sp++] = 0;
+        pre[0] = preCount++;
+        while (sp > 0) {
+            int b = stack[sp - 1];
+            if (next[b] < children[b].length) {
+                int c = children[b][next[b]++];
+                pre[c] = preCount++;
+                stack[sp++] = c;
+            } else {
+                post[b] = postCount++;
+                sp--;
+            }
+        }
+    }
+
+    private boolean dominates(int a, int b) {
+        int x = defBlock[a], y = defBlock[b];
+        if (x == y)
+            return defIndex[a] <= defIndex[b];
+        return pre[x] < pre[y] && post[y] < post[x];
+    }
+
+    // whether a is still to be read once b is assigned
+    private boolean liveAfter(int a, int b) {
+        int block = defBlock[b];
+        if (Dataflow.get(liveOut[block], a))
+            return true;
+        Integer last = lastUse.get(block).get(a);
+        return last != null && last > defIndex[b];
+    }
+
+    // in SSA form, two versions live at once are live where the one whose
+    // assignment dominates the other's is assigned
+    private boolean interferes(int a, int b) {
+        return dominates(a, b) && liveAfter(a, b) || dominates(b, a) && liveAfter(b, a);
+    }
+
+    // the pairs of versions two classes may have before one copy between
+    // them is left rather than checked further
+    private static final int MAX_PAIRS = 1 << 14;
+
+    // classes of versions that share one temp, as a union-find whose
+    // members are linked in a ring
+    private void coalesce(int[][] succs, boolean[] reached) {
+        int count = temps.size();
+        parent = new int[count];
+        nextMember = new int[count];
+        entryMember = new int[count];
+        int[] size = new int[count];
+        for (int id = 0; id < count; id++) {
+            parent[id] = id;
+            nextMember[id] = id;
+            size[id] = 1;
+            entryMember[id] = variables.containsKey(temps.get(id)) ? -1 : id;
+        }
+
+        // phis first, then the copies the code holds
+        for (int b = 0; b < cfg.size(); b++) {
+            if (!reached[b])
+                continue;
+            for (Phi phi : phis.get(b)) {
+                for (int k = 0; k < phi.args.length; k++) {
+                    if (phi.args[k] instanceof TEMP && reached[cfg.preds[b][k]])
+                        union(temps.indexOf(phi.dst), temps.indexOf(((TEMP) phi.args[k]).temp), size);
+                }
+            }
+        }
+        for (int b = 0; b < cfg.size(); b++) {
+            if (!reached[b])
+                continue;
+            for (Stm stm : code.get(b)) {
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP && ((MOVE) stm).src instanceof TEMP)
+                    union(temps.indexOf(((TEMP) ((MOVE) stm).dst).temp), temps.indexOf(((TEMP) ((MOVE) stm).src).temp), size);
+            }
+        }
+    }
+
+    private int find(int id) {
+        while (parent[id] != id) {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    private void union(int a, int b, int[] size) {
+        int x = find(a), y = find(b);
+        if (x == y || entryMember[x] >= 0 && entryMember[y] >= 0
+                || (long) size[x] * size[y] > MAX_PAIRS)
+            return;
+        for (int m = x; ; ) {
+            for (int o = y; ; ) {
+                if (interferes(m, o))
+                    return;
+                o = nextMember[o];
+                if (o == y)
+                    break;
+            }
+            m = nextMember[m];
+            if (m == x)
+                break;
+        }
+        if (size[x] < size[y]) {
+            int swap = x;
+            x = y;
+            y = swap;
+        }
+        parent[y] = x;
+        size[x] += size[y];
+        if (entryMember[x] < 0)
+            entryMember[x] = entryMember[y];
+        int after = nextMember[x];
+        nextMember[x] = nextMember[y];
+        nextMember[y] = after;
+    }
+
+    /**
+     * The temp of each class, by its root: that of the version read before
+     * any assignment in it, else the temp its first version is of, unless
+     * another class has it.
+     */
+    private Temp[] names() {
+        int count = temps.size();
+        Temp[] names = new Temp[count];
+        Set<Temp> taken = new HashSet<>();
+        for (int id = 0; id < count; id++) {
+            if (entryMember[find(id)] == id) {
+                names[find(id)] = temps.get(id);
+                taken.add(temps.get(id));
+            }
+        }
+        for (int id = 0; id < count; id++) {
+            int root = find(id);
+            if (names[root] != null)
+                continue;
+            Temp variable = variables.get(temps.get(id));
+            names[root] = taken.add(variable) ? variable : new Temp();
+        }
+        return names;
+    }
+
+    private Stm rename(Stm stm, Temp[] names) {
+        if (stm instanceof LABEL)
+            return stm;
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+            Exp dst = rename(((MOVE) stm).dst, names);
+            Exp src = rename(((MOVE) stm).src, names);
+            if (dst == ((MOVE) stm).dst && src == ((MOVE) stm).src)
+                return stm;
+            return Trees.tagged(new MOVE(dst, src), stm);
+        }
+        LinkedList<Exp> kids = stm.kids();
+        boolean changed = false;
+        LinkedList<Exp> renamed = new LinkedList<>();
+        for (Exp kid : kids) {
+            Exp exp = rename(kid, names);
+            changed |= exp != kid;
+            renamed.add(exp);
+        }
+        return changed ? Trees.tagged(stm.build(renamed), stm) : stm;
+    }
+
+    private Exp rename(Exp exp, Temp[] names) {
+        if (exp instanceof TEMP) {
+            int id = temps.indexOf(((TEMP) exp).temp);
+            Temp name = id >= 0 ? names[find(id)] : ((TEMP) exp).temp;
+            return name.equals(((TEMP) exp).temp) ? exp : Trees.tagged(new TEMP(name), exp);
+        }
+        if (Trees.isLeaf(exp))
+            return exp;
+        LinkedList<Exp> kids = exp.kids();
+        boolean changed = false;
+        LinkedList<Exp> renamed = new LinkedList<>();
+        for (Exp kid : kids) {
+            Exp e = rename(kid, names);
+            changed |= e != kid;
+            renamed.add(e);
+        }
+        return changed ? Trees.tagged(exp.build(renamed), exp) : exp;
+    }
+}
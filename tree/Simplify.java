@@ -0,0 +1,343 @@
+package tree;
+
+import tree.node.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Constant folding and algebraic simplification. Works on any tree,
+ * canonical or not:
+ *
+ * - operators over constants are folded, as Java evaluates them;
+ * - chains of PLUS are reassociated with their constants summed last, so
+ *   (a + 4) + i * 4 becomes (a + (i << 2)) + 4, and a constant multiplier
+ *   is distributed over them, so (n + 1) * 4 becomes (n << 2) + 4;
+ * - multiplications by powers of two become LSHIFTs;
+ * - identities (x + 0, x * 1, 1 - (1 - x), ...) are dropped;
+ * - CJUMPs over two constants become JUMPs, and EQ/NE tests against a
+ *   constant absorb the constant the other side adds or subtracts.
+ *
+ * Operands are never reordered past one that has side effects, and no
+ * operand with side effects is dropped.
+ */
+public class Simplify {
+    private Simplify() {
+    }
+
+    public static List<Stm> simplify(List<Stm> stms) {
+        List<Stm> simplified = new ArrayList<>(stms.size());
+        for (Stm stm : stms) {
+            Stm s = simplify(stm);
+            if (!isNop(s))
+                simplified.add(s);
+        }
+        return simplified;
+    }
+
+    public static Stm simplify(Stm stm) {
+        if (stm instanceof SEQ) {
+            Stm left = simplify(((SEQ) stm).left);
+            Stm right = simplify(((SEQ) stm).right);
+            if (isNop(left))
+                return right;
+            if (isNop(right))
+                return left;
+            return Trees.tagged(new SEQ(left, right), stm);
+        }
+        if (stm instanceof CJUMP)
+            return cjump((CJUMP) stm);
+        if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            Exp dst = move.dst instanceof MEM
+                ? Trees.tagged(new MEM(simplify(((MEM) move.dst).exp)), move.dst)
+                : simplify(move.dst);
+            return Trees.tagged(new MOVE(dst, simplify(move.src)), stm);
+        }
+        if (stm instanceof EXPR) {
+            Exp exp = simplify(((EXPR) stm).exp);
+            if (isPure(exp) && !(exp instanceof CONST))
+                exp = new CONST(0);
+            return Trees.tagged(new EXPR(exp), stm);
+        }
+        if (stm instanceof JUMP) {
+            JUMP jump = (JUMP) stm;
+            return Trees.tagged(new JUMP(simplify(jump.exp), jump.targets), stm);
+        }
+        return stm;
+    }
+
+    public static Exp simplify(Exp exp) {
+        if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            return Trees.tagged(binop(b.binop, simplify(b.left), simplify(b.right)), exp);
+        }
+        if (exp instanceof MEM)
+            return Trees.tagged(new MEM(simplify(((MEM) exp).exp)), exp);
+        if (exp instanceof ESEQ) {
+            Stm stm = simplify(((ESEQ) exp).stm);
+            Exp value = simplify(((ESEQ) exp).exp);
+            if (isNop(stm))
+                return value;
+            return Trees.tagged(new ESEQ(stm, value), exp);
+        }
+        if (exp instanceof CALL) {
+            CALL call = (CALL) exp;
+            LinkedList<Exp> args = new LinkedList<>();
+            for (Exp arg : call.args)
+                args.add(simplify(arg));
+            return Trees.tagged(new CALL(call.func, args), exp);
+        }
+        return exp;
+    }
+
+    private static boolean isNop(Stm stm) {
+        return stm instanceof EXPR && ((EXPR) stm).exp instanceof CONST;
+    }
+
+    private static boolean isConst(Exp exp) {
+        return exp instanceof CONST;
+    }
+
+    private static boolean isConst(Exp exp, int value) {
+        return exp instanceof CONST && ((CONST) exp).value == value;
+    }
+
+    private static int value(Exp exp) {
+        return ((CONST) exp).value;
+    }
+
+    /**
+     * Whether evaluating the expression has no effect besides its value.
+     * Memory reads are not: they may fault.
+     */
+    static boolean isPure(Exp exp) {
+        if (exp instanceof CONST || exp instanceof TEMP || exp instanceof NAME)
+            return true;
+        if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            return b.binop != BINOP.DIV && isPure(b.left) && isPure(b.right);
+        }
+        return false;
+    }
+
+    // the value Java gives the operator, or null when it would throw
+    static Integer fold(int op, int a, int b) {
+        switch (op) {
+            case BINOP.PLUS:
+                return a + b;
+            case BINOP.MINUS:
+                return a - b;
+            case BINOP.MUL:
+                return a * b;
+            case BINOP.DIV:
+                return b == 0 ? null : a / b;
+            case BINOP.AND:
+                return a & b;
+            case BINOP.OR:
+                return a | b;
+            case BINOP.LSHIFT:
+                return a << b;
+            case BINOP.RSHIFT:
+                return a >>> b;
+            case BINOP.ARSHIFT:
+                return a >> b;
+            case BINOP.XOR:
+                return a ^ b;
+        }
+        return null;
+    }
+
+    private static boolean isCommutative(int op) {
+        return op == BINOP.PLUS || op == BINOP.MUL || op == BINOP.AND
+            || op == BINOP.OR || op == BINOP.XOR;
+    }
+
+    // builds left op right, both already simplified
+    private static Exp binop(int op, Exp left, Exp right) {
+        if (isConst(left) && isConst(right)) {
+            Integer folded = fold(op, value(left), value(right));
+            if (folded != null)
+                return new CONST(folded);
+        }
+        // constants go right; they have no effects to reorder
+        if (isConst(left) && !isConst(right) && isCommutative(op)) {
+            Exp swap = left;
+            left = right;
+            right = swap;
+        }
+
+        switch (op) {
+            case BINOP.PLUS:
+                return sum(left, right);
+            case BINOP.MINUS:
+                if (isConst(right))
+                    return sum(left, new CONST(-value(right)));
+                // c - (d - x) = x + (c - d), as not(not(x)) is
+                if (isConst(left) && right instanceof BINOP && ((BINOP) right).binop == BINOP.MINUS
+                        && isConst(((BINOP) right).left))
+                    return sum(((BINOP) right).right,
+                               new CONST(value(left) - value(((BINOP) right).left)));
+                break;
+            case BINOP.MUL:
+                if (!isConst(right))
+                    break;
+                int c = value(right);
+                if (c == 0 && isPure(left))
+                    return new CONST(0);
+                if (c == 1)
+                    return left;
+                // (x + a) * c = x * c + a * c
+                if (left instanceof BINOP && ((BINOP) left).binop == BINOP.PLUS
+                        && isConst(((BINOP) left).right))
+                    return sum(binop(BINOP.MUL, ((BINOP) left).left, right),
+                               new CONST(value(((BINOP) left).right) * c));
+                if (c > 0 && Integer.bitCount(c) == 1)
+                    return binop(BINOP.LSHIFT, left, new CONST(Integer.numberOfTrailingZeros(c)));
+                break;
+            case BINOP.DIV:
+                if (isConst(right, 1))
+                    return left;
+                break;
+            case BINOP.AND:
+                if (isConst(right, 0) && isPure(left))
+                    return new CONST(0);
+                if (isConst(right, -1))
+                    return left;
+                break;
+            case BINOP.OR:
+            case BINOP.XOR:
+                if (isConst(right, 0))
+                    return left;
+                break;
+            case BINOP.LSHIFT:
+            case BINOP.RSHIFT:
+            case BINOP.ARSHIFT:
+                if (!isConst(right))
+                    break;
+                if ((value(right) & 31) == 0)
+                    return left;
+                // (x << a) << b = x << (a + b)
+                if (left instanceof BINOP && ((BINOP) left).binop == op
+                        && isConst(((BINOP) left).right)) {
+                    int shift = (value(((BINOP) left).right) & 31) + (value(right) & 31);
+                    if (shift < 32)
+                        return new BINOP(op, ((BINOP) left).left, new CONST(shift));
+                }
+                break;
+        }
+        return new BINOP(op, left, right);
+    }
+
+    /**
+     * left + right with the terms of both PLUS chains kept in their order
+     * and every constant among them summed into one, added last.
+     */
+    private static Exp sum(Exp left, Exp right) {
+        List<Exp> terms = new ArrayList<>();
+        int[] constant = new int[1];
+        terms(left, terms, constant);
+        terms(right, terms, constant);
+
+        Exp sum = null;
+        for (Exp term : terms)
+            sum = sum == null ? term : new BINOP(BINOP.PLUS, sum, term);
+        if (sum == null)
+            return new CONST(constant[0]);
+        if (constant[0] != 0)
+            sum = new BINOP(BINOP.PLUS, sum, new CONST(constant[0]));
+        return sum;
+    }
+
+    private static void terms(Exp exp, List<Exp> terms, int[] constant) {
+        if (exp instanceof BINOP && ((BINOP) exp).binop == BINOP.PLUS) {
+            terms(((BINOP) exp).left, terms, constant);
+            terms(((BINOP) exp).right, terms, constant);
+        } else if (isConst(exp)) {
+            constant[0] += value(exp);
+        } else {
+            terms.add(exp);
+        }
+    }
+
+    // the relop that holds of (b, a) whenever relop holds of (a, b)
+    private static int mirror(int relop) {
+        switch (relop) {
+            case CJUMP.LT:
+                return CJUMP.GT;
+            case CJUMP.GT:
+                return CJUMP.LT;
+            case CJUMP.LE:
+                return CJUMP.GE;
+            case CJUMP.GE:
+                return CJUMP.LE;
+            case CJUMP.ULT:
+                return CJUMP.UGT;
+            case CJUMP.UGT:
+                return CJUMP.ULT;
+            case CJUMP.ULE:
+                return CJUMP.UGE;
+            case CJUMP.UGE:
+                return CJUMP.ULE;
+        }
+        return relop;
+    }
+
+    static boolean holds(int relop, int a, int b) {
+        switch (relop) {
+            case CJUMP.EQ:
+                return a == b;
+            case CJUMP.NE:
+                return a != b;
+            case CJUMP.LT:
+                return a < b;
+            case CJUMP.GT:
+                return a > b;
+            case CJUMP.LE:
+                return a <= b;
+            case CJUMP.GE:
+                return a >= b;
+            case CJUMP.ULT:
+                return Integer.compareUnsigned(a, b) < 0;
+            case CJUMP.UGT:
+                return Integer.compareUnsigned(a, b) > 0;
+            case CJUMP.ULE:
+                return Integer.compareUnsigned(a, b) <= 0;
+            case CJUMP.UGE:
+                return Integer.compareUnsigned(a, b) >= 0;
+        }
+        throw new Error("bad relop in Simplify.holds");
+    }
+
+    private static Stm cjump(CJUMP cjump) {
+        int relop = cjump.relop;
+        Exp left = simplify(cjump.left);
+        Exp right = simplify(cjump.right);
+
+        if (isConst(left) && isConst(right))
+            return Trees.tagged(new JUMP(holds(relop, value(left), value(right))
+                                   ? cjump.iftrue : cjump.iffalse), cjump);
+        if (isConst(left)) {
+            Exp swap = left;
+            left = right;
+            right = swap;
+            relop = mirror(relop);
+        }
+
+        // x + a == b is x == b - a, and a - x == b is x == a - b; both
+        // hold exactly in two's complement
+        if ((relop == CJUMP.EQ || relop == CJUMP.NE) && isConst(right)
+                && left instanceof BINOP) {
+            BINOP b = (BINOP) left;
+            if (b.binop == BINOP.PLUS && isConst(b.right)) {
+                left = b.left;
+                right = new CONST(value(right) - value(b.right));
+            } else if (b.binop == BINOP.MINUS && isConst(b.left)) {
+                left = b.right;
+                right = new CONST(value(b.left) - value(right));
+            }
+        }
+        return Trees.tagged(new CJUMP(relop, left, right, cjump.iftrue, cjump.iffalse), cjump);
+    }
+}
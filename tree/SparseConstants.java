@@ -0,0 +1,307 @@
+package tree;
+
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck) over
+ * {@link SSA} form. Each version starts unknown and only ever goes down to
+ * a constant and then to not constant, and each edge starts not taken: a
+ * block is looked at once the first edge into it is taken, a phi again for
+ * each edge taken into its block, and a statement again each time a
+ * version it reads goes down. Phis only meet the arguments of taken edges,
+ * and a conditional jump over constants only takes one, so a constant
+ * stays one past a test that would decide otherwise.
+ *
+ * Versions found constant are replaced by their value where they are read,
+ * and their assignments and phis dropped; the statements reading them are
+ * simplified, so a conditional jump over constants becomes a jump. Blocks
+ * no edge is taken into keep only their labels.
+ */
+public class SparseConstants {
+    /** Versions found constant by the last {@link #apply}. */
+    public int constants;
+    /** Conditional jumps made jumps by the last {@link #apply}. */
+    public int folded;
+    /** Blocks found unreachable by the last {@link #apply}. */
+    public int unreachable;
+
+    // the lattice, in the order versions go down it
+    private static final int UNKNOWN = 0, CONSTANT = 1, VARYING = 2;
+
+    private SSA ssa;
+    // the versions the form assigns
+    private Map<Temp, Integer> ids;
+    private int[] state, value;
+    // where each version is read: a block and a statement, or the
+    // complement of a phi
+    private List<List<int[]>> uses;
+    private boolean[][] taken;
+    private boolean[] visited;
+    private ArrayDeque<int[]> edges;
+    private ArrayDeque<Integer> lowered;
+    // the value of the expression last evaluated to a constant
+    private int result;
+
+    /** Propagates the constants of a body in SSA form, in place. */
+    public void apply(SSA ssa) {
+        this.ssa = ssa;
+        constants = 0;
+        folded = 0;
+        unreachable = 0;
+        int n = ssa.cfg.size();
+        ids = new HashMap<>();
+        for (int b = 0; b < n; b++) {
+            for (SSA.Phi phi : ssa.phis.get(b))
+                ids.put(phi.dst, ids.size());
+            for (Stm stm : ssa.code.get(b)) {
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                    ids.put(((TEMP) ((MOVE) stm).dst).temp, ids.size());
+            }
+        }
+        state = new int[ids.size()];
+        value = new int[ids.size()];
+        uses = new ArrayList<>(ids.size());
+        for (int v = 0; v < ids.size(); v++)
+            uses.add(new ArrayList<>());
+        taken = new boolean[n][];
+        for (int b = 0; b < n; b++) {
+            taken[b] = new boolean[ssa.cfg.preds[b].length];
+            List<SSA.Phi> phis = ssa.phis.get(b);
+            for (int k = 0; k < phis.size(); k++) {
+                for (Exp arg : phis.get(k).args)
+                    use(arg, b, ~k);
+            }
+            List<Stm> stms = ssa.code.get(b);
+            for (int i = 0; i < stms.size(); i++) {
+                Set<Temp> read = new HashSet<>();
+                ControlFlow.reads(stms.get(i), read);
+                for (Temp t : read)
+                    use(new TEMP(t), b, i);
+            }
+        }
+
+        visited = new boolean[n];
+        edges = new ArrayDeque<>();
+        lowered = new ArrayDeque<>();
+        edges.add(new int[] { -1, 0 });
+        while (!edges.isEmpty() || !lowered.isEmpty()) {
+            if (!edges.isEmpty()) {
+                int[] edge = edges.poll();
+                take(edge[0], edge[1]);
+                continue;
+            }
+            for (int[] site : uses.get(lowered.poll())) {
+                if (!visited[site[0]])
+                    continue;
+                if (site[1] < 0)
+                    evaluate(ssa.phis.get(site[0]).get(~site[1]), site[0]);
+                else
+                    evaluate(site[0], site[1]);
+            }
+        }
+        rewrite();
+    }
+
+    private void use(Exp arg, int b, int at) {
+        if (!(arg instanceof TEMP))
+            return;
+        Integer id = ids.get(((TEMP) arg).temp);
+        if (id != null)
+            uses.get(id).add(new int[] { b, at });
+    }
+
+    private void take(int p, int s) {
+        if (p >= 0) {
+            int k = ssa.predIndex(s, p);
+            if (k < 0 || taken[s][k])
+                return;
+            taken[s][k] = true;
+        } else if (visited[s]) {
+            return;
+        }
+        for (SSA.Phi phi : ssa.phis.get(s))
+            evaluate(phi, s);
+        if (visited[s])
+            return;
+        visited[s] = true;
+        List<Stm> stms = ssa.code.get(s);
+        for (int i = 0; i < stms.size(); i++)
+            evaluate(s, i);
+        Stm last = stms.isEmpty() ? null : stms.get(stms.size() - 1);
+        if (!(last instanceof JUMP) && !(last instanceof CJUMP) && s + 1 < ssa.cfg.size())
+            edges.add(new int[] { s, s + 1 });
+    }
+
+    private void evaluate(SSA.Phi phi, int b) {
+        int meet = UNKNOWN, met = 0;
+        for (int k = 0; k < phi.args.length && meet != VARYING; k++) {
+            if (!taken[b][k] || phi.args[k] == null)
+                continue;
+            int arg = evaluate(phi.args[k]);
+            if (arg == UNKNOWN)
+                continue;
+            if (arg == VARYING || meet == CONSTANT && result != met) {
+                meet = VARYING;
+            } else {
+                meet = CONSTANT;
+                met = result;
+            }
+        }
+        lower(ids.get(phi.dst), meet, met);
+    }
+
+    private void evaluate(int b, int i) {
+        Stm stm = ssa.code.get(b).get(i);
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+            int state = evaluate(((MOVE) stm).src);
+            lower(ids.get(((TEMP) ((MOVE) stm).dst).temp), state, result);
+        } else if (stm instanceof CJUMP) {
+            CJUMP cjump = (CJUMP) stm;
+            int left = evaluate(cjump.left), l = result;
+            int right = evaluate(cjump.right), r = result;
+            // an operand still unknown is taken as varying, which takes both
+            if (left == CONSTANT && right == CONSTANT) {
+                edge(b, Simplify.holds(cjump.relop, l, r) ? cjump.iftrue : cjump.iffalse);
+            } else {
+                edge(b, cjump.iftrue);
+                edge(b, cjump.iffalse);
+            }
+        } else if (stm instanceof JUMP) {
+            for (frame.Label target : ((JUMP) stm).targets)
+                edge(b, target);
+        }
+    }
+
+    private void edge(int b, frame.Label target) {
+        int s = ssa.cfg.blockOf(target);
+        if (s >= 0)
+            edges.add(new int[] { b, s });
+    }
+
+    private void lower(int v, int to, int constant) {
+        if (to == CONSTANT && state[v] == CONSTANT && value[v] != constant)
+            to = VARYING;
+        if (to <= state[v])
+            return;
+        state[v] = to;
+        value[v] = constant;
+        lowered.add(v);
+    }
+
+    // the state of an expression, with its value in result when constant
+    private int evaluate(Exp exp) {
+        if (exp instanceof CONST) {
+            result = ((CONST) exp).value;
+            return CONSTANT;
+        }
+        if (exp instanceof TEMP) {
+            Integer id = ids.get(((TEMP) exp).temp);
+            if (id == null)
+                return VARYING;
+            result = value[id];
+            return state[id];
+        }
+        if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            int left = evaluate(b.left), l = result;
+            int right = evaluate(b.right), r = result;
+            if (left == VARYING || right == VARYING)
+                return VARYING;
+            if (left == UNKNOWN || right == UNKNOWN)
+                return UNKNOWN;
+            Integer folded = Simplify.fold(b.binop, l, r);
+            if (folded == null)
+                return VARYING;
+            result = folded;
+            return CONSTANT;
+        }
+        return VARYING;
+    }
+
+    private void rewrite() {
+        int n = ssa.cfg.size();
+        for (int b = 0; b < n; b++) {
+            List<Stm> stms = ssa.code.get(b);
+            if (!visited[b]) {
+                if (ssa.reachable(b))
+                    unreachable++;
+                int labels = 0;
+                while (labels < stms.size() && stms.get(labels) instanceof LABEL)
+                    labels++;
+                stms.subList(labels, stms.size()).clear();
+                ssa.phis.get(b).clear();
+                continue;
+            }
+            Iterator<SSA.Phi> phis = ssa.phis.get(b).iterator();
+            while (phis.hasNext()) {
+                SSA.Phi phi = phis.next();
+                if (isConstant(phi.dst)) {
+                    phis.remove();
+                    constants++;
+                    continue;
+                }
+                for (int k = 0; k < phi.args.length; k++) {
+                    if (phi.args[k] instanceof TEMP && isConstant(((TEMP) phi.args[k]).temp))
+                        phi.args[k] = new CONST(value[ids.get(((TEMP) phi.args[k]).temp)]);
+                }
+            }
+            List<Stm> rewritten = new ArrayList<>(stms.size());
+            for (Stm stm : stms) {
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP
+                        && isConstant(((TEMP) ((MOVE) stm).dst).temp)) {
+                    // a constant is only computed from constants
+                    constants++;
+                    continue;
+                }
+                Stm replaced = replace(stm);
+                if (replaced != stm) {
+                    replaced = Simplify.simplify(replaced);
+                    if (stm instanceof CJUMP && replaced instanceof JUMP)
+                        folded++;
+                }
+                rewritten.add(replaced);
+            }
+            ssa.code.set(b, rewritten);
+        }
+    }
+
+    private boolean isConstant(Temp t) {
+        Integer id = ids.get(t);
+        return id != null && state[id] == CONSTANT;
+    }
+
+    private Stm replace(Stm stm) {
+        if (stm instanceof LABEL)
+            return stm;
+        LinkedList<Exp> kids = stm.kids();
+        LinkedList<Exp> replaced = new LinkedList<>();
+        boolean changed = false;
+        for (Exp kid : kids) {
+            Exp exp = replace(kid);
+            changed |= exp != kid;
+            replaced.add(exp);
+        }
+        return changed ? Trees.tagged(stm.build(replaced), stm) : stm;
+    }
+
+    private Exp replace(Exp exp) {
+        if (exp instanceof TEMP) {
+            Temp t = ((TEMP) exp).temp;
+            return isConstant(t) ? Trees.tagged(new CONST(value[ids.get(t)]), exp) : exp;
+        }
+        if (Trees.isLeaf(exp))
+            return exp;
+        LinkedList<Exp> kids = exp.kids();
+        LinkedList<Exp> replaced = new LinkedList<>();
+        boolean changed = false;
+        for (Exp kid : kids) {
+            Exp e = replace(kid);
+            changed |= e != kid;
+            replaced.add(e);
+        }
+        return changed ? Trees.tagged(exp.build(replaced), exp) : exp;
+    }
+}
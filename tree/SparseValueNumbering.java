@@ -0,0 +1,233 @@
+package tree;
+
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Dominator-based value numbering (Briggs, Cooper and Simpson) over
+ * {@link SSA} form. Since a version is assigned once, it stands for its
+ * value wherever it is read, and a walk of the dominator tree with one
+ * scoped table of the expressions computed so far finds every computation
+ * a dominating one makes redundant, without any state to copy or undo
+ * along paths.
+ *
+ * A version assigned a copy, or an expression its dominators already
+ * computed into another version, is replaced by that one where it is read
+ * and its assignment dropped; so is a phi whose arguments are all the same
+ * value, or the same as another phi of its block. Loads and calls are not
+ * numbered, since memory is not in SSA form.
+ */
+public class SparseValueNumbering {
+    /** Expressions found computed before by the last {@link #apply}. */
+    public int expressions;
+    /** Copies and phis of one value dropped by the last {@link #apply}. */
+    public int copies;
+
+    private SSA ssa;
+    // what to read instead of a version: a TEMP or a CONST
+    private final Map<Temp, Exp> leaders = new HashMap<>();
+    private final Map<String, Temp> table = new HashMap<>();
+    private final List<String> scope = new ArrayList<>();
+    // the versions assigned in the form, and those the walk went past
+    private final Set<Temp> assigned = new HashSet<>();
+    private final Set<Temp> seen = new HashSet<>();
+
+    /** Numbers the values of a body in SSA form, in place. */
+    public void apply(SSA ssa) {
+        this.ssa = ssa;
+        expressions = 0;
+        copies = 0;
+        leaders.clear();
+        table.clear();
+        scope.clear();
+        assigned.clear();
+        seen.clear();
+        for (List<SSA.Phi> phis : ssa.phis) {
+            for (SSA.Phi phi : phis)
+                assigned.add(phi.dst);
+        }
+        for (List<Stm> stms : ssa.code) {
+            for (Stm stm : stms) {
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                    assigned.add(((TEMP) ((MOVE) stm).dst).temp);
+            }
+        }
+
+        int n = ssa.cfg.size();
+        int[] marks = new int[n];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int b = work.pop();
+            if (b < 0) {
+                for (int k = scope.size() - 1; k >= marks[~b]; k--)
+                    table.remove(scope.remove(k));
+                continue;
+            }
+            marks[b] = scope.size();
+            number(b);
+            work.push(~b);
+            int[] children = ssa.children[b];
+            for (int c = children.length - 1; c >= 0; c--)
+                work.push(children[c]);
+        }
+
+        // arguments on edges back up the tree were read before their
+        // leaders were all known
+        for (List<SSA.Phi> phis : ssa.phis) {
+            for (SSA.Phi phi : phis) {
+                for (int k = 0; k < phi.args.length; k++)
+                    phi.args[k] = phi.args[k] != null ? leader(phi.args[k]) : null;
+            }
+        }
+    }
+
+    private void number(int b) {
+        Iterator<SSA.Phi> phis = ssa.phis.get(b).iterator();
+        while (phis.hasNext()) {
+            SSA.Phi phi = phis.next();
+            seen.add(phi.dst);
+            String key = key(phi, b);
+            Exp same = same(phi);
+            Temp computed = key != null ? table.get(key) : null;
+            if (same != null || computed != null) {
+                leaders.put(phi.dst, same != null ? same : new TEMP(computed));
+                phis.remove();
+                copies++;
+            } else if (key != null) {
+                enter(key, phi.dst);
+            }
+        }
+
+        List<Stm> stms = ssa.code.get(b);
+        List<Stm> numbered = new ArrayList<>(stms.size());
+        for (Stm stm : stms) {
+            stm = replace(stm);
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+                Temp dst = ((TEMP) ((MOVE) stm).dst).temp;
+                Exp src = ((MOVE) stm).src;
+                seen.add(dst);
+                if (src instanceof TEMP || src instanceof CONST) {
+                    leaders.put(dst, src);
+                    copies++;
+                    continue;
+                }
+                String key = key(src);
+                if (key != null) {
+                    Temp computed = table.get(key);
+                    if (computed != null) {
+                        leaders.put(dst, new TEMP(computed));
+                        expressions++;
+                        continue;
+                    }
+                    enter(key, dst);
+                }
+            }
+            numbered.add(stm);
+        }
+        ssa.code.set(b, numbered);
+    }
+
+    private void enter(String key, Temp value) {
+        table.put(key, value);
+        scope.add(key);
+    }
+
+    // the value every argument of a phi is, itself aside, or null
+    private Exp same(SSA.Phi phi) {
+        Exp same = null;
+        for (Exp arg : phi.args) {
+            if (arg == null)
+                continue;
+            arg = leader(arg);
+            if (arg instanceof TEMP && ((TEMP) arg).temp.equals(phi.dst))
+                continue;
+            if (same != null && !key(arg).equals(key(same)))
+                return null;
+            same = arg;
+        }
+        return same;
+    }
+
+    // a phi is only the same as another of its block; null when an
+    // argument is not known yet
+    private String key(SSA.Phi phi, int b) {
+        StringBuilder key = new StringBuilder("phi").append(b);
+        for (Exp arg : phi.args) {
+            if (arg instanceof TEMP && assigned.contains(((TEMP) arg).temp)
+                    && !seen.contains(((TEMP) arg).temp))
+                return null;
+            key.append(' ').append(arg == null ? "_" : key(leader(arg)));
+        }
+        return key.toString();
+    }
+
+    private Exp leader(Exp exp) {
+        while (exp instanceof TEMP && leaders.containsKey(((TEMP) exp).temp))
+            exp = leaders.get(((TEMP) exp).temp);
+        return exp;
+    }
+
+    /**
+     * The key of an expression over leaders, the same for every expression
+     * of the same value; null for loads and calls, and what holds them.
+     */
+    private static String key(Exp exp) {
+        if (exp instanceof TEMP)
+            return ((TEMP) exp).temp.toString();
+        if (exp instanceof CONST)
+            return "#" + ((CONST) exp).value;
+        if (exp instanceof NAME)
+            return ((NAME) exp).label.toString();
+        if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            String l = key(b.left), r = key(b.right);
+            if (l == null || r == null)
+                return null;
+            if ((b.binop == BINOP.PLUS || b.binop == BINOP.MUL || b.binop == BINOP.AND
+                    || b.binop == BINOP.OR || b.binop == BINOP.XOR) && r.compareTo(l) < 0) {
+                String swap = l;
+                l = r;
+                r = swap;
+            }
+            return "(" + b.binop + " " + l + " " + r + ")";
+        }
+        return null;
+    }
+
+    private Stm replace(Stm stm) {
+        if (stm instanceof LABEL)
+            return stm;
+        LinkedList<Exp> kids = stm.kids();
+        LinkedList<Exp> replaced = new LinkedList<>();
+        boolean changed = false;
+        for (Exp kid : kids) {
+            Exp exp = replace(kid);
+            changed |= exp != kid;
+            replaced.add(exp);
+        }
+        return changed ? Trees.tagged(stm.build(replaced), stm) : stm;
+    }
+
+    private Exp replace(Exp exp) {
+        if (exp instanceof TEMP) {
+            Exp leader = leader(exp);
+            return leader != exp ? Trees.tagged(leader instanceof TEMP
+                                                ? new TEMP(((TEMP) leader).temp)
+                                                : new CONST(((CONST) leader).value), exp) : exp;
+        }
+        if (Trees.isLeaf(exp))
+            return exp;
+        LinkedList<Exp> kids = exp.kids();
+        LinkedList<Exp> replaced = new LinkedList<>();
+        boolean changed = false;
+        for (Exp kid : kids) {
+            Exp e = replace(kid);
+            changed |= e != kid;
+            replaced.add(e);
+        }
+        return changed ? Trees.tagged(exp.build(replaced), exp) : exp;
+    }
+}
@@ -0,0 +1,233 @@
+package tree;
+
+import frame.*;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Tail-call elimination over a canonical body (see {@link Canon}). A call
+ * of the procedure to itself whose result is only copied on to the return
+ * value, through moves between temps, labels and jumps, becomes moves of
+ * its arguments into the formals and a jump back to the entry. Temps the
+ * body may read before assigning are zeroed first, as a fresh register
+ * window would have them.
+ *
+ * A recursion such as n * f(n - 1), whose result is combined with a value
+ * computed from temps by an associative and commutative operator (PLUS or
+ * MUL, which wrap around) before it is returned, is turned into a loop too,
+ * through an accumulator: the value is folded into it instead, and every
+ * return combines it with the accumulator. Only one operator is taken per
+ * procedure, that of the first such call.
+ */
+public class TailCalls {
+    /** Self tail calls made jumps by the last {@link #apply}. */
+    public int eliminated;
+    /** Of those, the ones that needed an accumulator. */
+    public int accumulated;
+
+    private List<Stm> stms;
+    private Map<String, Integer> labels;
+
+    /**
+     * Returns the body of the procedure with its self tail calls made
+     * jumps; the body given is not changed.
+     */
+    public List<Stm> apply(Frame frame, List<Stm> body) {
+        eliminated = 0;
+        accumulated = 0;
+        List<Temp> formals = new ArrayList<>();
+        for (Access formal : frame.formals) {
+            if (!(formal instanceof InReg))
+                return body;
+            formals.add(((InReg) formal).temp);
+        }
+        stms = body;
+        labels = new HashMap<>();
+        for (int i = 0; i < stms.size(); i++) {
+            if (stms.get(i) instanceof LABEL)
+                labels.put(((LABEL) stms.get(i)).label.toString(), i);
+        }
+
+        // the calls, and for those through the accumulator the statement
+        // combining their result
+        Map<Integer, Integer> sites = new TreeMap<>();
+        int op = -1;
+        for (int i = 0; i < stms.size(); i++) {
+            CALL call = selfCall(stms.get(i), frame);
+            if (call == null || call.args.size() != formals.size())
+                continue;
+            Temp result = ((TEMP) ((MOVE) stms.get(i)).dst).temp;
+            if (returns(i + 1, result, frame.RV())) {
+                sites.put(i, -1);
+                continue;
+            }
+            int k = next(i + 1);
+            Exp operand = k >= 0 ? operand(stms.get(k), result) : null;
+            if (operand == null || op >= 0 && ((BINOP) ((MOVE) stms.get(k)).src).binop != op)
+                continue;
+            if (returns(k + 1, ((TEMP) ((MOVE) stms.get(k)).dst).temp, frame.RV())) {
+                op = ((BINOP) ((MOVE) stms.get(k)).src).binop;
+                sites.put(i, k);
+            }
+        }
+        if (sites.isEmpty())
+            return body;
+
+        List<Stm> whole = new ArrayList<>(stms);
+        whole.add(new EXPR(new TEMP(frame.RV())));
+        Set<Temp> exposed = new ControlFlow(whole).exposed();
+        exposed.removeAll(formals);
+
+        Temp acc = op >= 0 ? new Temp() : null;
+        Label loop = new Label();
+        List<Stm> result = new ArrayList<>(stms.size() + 8);
+        result.add(new LABEL(new Label()));
+        if (acc != null)
+            result.add(new MOVE(new TEMP(acc), new CONST(op == BINOP.MUL ? 1 : 0)));
+        result.add(new LABEL(loop));
+        for (int i = 0; i < stms.size(); i++) {
+            Integer k = sites.get(i);
+            if (k == null) {
+                result.add(stms.get(i));
+                continue;
+            }
+            Stm site = stms.get(i);
+            CALL call = (CALL) ((MOVE) site).src;
+            if (k >= 0) {
+                Exp operand = operand(stms.get(k), ((TEMP) ((MOVE) site).dst).temp);
+                result.add(Trees.tagged(
+                    new MOVE(new TEMP(acc), new BINOP(op, new TEMP(acc), operand)), stms.get(k)));
+                accumulated++;
+            }
+            // every argument is evaluated before any formal changes
+            List<Stm> moves = new ArrayList<>();
+            for (int a = 0; a < formals.size(); a++) {
+                Exp arg = call.args.get(a);
+                if (arg instanceof TEMP && ((TEMP) arg).temp.equals(formals.get(a)))
+                    continue;
+                Temp value = new Temp();
+                result.add(Trees.tagged(new MOVE(new TEMP(value), arg), site));
+                moves.add(Trees.tagged(new MOVE(new TEMP(formals.get(a)), new TEMP(value)), site));
+            }
+            result.addAll(moves);
+            for (Temp t : exposed)
+                result.add(Trees.tagged(new MOVE(new TEMP(t), new CONST(0)), site));
+            result.add(Trees.tagged(new JUMP(loop), site));
+            eliminated++;
+            // what followed the call up to the next label is not reached
+            while (i + 1 < stms.size() && !(stms.get(i + 1) instanceof LABEL))
+                i++;
+        }
+        if (acc != null)
+            result.add(new MOVE(new TEMP(frame.RV()), new BINOP(op, new TEMP(acc), new TEMP(frame.RV()))));
+        return result;
+    }
+
+    private static CALL selfCall(Stm stm, Frame frame) {
+        if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP)
+                || !(((MOVE) stm).src instanceof CALL))
+            return null;
+        CALL call = (CALL) ((MOVE) stm).src;
+        if (!(call.func instanceof NAME)
+                || !((NAME) call.func).label.toString().equals(frame.label.toString()))
+            return null;
+        return call;
+    }
+
+    // the next statement run from i that is neither a label nor a jump,
+    // or -1 when there is none or the way to it branches
+    private int next(int i) {
+        Set<Integer> seen = new HashSet<>();
+        while (i < stms.size() && seen.add(i)) {
+            Stm stm = stms.get(i);
+            if (stm instanceof LABEL) {
+                i++;
+            } else if (stm instanceof JUMP) {
+                Integer target = target((JUMP) stm);
+                if (target == null)
+                    return -1;
+                i = target;
+            } else {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Integer target(JUMP jump) {
+        if (jump.targets.size() != 1 || !(jump.exp instanceof NAME))
+            return null;
+        return labels.get(jump.targets.get(0).toString());
+    }
+
+    /**
+     * Whether the value a temp holds at i is what the procedure returns:
+     * every statement from i to the end only copies temps or sets them to
+     * constants, and the value ends up in the return value.
+     */
+    private boolean returns(int i, Temp value, Temp rv) {
+        Set<Temp> holders = new HashSet<>();
+        holders.add(value);
+        Set<Integer> seen = new HashSet<>();
+        while (i < stms.size()) {
+            if (!seen.add(i))
+                return false;
+            Stm stm = stms.get(i);
+            if (stm instanceof LABEL) {
+                i++;
+            } else if (stm instanceof JUMP) {
+                Integer target = target((JUMP) stm);
+                if (target == null)
+                    return false;
+                i = target;
+            } else if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+                Temp dst = ((TEMP) ((MOVE) stm).dst).temp;
+                Exp src = ((MOVE) stm).src;
+                if (src instanceof TEMP && holders.contains(((TEMP) src).temp))
+                    holders.add(dst);
+                else if (src instanceof TEMP || src instanceof CONST)
+                    holders.remove(dst);
+                else
+                    return false;
+                i++;
+            } else {
+                return false;
+            }
+        }
+        return holders.contains(rv);
+    }
+
+    /**
+     * For a move of result op e, or e op result, with op PLUS or MUL, and
+     * e computed from temps other than the result: e.
+     */
+    private static Exp operand(Stm stm, Temp result) {
+        if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP)
+                || !(((MOVE) stm).src instanceof BINOP))
+            return null;
+        BINOP b = (BINOP) ((MOVE) stm).src;
+        if (b.binop != BINOP.PLUS && b.binop != BINOP.MUL)
+            return null;
+        Exp other;
+        if (b.left instanceof TEMP && ((TEMP) b.left).temp.equals(result))
+            other = b.right;
+        else if (b.right instanceof TEMP && ((TEMP) b.right).temp.equals(result))
+            other = b.left;
+        else
+            return null;
+        return pure(other, result) ? other : null;
+    }
+
+    // whether an expression only reads temps other than one, through
+    // operators that cannot fault
+    private static boolean pure(Exp exp, Temp result) {
+        if (exp instanceof CONST)
+            return true;
+        if (exp instanceof TEMP)
+            return !((TEMP) exp).temp.equals(result);
+        if (exp instanceof BINOP && ((BINOP) exp).binop != BINOP.DIV)
+            return pure(((BINOP) exp).left, result) && pure(((BINOP) exp).right, result);
+        return false;
+    }
+}
@@ -0,0 +1,91 @@
+package tree;
+
+import frame.Temp;
+import tree.node.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dense numbers for the temps of one body. {@link Temp} numbers run on
+ * across the whole compilation, so they cannot index the sets of a single
+ * method; these start at 0, in the order the temps are first numbered.
+ */
+public class Temps {
+    private Temp[] temps = new Temp[16];
+    private int size;
+    // open addressing on the temp number: its dense number plus one, or 0
+    private int[] nums = new int[32], slots = new int[32];
+
+    public Temps() {
+    }
+
+    /** Numbers every temp a body reads or assigns, in the order of the body. */
+    public Temps(List<Stm> stms) {
+        for (Stm stm : stms) {
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                number(((TEMP) ((MOVE) stm).dst).temp);
+            if (!(stm instanceof LABEL)) {
+                for (Exp kid : stm.kids())
+                    number(kid);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Temp get(int id) {
+        return temps[id];
+    }
+
+    /** The number of a temp, or -1 when it has none. */
+    public int indexOf(Temp t) {
+        int slot = slot(t.num);
+        return slots[slot] - 1;
+    }
+
+    /** The number of a temp, giving it the next one when it has none. */
+    public int number(Temp t) {
+        int slot = slot(t.num);
+        if (slots[slot] > 0)
+            return slots[slot] - 1;
+        if (size == temps.length)
+            temps = Arrays.copyOf(temps, size * 2);
+        temps[size] = t;
+        nums[slot] = t.num;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length)
+            grow();
+        return size - 1;
+    }
+
+    private void number(Exp exp) {
+        if (exp instanceof TEMP) {
+            number(((TEMP) exp).temp);
+        } else if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                number(kid);
+        }
+    }
+
+    private int slot(int num) {
+        int mask = slots.length - 1;
+        int hash = num * 0x9E3779B9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (slots[slot] > 0 && nums[slot] != num)
+            slot = slot + 1 & mask;
+        return slot;
+    }
+
+    private void grow() {
+        nums = new int[slots.length * 2];
+        slots = new int[slots.length * 2];
+        for (int id = 0; id < size; id++) {
+            int slot = slot(temps[id].num);
+            nums[slot] = temps[id].num;
+            slots[slot] = id + 1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package tree;
+
+import frame.Label;
+import tree.node.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Orders basic blocks into traces, after Appel: a block is followed by the
+ * target of its JUMP, or the false label of its CJUMP, whenever that block
+ * is not placed yet. Every CJUMP in {@link #stms} is then followed by its
+ * false label, flipping the condition or adding a JUMP where needed, and
+ * JUMPs to the statement right after them are dropped.
+ */
+public class TraceSchedule {
+    public final List<Stm> stms = new ArrayList<>();
+
+    // blocks not placed yet, by label name
+    private final HashMap<String, List<Stm>> unplaced = new HashMap<>();
+
+    public TraceSchedule(BasicBlocks blocks) {
+        for (List<Stm> block : blocks.blocks)
+            unplaced.put(BasicBlocks.label(block), block);
+        for (List<Stm> block : blocks.blocks) {
+            if (unplaced.containsKey(BasicBlocks.label(block)))
+                trace(block);
+        }
+        append(new LABEL(blocks.done));
+    }
+
+    private void trace(List<Stm> block) {
+        while (true) {
+            unplaced.remove(BasicBlocks.label(block));
+            for (int i = 0; i < block.size() - 1; i++)
+                append(block.get(i));
+
+            Stm last = block.get(block.size() - 1);
+            if (last instanceof JUMP) {
+                JUMP jump = (JUMP) last;
+                List<Stm> next = jump.targets.size() == 1
+                    ? unplaced.get(jump.targets.getFirst().toString()) : null;
+                if (next == null) {
+                    append(jump);
+                    return;
+                }
+                block = next;
+            } else if (last instanceof CJUMP) {
+                CJUMP cjump = (CJUMP) last;
+                List<Stm> ifFalse = unplaced.get(cjump.iffalse.toString());
+                List<Stm> ifTrue = unplaced.get(cjump.iftrue.toString());
+                if (ifFalse != null) {
+                    append(cjump);
+                    block = ifFalse;
+                } else if (ifTrue != null) {
+                    append(flip(cjump));
+                    block = ifTrue;
+                } else {
+                    Label ifFalseHere = new Label();
+                    append(retarget(cjump, cjump.iftrue, ifFalseHere));
+                    append(new LABEL(ifFalseHere));
+                    append(new JUMP(cjump.iffalse));
+                    return;
+                }
+            } else {
+                throw new Error("Bad basic block in TraceSchedule");
+            }
+        }
+    }
+
+    private static CJUMP flip(CJUMP cjump) {
+        CJUMP flipped = new CJUMP(CJUMP.notRel(cjump.relop), cjump.left, cjump.right,
+                                  cjump.iffalse, cjump.iftrue);
+        flipped.tag = cjump.tag;
+        return flipped;
+    }
+
+    private static CJUMP retarget(CJUMP cjump, Label iftrue, Label iffalse) {
+        CJUMP retargeted = new CJUMP(cjump.relop, cjump.left, cjump.right, iftrue, iffalse);
+        retargeted.tag = cjump.tag;
+        return retargeted;
+    }
+
+    private void append(Stm stm) {
+        // a JUMP to the label that follows it is a fall-through
+        if (stm instanceof LABEL && !stms.isEmpty()) {
+            Stm previous = stms.get(stms.size() - 1);
+            if (previous instanceof JUMP) {
+                JUMP jump = (JUMP) previous;
+                if (jump.targets.size() == 1 && jump.targets.getFirst().toString()
+                        .equals(((LABEL) stm).label.toString()))
+                    stms.remove(stms.size() - 1);
+            }
+        }
+        stms.add(stm);
+    }
+}
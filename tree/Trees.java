@@ -0,0 +1,27 @@
+package tree;
+
+import tree.node.*;
+
+/**
+ * Helpers every pass rewriting trees shares.
+ */
+final class Trees {
+    private Trees() {
+    }
+
+    /**
+     * Gives a node built to stand for another the other's tag, so messages
+     * and profiles still point at the source; a node already tagged keeps
+     * its own, as when a rewrite returns one of the kids.
+     */
+    static <T extends Hospitable> T tagged(T built, Hospitable from) {
+        if (built != from && built.tag == null)
+            built.tag = from.tag;
+        return built;
+    }
+
+    /** Whether an expression has no kids: a TEMP, a CONST or a NAME. */
+    static boolean isLeaf(Exp exp) {
+        return exp instanceof TEMP || exp instanceof CONST || exp instanceof NAME;
+    }
+}
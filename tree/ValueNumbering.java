@@ -0,0 +1,363 @@
+package tree;
+
+import frame.Temp;
+import tree.node.*;
+
+import java.util.*;
+
+/**
+ * Global value numbering over a canonical body (see {@link Canon}): an
+ * expression computed again where a previous computation of the same value
+ * dominates it is replaced by a temp holding that value.
+ *
+ * Blocks are numbered in dominator tree order. A block starts from the
+ * state its immediate dominator ended with, minus what any path between
+ * them could change: temps assigned on the way get new numbers, and loads
+ * are forgotten if a store or a call may happen on the way.
+ *
+ * Loads are numbered by address and are only redundant while memory
+ * cannot have changed: a store forgets every load it may alias (a store at
+ * base + c keeps loads at base + d, d != c, since those are other fields of
+ * the same object), and a call forgets every load. The runtime procedures
+ * never write memory the program can see, so they forget nothing.
+ *
+ * The first computation of a value reused later is moved into a fresh
+ * temp ahead of its statement, unless it already is the whole right-hand
+ * side of the only assignment to a temp, which then holds it as is. One
+ * operator over leaves is only reused when held that way, since otherwise
+ * the move costs what it saves.
+ */
+public class ValueNumbering {
+    // runtime procedures, which write no memory the program can see
+    private static final Set<String> RUNTIME =
+        new HashSet<>(Arrays.asList("_printint", "_halloc", "_newarray", "_error"));
+
+    /** Redundant expressions replaced by the last {@link #apply}. */
+    public int expressions;
+    /** Tree nodes those expressions held, the temps replacing them aside. */
+    public int nodes;
+
+    private List<Stm> stms;
+    private ControlFlow cfg;
+
+    // the numbering state at one point of the body
+    private static class State {
+        HashMap<Temp, Integer> temps = new HashMap<>();
+        HashMap<String, Integer> numbers = new HashMap<>();
+        // loads by key, with the base and offset of their address
+        HashMap<String, int[]> loads = new HashMap<>();
+        // first occurrence computing each value number
+        HashMap<Integer, Integer> available = new HashMap<>();
+
+        State copy() {
+            State copy = new State();
+            copy.temps.putAll(temps);
+            copy.numbers.putAll(numbers);
+            copy.loads.putAll(loads);
+            copy.available.putAll(available);
+            return copy;
+        }
+    }
+
+    private int nextNumber;
+
+    // by occurrence: the BINOPs and MEMs of every statement, top-down, in
+    // the order of kids(), and not below an occurrence found redundant
+    private List<Integer> reuseOf = new ArrayList<>();
+    private List<Boolean> held = new ArrayList<>();
+    private List<Temp> movedTo = new ArrayList<>();
+    private List<Integer> sizes = new ArrayList<>();
+    // the first occurrence of each statement, -1 for those not numbered
+    private int[] occurrenceBase;
+    private Map<Temp, Integer> definitions = new HashMap<>();
+
+    /**
+     * Returns the body with its redundant expressions replaced; the body
+     * given is not changed.
+     */
+    public List<Stm> apply(List<Stm> body) {
+        stms = body;
+        expressions = 0;
+        nodes = 0;
+        for (Stm stm : stms) {
+            if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                definitions.merge(((TEMP) ((MOVE) stm).dst).temp, 1, Integer::sum);
+        }
+
+        cfg = new ControlFlow(stms);
+        int[] idom = cfg.idom;
+        int n = cfg.size();
+        State[] exit = new State[n];
+        List<List<Integer>> children = new ArrayList<>();
+        for (int b = 0; b < n; b++)
+            children.add(new ArrayList<>());
+        for (int b = 1; b < n; b++) {
+            if (idom[b] >= 0)
+                children.get(idom[b]).add(b);
+        }
+
+        // blocks are visited dominators first; unreachable ones are roots
+        // of their own, with nothing known
+        State[] entry = new State[n];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        for (int b = n - 1; b >= 0; b--) {
+            if (b == 0 || idom[b] < 0) {
+                entry[b] = new State();
+                work.push(b);
+            }
+        }
+        occurrenceBase = new int[stms.size()];
+        Arrays.fill(occurrenceBase, -1);
+        while (!work.isEmpty()) {
+            int b = work.pop();
+            State state = entry[b] != null ? entry[b] : entryOf(b, idom[b], exit[idom[b]]);
+            for (int i = cfg.start[b]; i < cfg.start[b + 1]; i++)
+                number(i, state);
+            exit[b] = state;
+            for (int c : children.get(b))
+                work.push(c);
+        }
+
+        Temp[] holders = new Temp[held.size()];
+        for (int id = 0; id < held.size(); id++) {
+            if (held.get(id))
+                holders[id] = movedTo.get(id) != null ? movedTo.get(id) : new Temp();
+        }
+
+        List<Stm> result = new ArrayList<>(stms.size());
+        for (int i = 0; i < stms.size(); i++)
+            rewrite(i, holders, result);
+        return result;
+    }
+
+    /**
+     * The state a block starts with: its dominator's, minus what the
+     * blocks on the paths between them change (see
+     * {@link ControlFlow#between}).
+     */
+    private State entryOf(int b, int dom, State from) {
+        BitSet reached = cfg.between(dom, b);
+        State state = from.copy();
+        for (int x = reached.nextSetBit(0); x >= 0; x = reached.nextSetBit(x + 1)) {
+            for (int i = cfg.start[x]; i < cfg.start[x + 1]; i++) {
+                Stm stm = stms.get(i);
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                    state.temps.put(((TEMP) ((MOVE) stm).dst).temp, nextNumber++);
+                if (writesMemory(stm))
+                    state.loads.clear();
+            }
+        }
+        return state;
+    }
+
+    private static boolean writesMemory(Stm stm) {
+        if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            return move.dst instanceof MEM || isCall(move.src);
+        }
+        return stm instanceof EXPR && isCall(((EXPR) stm).exp);
+    }
+
+    // a call that may write memory
+    static boolean isCall(Exp exp) {
+        return exp instanceof CALL && (!(((CALL) exp).func instanceof NAME)
+            || !RUNTIME.contains(((NAME) ((CALL) exp).func).label.toString()));
+    }
+
+    private static boolean isOccurrence(Exp exp) {
+        return exp instanceof BINOP || exp instanceof MEM;
+    }
+
+    private void number(int i, State state) {
+        Stm stm = stms.get(i);
+        IdentityHashMap<Exp, Integer> values = new IdentityHashMap<>();
+        List<Exp> kids = stm instanceof LABEL ? Collections.<Exp>emptyList() : stm.kids();
+        for (Exp kid : kids)
+            value(kid, state, values);
+
+        occurrenceBase[i] = reuseOf.size();
+        Temp single = isSingleMove(stm) ? ((TEMP) ((MOVE) stm).dst).temp : null;
+        for (Exp kid : kids)
+            mark(kid, state, values, single != null && kid == ((MOVE) stm).src ? single : null);
+
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+            MOVE move = (MOVE) stm;
+            Integer value = move.src instanceof CALL ? null : values.get(move.src);
+            state.temps.put(((TEMP) move.dst).temp, value != null ? value : nextNumber++);
+        }
+        if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM) {
+            // loads from the same base at another offset are other fields
+            int[] address = address(((MEM) ((MOVE) stm).dst).exp, values);
+            state.loads.values().removeIf(load -> load[0] != address[0] || load[1] == address[1]);
+        } else if (writesMemory(stm)) {
+            state.loads.clear();
+        }
+    }
+
+    // whether the statement's last kid is the whole source of the only
+    // assignment to a temp, which can then hold its value
+    private boolean isSingleMove(Stm stm) {
+        return stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP
+            && definitions.get(((TEMP) ((MOVE) stm).dst).temp) == 1;
+    }
+
+    private int[] address(Exp address, IdentityHashMap<Exp, Integer> values) {
+        if (address instanceof BINOP && ((BINOP) address).binop == BINOP.PLUS
+                && ((BINOP) address).right instanceof CONST)
+            return new int[] { values.get(((BINOP) address).left),
+                               ((CONST) ((BINOP) address).right).value };
+        return new int[] { values.get(address), 0 };
+    }
+
+    private int value(Exp exp, State state, IdentityHashMap<Exp, Integer> values) {
+        Integer known = values.get(exp);
+        if (known != null)
+            return known;
+
+        String key;
+        if (exp instanceof TEMP) {
+            Integer value = state.temps.get(((TEMP) exp).temp);
+            if (value == null) {
+                value = nextNumber++;
+                state.temps.put(((TEMP) exp).temp, value);
+            }
+            values.put(exp, value);
+            return value;
+        } else if (exp instanceof CONST) {
+            key = "C" + ((CONST) exp).value;
+        } else if (exp instanceof NAME) {
+            key = "N" + ((NAME) exp).label;
+        } else if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            int l = value(b.left, state, values), r = value(b.right, state, values);
+            if ((b.binop == BINOP.PLUS || b.binop == BINOP.MUL || b.binop == BINOP.AND
+                    || b.binop == BINOP.OR || b.binop == BINOP.XOR) && r < l) {
+                int swap = l;
+                l = r;
+                r = swap;
+            }
+            key = "B" + b.binop + ":" + l + ":" + r;
+        } else if (exp instanceof MEM) {
+            value(((MEM) exp).exp, state, values);
+            int[] address = address(((MEM) exp).exp, values);
+            key = "M" + values.get(((MEM) exp).exp);
+            if (!state.loads.containsKey(key)) {
+                // a fresh number: what was loaded before from here is gone
+                state.numbers.put(key, nextNumber++);
+                state.loads.put(key, address);
+            }
+        } else {
+            // a CALL is never redundant
+            for (Exp kid : exp.kids())
+                value(kid, state, values);
+            int value = nextNumber++;
+            values.put(exp, value);
+            return value;
+        }
+
+        Integer value = state.numbers.get(key);
+        if (value == null) {
+            value = nextNumber++;
+            state.numbers.put(key, value);
+        }
+        values.put(exp, value);
+        return value;
+    }
+
+    // single is the temp the expression is the whole source of the only
+    // assignment to, if any
+    private void mark(Exp exp, State state, IdentityHashMap<Exp, Integer> values, Temp single) {
+        if (!isOccurrence(exp)) {
+            if (!Trees.isLeaf(exp)) {
+                for (Exp kid : exp.kids())
+                    mark(kid, state, values, null);
+            }
+            return;
+        }
+
+        int id = reuseOf.size();
+        int value = values.get(exp);
+        Integer first = state.available.get(value);
+        // one operator over leaves costs what the move to hold it would
+        if (first != null && isCheap(exp) && movedTo.get(first) == null)
+            first = null;
+        reuseOf.add(first != null ? first : -1);
+        held.add(false);
+        movedTo.add(null);
+        sizes.add(size(exp));
+        if (first != null) {
+            held.set(first, true);
+            return;
+        }
+        // a later occurrence that holds itself is the better one to reuse
+        if (single != null || !state.available.containsKey(value))
+            state.available.put(value, id);
+        movedTo.set(id, single);
+        for (Exp kid : exp.kids())
+            mark(kid, state, values, null);
+    }
+
+    private static boolean isCheap(Exp exp) {
+        return exp instanceof BINOP && Trees.isLeaf(((BINOP) exp).left) && Trees.isLeaf(((BINOP) exp).right);
+    }
+
+    private static int size(Exp exp) {
+        int size = 1;
+        if (!Trees.isLeaf(exp)) {
+            for (Exp kid : exp.kids())
+                size += size(kid);
+        }
+        return size;
+    }
+
+    private int next;
+
+    private void rewrite(int i, Temp[] holders, List<Stm> into) {
+        Stm stm = stms.get(i);
+        if (stm instanceof LABEL || occurrenceBase[i] < 0) {
+            into.add(stm);
+            return;
+        }
+        next = occurrenceBase[i];
+        List<Stm> before = new ArrayList<>();
+        LinkedList<Exp> kids = stm.kids();
+        LinkedList<Exp> rewritten = new LinkedList<>();
+        Temp single = isSingleMove(stm) ? ((TEMP) ((MOVE) stm).dst).temp : null;
+        for (int k = 0; k < kids.size(); k++) {
+            boolean source = single != null && k == kids.size() - 1;
+            rewritten.add(rewrite(kids.get(k), holders, before, source ? single : null));
+        }
+        into.addAll(before);
+        Stm built = stm.build(rewritten);
+        if (built != stm)
+            built.tag = stm.tag;
+        into.add(built);
+    }
+
+    private Exp rewrite(Exp exp, Temp[] holders, List<Stm> before, Temp single) {
+        if (!isOccurrence(exp)) {
+            if (Trees.isLeaf(exp))
+                return exp;
+            LinkedList<Exp> kids = new LinkedList<>();
+            for (Exp kid : exp.kids())
+                kids.add(rewrite(kid, holders, before, null));
+            return Trees.tagged(exp.build(kids), exp);
+        }
+
+        int id = next++;
+        int first = reuseOf.get(id);
+        if (first >= 0) {
+            expressions++;
+            nodes += sizes.get(id) - 1;
+            return new TEMP(holders[first]);
+        }
+        LinkedList<Exp> kids = new LinkedList<>();
+        for (Exp kid : exp.kids())
+            kids.add(rewrite(kid, holders, before, null));
+        Exp built = Trees.tagged(exp.build(kids), exp);
+        if (!held.get(id) || holders[id] == single)
+            return built;
+        before.add(new MOVE(new TEMP(holders[id]), built));
+        return new TEMP(holders[id]);
+    }
+}
@@ -0,0 +1,652 @@
+package visitor;
+
+import frame.Access;
+import frame.Frame;
+import frame.InReg;
+import frame.Temp;
+import tree.Exp;
+import tree.Stm;
+import tree.node.*;
+import visitor.translate.Frag;
+import visitor.translate.ProcFrag;
+
+import java.util.*;
+
+/**
+ * Execution engine that compiles every ProcFrag body once into a tree of
+ * Java closures and then runs it, instead of lowering it to commands.
+ *
+ * Each node becomes a small lambda; the common shapes Translate produces
+ * (TEMP op CONST, MEM(TEMP + CONST), TEMP := TEMP + CONST, ...) get lambdas
+ * of their own, so the JIT sees short monomorphic call chains it can inline.
+ * Statement lists containing labels are split into basic blocks whose
+ * closures return the index of the next block to run.
+ *
+ * An activation is a plain int[] holding the procedure's temps. Calls
+ * recurse on the Java stack, so the program runs in a thread of its own
+ * with a stack of {@link #stackSize} bytes. The heap is a {@link Heap}
+ * without roots: it never collects, it only grows up to the limit.
+ */
+public class ClosureCompiler {
+    interface Code {
+        int eval(int[] r);
+    }
+
+    interface Effect {
+        void exec(int[] r);
+    }
+
+    interface Block {
+        // returns the next block, or -1 to leave the statement list
+        int run(int[] r);
+    }
+
+    /**
+     * A compiled procedure. Call sites hold on to it before its body is
+     * compiled, which is what lets procedures call each other freely.
+     */
+    static final class Function {
+        final String name;
+        final int formals;
+        int size;
+        int rv;
+        Effect body;
+
+        Function(String name, int formals) {
+            this.name = name;
+            this.formals = formals;
+        }
+
+        int invoke(int[] r) {
+            body.exec(r);
+            return r[rv];
+        }
+    }
+
+    public Iterator<Frag> frags;
+    public Heap heap;
+    public long heapLimit = (long) Heap.MAX_WORDS << 2;
+    public long stackSize = 1L << 30;
+
+    private HashMap<String, Function> functions;
+    // the procedure each number in the tables names, see Heap.procedures
+    private Function[] numbered;
+    // temps of the procedure being compiled, and their slots
+    private HashMap<Temp, Integer> temps;
+
+    public ClosureCompiler(Iterator<Frag> frags) {
+        this.frags = frags;
+    }
+
+    public void setHeapLimit(long bytes) {
+        heapLimit = bytes;
+    }
+
+    public void setStackSize(long bytes) {
+        stackSize = bytes;
+    }
+
+    public void start() {
+        functions = new HashMap<>();
+
+        List<Frag> all = new ArrayList<>();
+        frags.forEachRemaining(all::add);
+        List<ProcFrag> procs = new ArrayList<>();
+        for (Frag f : all) {
+            if (f instanceof ProcFrag) {
+                ProcFrag proc = (ProcFrag) f;
+                procs.add(proc);
+                functions.put(proc.frame.label.toString(),
+                              new Function(proc.frame.label.toString(),
+                                           proc.frame.formals.size()));
+            }
+        }
+
+        // the tables go first, the code reads their addresses as constants
+        heap = new Heap((int) Math.min(heapLimit >> 2, Heap.MAX_WORDS));
+        heap.place(all);
+        numbered = new Function[heap.procedures.size()];
+        for (int i = 0; i < numbered.length; i++)
+            numbered[i] = functions.get(heap.procedures.get(i));
+
+        for (ProcFrag proc : procs)
+            compile(proc);
+
+        System.out.println("Running...");
+
+        Function main = functions.get(procs.get(0).frame.label.toString());
+
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                // main() recebe um parâmetro
+                main.invoke(new int[main.size]);
+            } catch (InterpreterException e) {
+                failure[0] = e;
+            } catch (StackOverflowError e) {
+                failure[0] = new InterpreterException("Stack overflow");
+            } catch (ArrayIndexOutOfBoundsException e) {
+                failure[0] = new InterpreterException("Invalid memory access");
+            }
+        }, "minijava", stackSize);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    private void compile(ProcFrag proc) {
+        Frame frame = proc.frame;
+        Function function = functions.get(frame.label.toString());
+        temps = new HashMap<>();
+
+        // the caller stores the arguments straight into the first slots
+        for (Access access : frame.formals) {
+            if (!(access instanceof InReg))
+                throw new IllegalStateException(
+                    "Formals in memory are not supported: " + function.name);
+            slot(((InReg) access).temp);
+        }
+        function.rv = slot(frame.RV());
+        function.body = compile(proc.body);
+        function.size = temps.size();
+        temps = null;
+    }
+
+    private int slot(Temp temp) {
+        Integer slot = temps.get(temp);
+        if (slot == null) {
+            slot = temps.size();
+            temps.put(temp, slot);
+        }
+        return slot;
+    }
+
+    private static void flatten(Stm stm, List<Stm> into) {
+        if (stm instanceof SEQ) {
+            flatten(((SEQ) stm).left, into);
+            flatten(((SEQ) stm).right, into);
+        } else if (stm != null) {
+            into.add(stm);
+        }
+    }
+
+    private Effect compile(Stm stm) {
+        List<Stm> stms = new ArrayList<>();
+        flatten(stm, stms);
+
+        boolean jumps = false;
+        for (Stm s : stms)
+            jumps |= s instanceof LABEL || s instanceof JUMP || s instanceof CJUMP;
+        if (!jumps)
+            return sequence(stms);
+        return blocks(stms);
+    }
+
+    private Effect sequence(List<Stm> stms) {
+        Effect[] effects = new Effect[stms.size()];
+        for (int i = 0; i < effects.length; i++)
+            effects[i] = statement(stms.get(i));
+        return sequence(effects);
+    }
+
+    private static Effect sequence(Effect[] effects) {
+        switch (effects.length) {
+            case 0:
+                return r -> { };
+            case 1:
+                return effects[0];
+            case 2: {
+                Effect a = effects[0], b = effects[1];
+                return r -> { a.exec(r); b.exec(r); };
+            }
+            case 3: {
+                Effect a = effects[0], b = effects[1], c = effects[2];
+                return r -> { a.exec(r); b.exec(r); c.exec(r); };
+            }
+            default: {
+                // split in halves, so long lists stay a tree of small lambdas
+                int half = effects.length / 2;
+                Effect a = sequence(Arrays.copyOfRange(effects, 0, half));
+                Effect b = sequence(Arrays.copyOfRange(effects, half, effects.length));
+                return r -> { a.exec(r); b.exec(r); };
+            }
+        }
+    }
+
+    /**
+     * Splits a statement list at its labels and jumps. Jumps are resolved
+     * against the labels of this list only; Translate never jumps into or
+     * out of the statement of an ESEQ.
+     */
+    private Effect blocks(List<Stm> stms) {
+        List<List<Stm>> bodies = new ArrayList<>();
+        List<Stm> exits = new ArrayList<>();
+        HashMap<String, Integer> labels = new HashMap<>();
+
+        List<Stm> body = new ArrayList<>();
+        bodies.add(body);
+        exits.add(null);
+        boolean closed = false;
+        for (Stm s : stms) {
+            boolean label = s instanceof LABEL;
+            if (closed || (label && !body.isEmpty())) {
+                body = new ArrayList<>();
+                bodies.add(body);
+                exits.add(null);
+                closed = false;
+            }
+            if (label) {
+                labels.put(((LABEL) s).label.toString(), bodies.size() - 1);
+            } else if (s instanceof JUMP || s instanceof CJUMP) {
+                exits.set(bodies.size() - 1, s);
+                closed = true;
+            } else {
+                body.add(s);
+            }
+        }
+
+        Block[] blocks = new Block[bodies.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            int next = i + 1 < blocks.length ? i + 1 : -1;
+            blocks[i] = block(sequence(bodies.get(i)), exits.get(i), next, labels);
+        }
+
+        if (blocks.length == 1) {
+            Block only = blocks[0];
+            return r -> {
+                while (only.run(r) == 0) {
+                }
+            };
+        }
+        return r -> {
+            int b = 0;
+            do {
+                b = blocks[b].run(r);
+            } while (b >= 0);
+        };
+    }
+
+    private static int target(HashMap<String, Integer> labels, String label) {
+        Integer block = labels.get(label);
+        if (block == null)
+            throw new IllegalStateException("Jump to " + label + " leaves its statement list");
+        return block;
+    }
+
+    private Block block(Effect body, Stm exit, int next,
+                        HashMap<String, Integer> labels) {
+        if (exit == null)
+            return r -> { body.exec(r); return next; };
+
+        if (exit instanceof JUMP) {
+            JUMP jump = (JUMP) exit;
+            if (!(jump.exp instanceof NAME))
+                throw new IllegalStateException("Computed jumps are not supported");
+            int to = target(labels, ((NAME) jump.exp).label.toString());
+            return r -> { body.exec(r); return to; };
+        }
+
+        CJUMP cjump = (CJUMP) exit;
+        int t = target(labels, cjump.iftrue.toString());
+        int f = target(labels, cjump.iffalse.toString());
+        int relop = cjump.relop;
+
+        // the loop and bounds checks Translate emits compare temps
+        if (cjump.left instanceof TEMP && cjump.right instanceof TEMP) {
+            int a = slot(((TEMP) cjump.left).temp);
+            int b = slot(((TEMP) cjump.right).temp);
+            switch (relop) {
+                case CJUMP.LT:
+                    return r -> { body.exec(r); return r[a] < r[b] ? t : f; };
+                case CJUMP.GE:
+                    return r -> { body.exec(r); return r[a] >= r[b] ? t : f; };
+                case CJUMP.UGE:
+                    return r -> { body.exec(r); return Integer.compareUnsigned(r[a], r[b]) >= 0 ? t : f; };
+            }
+        }
+        if (cjump.left instanceof TEMP && cjump.right instanceof CONST) {
+            int a = slot(((TEMP) cjump.left).temp);
+            int c = ((CONST) cjump.right).value;
+            switch (relop) {
+                case CJUMP.LT:
+                    return r -> { body.exec(r); return r[a] < c ? t : f; };
+                case CJUMP.EQ:
+                    return r -> { body.exec(r); return r[a] == c ? t : f; };
+            }
+        }
+        Code left = expression(cjump.left);
+        if (cjump.right instanceof CONST) {
+            int c = ((CONST) cjump.right).value;
+            switch (relop) {
+                case CJUMP.EQ:
+                    return r -> { body.exec(r); return left.eval(r) == c ? t : f; };
+                case CJUMP.NE:
+                    return r -> { body.exec(r); return left.eval(r) != c ? t : f; };
+            }
+        }
+        Code right = expression(cjump.right);
+        switch (relop) {
+            case CJUMP.EQ:
+                return r -> { body.exec(r); return left.eval(r) == right.eval(r) ? t : f; };
+            case CJUMP.NE:
+                return r -> { body.exec(r); return left.eval(r) != right.eval(r) ? t : f; };
+            case CJUMP.LT:
+                return r -> { body.exec(r); return left.eval(r) < right.eval(r) ? t : f; };
+            case CJUMP.GT:
+                return r -> { body.exec(r); return left.eval(r) > right.eval(r) ? t : f; };
+            case CJUMP.LE:
+                return r -> { body.exec(r); return left.eval(r) <= right.eval(r) ? t : f; };
+            case CJUMP.GE:
+                return r -> { body.exec(r); return left.eval(r) >= right.eval(r) ? t : f; };
+            case CJUMP.ULT:
+                return r -> { body.exec(r);
+                    return Integer.compareUnsigned(left.eval(r), right.eval(r)) < 0 ? t : f; };
+            case CJUMP.ULE:
+                return r -> { body.exec(r);
+                    return Integer.compareUnsigned(left.eval(r), right.eval(r)) <= 0 ? t : f; };
+            case CJUMP.UGT:
+                return r -> { body.exec(r);
+                    return Integer.compareUnsigned(left.eval(r), right.eval(r)) > 0 ? t : f; };
+            case CJUMP.UGE:
+                return r -> { body.exec(r);
+                    return Integer.compareUnsigned(left.eval(r), right.eval(r)) >= 0 ? t : f; };
+        }
+        throw new IllegalStateException("Unsupported CJUMP " + relop);
+    }
+
+    private Effect statement(Stm stm) {
+        if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            if (move.dst instanceof TEMP)
+                return moveTemp(slot(((TEMP) move.dst).temp), move.src);
+            if (move.dst instanceof MEM)
+                return store(((MEM) move.dst).exp, move.src);
+            throw new IllegalStateException("Bad MOVE destination");
+        }
+        if (stm instanceof EXPR) {
+            Code e = expression(((EXPR) stm).exp);
+            return r -> e.eval(r);
+        }
+        throw new IllegalStateException("Unexpected " + stm.getClass().getSimpleName());
+    }
+
+    private Effect moveTemp(int d, Exp src) {
+        if (src instanceof CONST) {
+            int c = ((CONST) src).value;
+            return r -> r[d] = c;
+        }
+        if (src instanceof TEMP) {
+            int s = slot(((TEMP) src).temp);
+            return r -> r[d] = r[s];
+        }
+        if (src instanceof BINOP) {
+            BINOP b = (BINOP) src;
+            if (b.binop == BINOP.PLUS && b.left instanceof TEMP
+                    && b.right instanceof CONST) {
+                int s = slot(((TEMP) b.left).temp);
+                int c = ((CONST) b.right).value;
+                return r -> r[d] = r[s] + c;
+            }
+        }
+        Code e = expression(src);
+        return r -> r[d] = e.eval(r);
+    }
+
+    // the value is evaluated before the address, as in the command listing
+    private Effect store(Exp address, Exp src) {
+        Code value = expression(src);
+        if (address instanceof TEMP) {
+            int a = slot(((TEMP) address).temp);
+            return r -> {
+                int v = value.eval(r);
+                heap.words[r[a] >> 2] = v;
+            };
+        }
+        if (isTempPlusConst(address)) {
+            BINOP b = (BINOP) address;
+            int a = slot(((TEMP) b.left).temp);
+            int c = ((CONST) b.right).value;
+            return r -> {
+                int v = value.eval(r);
+                heap.words[(r[a] + c) >> 2] = v;
+            };
+        }
+        Code addr = expression(address);
+        return r -> {
+            int v = value.eval(r);
+            heap.words[addr.eval(r) >> 2] = v;
+        };
+    }
+
+    private static boolean isTempPlusConst(Exp e) {
+        return e instanceof BINOP && ((BINOP) e).binop == BINOP.PLUS
+            && ((BINOP) e).left instanceof TEMP && ((BINOP) e).right instanceof CONST;
+    }
+
+    private Code expression(Exp exp) {
+        if (exp instanceof CONST) {
+            int c = ((CONST) exp).value;
+            return r -> c;
+        }
+        if (exp instanceof TEMP) {
+            int s = slot(((TEMP) exp).temp);
+            return r -> r[s];
+        }
+        if (exp instanceof NAME) {
+            int c = heap.table(((NAME) exp).label.toString());
+            return r -> c;
+        }
+        if (exp instanceof BINOP)
+            return binop((BINOP) exp);
+        if (exp instanceof MEM)
+            return load(((MEM) exp).exp);
+        if (exp instanceof ESEQ) {
+            Effect s = compile(((ESEQ) exp).stm);
+            Code e = expression(((ESEQ) exp).exp);
+            return r -> { s.exec(r); return e.eval(r); };
+        }
+        if (exp instanceof CALL)
+            return call((CALL) exp);
+        throw new IllegalStateException("Unexpected " + exp.getClass().getSimpleName());
+    }
+
+    private Code load(Exp address) {
+        if (address instanceof TEMP) {
+            int a = slot(((TEMP) address).temp);
+            return r -> heap.words[r[a] >> 2];
+        }
+        if (isTempPlusConst(address)) {
+            BINOP b = (BINOP) address;
+            int a = slot(((TEMP) b.left).temp);
+            int c = ((CONST) b.right).value;
+            return r -> heap.words[(r[a] + c) >> 2];
+        }
+        if (address instanceof BINOP && ((BINOP) address).binop == BINOP.PLUS
+                && ((BINOP) address).right instanceof CONST) {
+            Code base = expression(((BINOP) address).left);
+            int c = ((CONST) ((BINOP) address).right).value;
+            return r -> heap.words[(base.eval(r) + c) >> 2];
+        }
+        Code addr = expression(address);
+        return r -> heap.words[addr.eval(r) >> 2];
+    }
+
+    private Code binop(BINOP b) {
+        int op = b.binop;
+        if (b.left instanceof TEMP && b.right instanceof CONST) {
+            int a = slot(((TEMP) b.left).temp);
+            int c = ((CONST) b.right).value;
+            switch (op) {
+                case BINOP.PLUS:
+                    return r -> r[a] + c;
+                case BINOP.MINUS:
+                    return r -> r[a] - c;
+                case BINOP.MUL:
+                    return r -> r[a] * c;
+                case BINOP.AND:
+                    return r -> r[a] & c;
+                case BINOP.LSHIFT:
+                    return r -> r[a] << c;
+            }
+        }
+        if (b.left instanceof TEMP && b.right instanceof TEMP) {
+            int a = slot(((TEMP) b.left).temp);
+            int s = slot(((TEMP) b.right).temp);
+            switch (op) {
+                case BINOP.PLUS:
+                    return r -> r[a] + r[s];
+                case BINOP.MINUS:
+                    return r -> r[a] - r[s];
+                case BINOP.MUL:
+                    return r -> r[a] * r[s];
+                case BINOP.AND:
+                    return r -> r[a] & r[s];
+            }
+        }
+        Code left = expression(b.left);
+        if (b.right instanceof CONST) {
+            int c = ((CONST) b.right).value;
+            switch (op) {
+                case BINOP.PLUS:
+                    return r -> left.eval(r) + c;
+                case BINOP.MUL:
+                    return r -> left.eval(r) * c;
+                case BINOP.LSHIFT:
+                    return r -> left.eval(r) << c;
+            }
+        }
+        Code right = expression(b.right);
+        switch (op) {
+            case BINOP.PLUS:
+                return r -> left.eval(r) + right.eval(r);
+            case BINOP.MINUS:
+                return r -> left.eval(r) - right.eval(r);
+            case BINOP.MUL:
+                return r -> left.eval(r) * right.eval(r);
+            case BINOP.DIV:
+                return r -> left.eval(r) / right.eval(r);
+            case BINOP.AND:
+                return r -> left.eval(r) & right.eval(r);
+            case BINOP.OR:
+                return r -> left.eval(r) | right.eval(r);
+            case BINOP.LSHIFT:
+                return r -> left.eval(r) << right.eval(r);
+            case BINOP.RSHIFT:
+                return r -> left.eval(r) >>> right.eval(r);
+            case BINOP.ARSHIFT:
+                return r -> left.eval(r) >> right.eval(r);
+            case BINOP.XOR:
+                return r -> left.eval(r) ^ right.eval(r);
+        }
+        throw new IllegalStateException("Unsupported BINOP " + op);
+    }
+
+    private Code call(CALL call) {
+        if (!(call.func instanceof NAME))
+            return indirect(call);
+        String name = ((NAME) call.func).label.toString();
+        Code[] args = new Code[call.args.size()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = expression(call.args.get(i));
+
+        switch (name) {
+            case "_printint": {
+                checkArity(name, args.length, 1);
+                Code value = args[0];
+                return r -> {
+                    System.out.println(value.eval(r));
+                    return 0;
+                };
+            }
+            case "_halloc": {
+                checkArity(name, args.length, 1);
+                Code bytes = args[0];
+                return r -> heap.alloc(bytes.eval(r));
+            }
+            case "_newarray": {
+                checkArity(name, args.length, 1);
+                Code length = args[0];
+                return r -> heap.allocArray(length.eval(r));
+            }
+            case "_error":
+                checkArity(name, args.length, 0);
+                return r -> {
+                    System.out.println("ERRO: Acessando array fora dos limites!");
+                    return 0;
+                };
+        }
+
+        Function callee = functions.get(name);
+        if (callee == null)
+            throw new IllegalStateException("Undefined procedure " + name);
+        checkArity(name, args.length, callee.formals);
+
+        // arguments are evaluated left to right into the callee's window;
+        // its size is only known once its body is compiled
+        switch (args.length) {
+            case 1: {
+                Code a = args[0];
+                return r -> {
+                    int[] w = new int[callee.size];
+                    w[0] = a.eval(r);
+                    return callee.invoke(w);
+                };
+            }
+            case 2: {
+                Code a = args[0], b = args[1];
+                return r -> {
+                    int[] w = new int[callee.size];
+                    w[0] = a.eval(r);
+                    w[1] = b.eval(r);
+                    return callee.invoke(w);
+                };
+            }
+            case 3: {
+                Code a = args[0], b = args[1], c = args[2];
+                return r -> {
+                    int[] w = new int[callee.size];
+                    w[0] = a.eval(r);
+                    w[1] = b.eval(r);
+                    w[2] = c.eval(r);
+                    return callee.invoke(w);
+                };
+            }
+            default:
+                return r -> {
+                    int[] w = new int[callee.size];
+                    for (int i = 0; i < args.length; i++)
+                        w[i] = args[i].eval(r);
+                    return callee.invoke(w);
+                };
+        }
+    }
+
+    // the callee is only known once its number is
+    private Code indirect(CALL call) {
+        Code func = expression(call.func);
+        Code[] args = new Code[call.args.size()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = expression(call.args.get(i));
+        return r -> {
+            int number = func.eval(r);
+            Function callee = number > 0 && number <= numbered.length ? numbered[number - 1] : null;
+            if (callee == null || callee.formals != args.length)
+                throw new InterpreterException("Invalid indirect call");
+            int[] w = new int[callee.size];
+            for (int i = 0; i < args.length; i++)
+                w[i] = args[i].eval(r);
+            return callee.invoke(w);
+        };
+    }
+
+    private static void checkArity(String name, int nargs, int expected) {
+        if (nargs != expected)
+            throw new IllegalStateException(String.format(
+                "%s expects %d arguments, got %d", name, expected, nargs));
+    }
+}
@@ -0,0 +1,122 @@
+package visitor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A superinstruction: a sequence of plain opcodes that Translate emits
+ * often, and the single opcode link() replaces it with. The fused
+ * instruction takes the immediates of the instructions it replaces, in
+ * their order, so it can be encoded without knowing what it does.
+ *
+ * Fusions never span a LABEL command, so no jump can land inside one.
+ */
+final class Fusion {
+    final String name;
+    final int opcode;
+    final int[] pattern;
+
+    private Fusion(int opcode, int... pattern) {
+        this.name = Opcode.NAMES[opcode];
+        this.opcode = opcode;
+        this.pattern = pattern;
+
+        int length = 1;
+        for (int op : pattern)
+            length += Opcode.LENGTHS[op] - 1;
+        if (length != Opcode.LENGTHS[opcode])
+            throw new IllegalStateException("Bad length for superinstruction " + name);
+    }
+
+    /**
+     * Every superinstruction, longest first: at each command the first
+     * enabled entry that matches wins.
+     */
+    static final Fusion[] TABLE = {
+        // MEM(BINOP(PLUS, TEMP, CONST)), as InFrame.exp and field accesses emit
+        new Fusion(Opcode.LOAD_TC, Opcode.TEMP, Opcode.CONST, Opcode.PLUS, Opcode.MEM),
+        new Fusion(Opcode.STORE_TC, Opcode.TEMP, Opcode.CONST, Opcode.PLUS, Opcode.STORE),
+        // t := a + c, the loop counters of while loops and initializers
+        new Fusion(Opcode.ADDI_MOVE, Opcode.TEMP, Opcode.CONST, Opcode.PLUS, Opcode.MOVE),
+        // CJUMP(EQ, TEMP, CONST 1) after the ESEQ of a boolean expression
+        new Fusion(Opcode.CJUMP_EQ_TC, Opcode.TEMP, Opcode.CONST, Opcode.CJUMP_EQ),
+        new Fusion(Opcode.CJUMP_LT_TC, Opcode.TEMP, Opcode.CONST, Opcode.CJUMP_LT),
+        new Fusion(Opcode.CJUMP_LT_TT, Opcode.TEMP, Opcode.TEMP, Opcode.CJUMP_LT),
+        // the index against the length in Translate's bounds checks
+        new Fusion(Opcode.CJUMP_UGE_TT, Opcode.TEMP, Opcode.TEMP, Opcode.CJUMP_UGE),
+        new Fusion(Opcode.TEMP_ADDI, Opcode.TEMP, Opcode.CONST, Opcode.PLUS),
+        new Fusion(Opcode.ADD_TT, Opcode.TEMP, Opcode.TEMP, Opcode.PLUS),
+        new Fusion(Opcode.LOAD_T, Opcode.TEMP, Opcode.MEM),
+        // MOVE(TEMP t, CONST 0) opening every boolean expression
+        new Fusion(Opcode.MOVE_CONST, Opcode.CONST, Opcode.MOVE),
+        new Fusion(Opcode.MOVE_TEMP, Opcode.TEMP, Opcode.MOVE),
+        new Fusion(Opcode.CJUMP_EQ_C, Opcode.CONST, Opcode.CJUMP_EQ),
+        new Fusion(Opcode.ADDI, Opcode.CONST, Opcode.PLUS),
+        new Fusion(Opcode.MULI, Opcode.CONST, Opcode.MUL),
+        // i << 2, the scaled array index once Simplify has run
+        new Fusion(Opcode.SHLI, Opcode.CONST, Opcode.LSHIFT),
+    };
+
+    /**
+     * Share of the instructions executed in a profiling run a sequence must
+     * account for to be fused when a profile is given.
+     */
+    static final double THRESHOLD = 0.001;
+
+    boolean matches(int[] ops, int at) {
+        if (at + pattern.length > ops.length)
+            return false;
+        for (int k = 0; k < pattern.length; k++) {
+            if (ops[at + k] != pattern[k])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Picks the superinstructions worth fusing according to a profile, in
+     * table order.
+     */
+    static List<Fusion> select(Map<String, Long> profile) {
+        long total = profile.getOrDefault(INSTRUCTIONS, 0L);
+        List<Fusion> selected = new ArrayList<>();
+        for (Fusion fusion : TABLE) {
+            long count = profile.getOrDefault(fusion.name, 0L);
+            if (count > 0 && count >= THRESHOLD * total)
+                selected.add(fusion);
+        }
+        return selected;
+    }
+
+    // key of the profile entry counting every executed instruction
+    static final String INSTRUCTIONS = "instructions";
+
+    /**
+     * Reads a profile written by {@link #writeProfile}: one name and count
+     * per line.
+     */
+    static Map<String, Long> readProfile(Reader in) throws IOException {
+        Map<String, Long> profile = new HashMap<>();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length != 2)
+                continue;
+            try {
+                profile.put(fields[0], Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad fusion profile line: " + line);
+            }
+        }
+        return profile;
+    }
+
+    static void writeProfile(Map<String, Long> profile, Writer out) {
+        PrintWriter writer = new PrintWriter(out);
+        writer.println(INSTRUCTIONS + " " + profile.getOrDefault(INSTRUCTIONS, 0L));
+        for (Fusion fusion : TABLE)
+            writer.println(fusion.name + " " + profile.getOrDefault(fusion.name, 0L));
+        writer.flush();
+    }
+}
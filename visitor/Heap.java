@@ -0,0 +1,406 @@
+package visitor;
+
+import visitor.translate.DataFrag;
+import visitor.translate.Frag;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Word-addressed memory for the interpreted program. The program only sees
+ * byte addresses, as the translated code computes them; they are turned into
+ * indexes into {@link #words} with a shift.
+ *
+ * Allocation bumps {@link #top}. Every allocation is preceded by a header
+ * word holding its payload size in words, so the heap can be walked object
+ * by object; arrays are no different, their length word is simply the first
+ * word of the payload. Word 0 is the first header, so address 0 never names
+ * an object.
+ *
+ * When the heap fills up and a {@link Roots} source is attached, a
+ * mark-compact collection runs before the backing array is grown. The
+ * collector is precise: {@link #refs} has one bit per heap word telling
+ * whether it holds a reference, and the interpreter tracks the same
+ * information for its registers and operand stack. Code compiled by
+ * {@link visitor.jvm.JvmCompiler} for it saves the references it holds in
+ * locals here, with {@link #save}, around every call that may collect.
+ *
+ * The word tables of the program's DataFrags, the method tables of its
+ * classes, are placed below everything else by {@link #place} before it
+ * runs, and collections keep them where they are.
+ */
+public class Heap {
+    public static final int CHUNK = 64 * 1024; // words
+    public static final int MAX_WORDS = Integer.MAX_VALUE >> 2;
+
+    /**
+     * Source of the references held outside the heap. The collector calls
+     * {@link #update} once to mark and once to relocate; each reference slot
+     * must be replaced by the value the operator returns for it.
+     */
+    public interface Roots {
+        void update(IntUnaryOperator relocate);
+    }
+
+    public int[] words;
+    public long[] refs;
+    public int top;
+    public int limit;
+    public Roots roots;
+    public PrintStream log;
+
+    /** Address of each table {@link #place} laid out, by label. */
+    public final Map<String, Integer> tables = new HashMap<>();
+    /**
+     * The procedures the tables name; a table word holds the number of
+     * one, its index here plus 1, so 0 names none.
+     */
+    public final List<String> procedures = new ArrayList<>();
+    private final Map<String, Integer> numbers = new HashMap<>();
+    // words below this one hold tables
+    private int tablesTop;
+
+    // the values compiled code saved, and whether each is a reference; a
+    // stack, since the calls they are saved over nest
+    private int[] saved = new int[64];
+    private boolean[] savedRefs = new boolean[64];
+    private int savedTop;
+
+    /** Whether the value the last compiled procedure returned is a reference. */
+    public boolean resultRef;
+
+    // statistics
+    public int collections;
+    public long pauseNanos;
+    public long maxPauseNanos;
+    public long reclaimedBytes;
+    public long allocatedBytes;
+
+    public Heap() {
+        this(MAX_WORDS);
+    }
+
+    /**
+     * @param limit largest size in words the heap may grow to
+     */
+    public Heap(int limit) {
+        this.limit = Math.min(limit, MAX_WORDS);
+        words = new int[Math.min(CHUNK, this.limit)];
+        refs = new long[(words.length >> 6) + 1];
+        top = 0;
+    }
+
+    /**
+     * Lays out the tables among the fragments, before anything else is
+     * allocated.
+     */
+    public void place(Iterable<Frag> frags) {
+        if (top != tablesTop)
+            throw new IllegalStateException("Tables must be placed before any allocation");
+        for (Frag frag : frags) {
+            if (!(frag instanceof DataFrag) || ((DataFrag) frag).label == null)
+                continue;
+            DataFrag table = (DataFrag) frag;
+            int address = alloc(table.words.size() << 2);
+            tables.put(table.label.toString(), address);
+            for (int i = 0; i < table.words.size(); i++)
+                words[index(address) + i] = number(table.words.get(i).toString());
+        }
+        tablesTop = top;
+    }
+
+    /** The number table words hold for a procedure, see {@link #procedures}. */
+    public int number(String procedure) {
+        Integer number = numbers.get(procedure);
+        if (number == null) {
+            procedures.add(procedure);
+            number = procedures.size();
+            numbers.put(procedure, number);
+        }
+        return number;
+    }
+
+    /** Address of a table, for the NAME naming it. */
+    public int table(String label) {
+        Integer address = tables.get(label);
+        if (address == null)
+            throw new IllegalStateException("Undefined table " + label);
+        return address;
+    }
+
+    public static int index(int address) {
+        return address >> 2;
+    }
+
+    public static int address(int index) {
+        return index << 2;
+    }
+
+    public int load(int address) {
+        return words[address >> 2];
+    }
+
+    public boolean isRef(int address) {
+        int w = address >> 2;
+        return (refs[w >> 6] & (1L << w)) != 0;
+    }
+
+    public void store(int address, int value, boolean ref) {
+        int w = address >> 2;
+        words[w] = value;
+        if (ref)
+            refs[w >> 6] |= 1L << w;
+        else
+            refs[w >> 6] &= ~(1L << w);
+    }
+
+    /**
+     * Allocates zeroed memory for at least the given number of bytes and
+     * returns its address. The code relies on the zeroing: it stores no
+     * zeros of its own into what it allocates.
+     */
+    public int alloc(int bytes) {
+        if (bytes < 0 || bytes > MAX_WORDS << 2)
+            throw new InterpreterException("Invalid allocation of " + bytes + " bytes");
+
+        int size = ((bytes + 3) >> 2) + 1;
+        if (size > words.length - top)
+            makeRoom(size);
+
+        int header = top;
+        top += size;
+        words[header] = size - 1;
+        Arrays.fill(words, header + 1, top, 0);
+        allocatedBytes += (long) size << 2;
+        return (header + 1) << 2;
+    }
+
+    /**
+     * Allocates an array as Translate lays them out: a header word holding
+     * the size of the elements in bytes, then the elements, zeroed.
+     */
+    public int allocArray(int length) {
+        if (length < 0 || length >= MAX_WORDS)
+            throw new InterpreterException("Invalid allocation of an array of " + length + " elements");
+        int address = alloc((length + 1) << 2);
+        store(address, length << 2, false);
+        return address;
+    }
+
+    /**
+     * Saves a value of a compiled activation over a call that may collect,
+     * where the collector updates it if it is a reference.
+     */
+    public void save(int value, boolean ref) {
+        if (savedTop == saved.length) {
+            saved = Arrays.copyOf(saved, 2 * savedTop);
+            savedRefs = Arrays.copyOf(savedRefs, 2 * savedTop);
+        }
+        saved[savedTop] = value;
+        savedRefs[savedTop++] = ref;
+    }
+
+    /** The value saved last, as the collector may have updated it. */
+    public int restore() {
+        return saved[--savedTop];
+    }
+
+    private void updateSaved(IntUnaryOperator f) {
+        for (int i = 0; i < savedTop; i++) {
+            if (savedRefs[i])
+                saved[i] = f.applyAsInt(saved[i]);
+        }
+    }
+
+    private void makeRoom(int size) {
+        if (roots != null && top > 0)
+            collect();
+
+        long needed = (long) top + size;
+        // keep at least half the heap free after a collection, so that
+        // collections stay proportional to the allocation rate
+        long wanted = roots == null ? needed : Math.max(needed, 2L * top);
+        if (wanted <= words.length)
+            return;
+
+        if (needed > limit)
+            throw new InterpreterException(String.format(
+                "Out of memory: %d bytes live, allocation of %d bytes exceeds the %d byte heap limit",
+                (long) top << 2, (long) size << 2, (long) limit << 2));
+        if (words.length == limit)
+            return;
+
+        long length = Math.max(wanted, words.length + (long) words.length / 2);
+        length = (length + CHUNK - 1) / CHUNK * CHUNK;
+        length = Math.min(length, limit);
+
+        words = Arrays.copyOf(words, (int) length);
+        refs = Arrays.copyOf(refs, (int) (length >> 6) + 1);
+    }
+
+    // collector state, only valid during a collection
+    private int[] starts;
+    private int[] targets;
+    private long[] marks;
+    private int count;
+    private int[] pending;
+    private int pendingCount;
+
+    /**
+     * Finds the object whose payload contains the given word, or one past
+     * its end; derived pointers are kept by the translated code while it
+     * walks arrays. Returns -1 for words outside every object.
+     */
+    private int objectAt(int word) {
+        int lo = 0, hi = count - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < word) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found < 0 || word > starts[found] + 1 + words[starts[found]])
+            return -1;
+        return found;
+    }
+
+    private int mark(int address) {
+        int object = objectAt(address >> 2);
+        if (object >= 0 && (marks[object >> 6] & (1L << object)) == 0) {
+            marks[object >> 6] |= 1L << object;
+            if (pendingCount == pending.length)
+                pending = Arrays.copyOf(pending, 2 * pending.length);
+            pending[pendingCount++] = object;
+        }
+        return address;
+    }
+
+    private int relocate(int address) {
+        int object = objectAt(address >> 2);
+        if (object < 0)
+            return address;
+        return address + ((targets[object] - starts[object]) << 2);
+    }
+
+    private boolean marked(int object) {
+        return (marks[object >> 6] & (1L << object)) != 0;
+    }
+
+    /**
+     * Mark-compact collection: marks everything reachable from the roots,
+     * slides the live objects to the bottom of the heap in allocation order
+     * and rewrites every reference, interior ones included.
+     */
+    public void collect() {
+        long begin = System.nanoTime();
+        int before = top;
+
+        // 1. find every object by walking the headers
+        starts = new int[1024];
+        count = 0;
+        for (int h = 0; h < top; h += 1 + words[h]) {
+            if (words[h] < 0 || h + 1L + words[h] > top)
+                throw new InterpreterException("Heap corrupted at address " + (h << 2));
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, 2 * count);
+            starts[count++] = h;
+        }
+
+        // 2. mark from the roots
+        marks = new long[(count >> 6) + 1];
+        pending = new int[256];
+        pendingCount = 0;
+        // the tables are always live, so they never move
+        for (int i = 0; i < count && starts[i] < tablesTop; i++)
+            mark((starts[i] + 1) << 2);
+        roots.update(this::mark);
+        updateSaved(this::mark);
+        while (pendingCount > 0) {
+            int h = starts[pending[--pendingCount]];
+            for (int w = h + 1, end = h + 1 + words[h]; w < end; w++) {
+                if ((refs[w >> 6] & (1L << w)) != 0)
+                    mark(words[w]);
+            }
+        }
+
+        // 3. assign the new locations
+        targets = new int[count];
+        int free = 0;
+        for (int i = 0; i < count; i++) {
+            if (marked(i)) {
+                targets[i] = free;
+                free += 1 + words[starts[i]];
+            }
+        }
+
+        // 4. rewrite references while everything is still in place
+        roots.update(this::relocate);
+        updateSaved(this::relocate);
+        for (int i = 0; i < count; i++) {
+            if (!marked(i))
+                continue;
+            int h = starts[i];
+            for (int w = h + 1, end = h + 1 + words[h]; w < end; w++) {
+                if ((refs[w >> 6] & (1L << w)) != 0)
+                    words[w] = relocate(words[w]);
+            }
+        }
+
+        // 5. slide; targets never overtake their sources, so moving in
+        // allocation order only overwrites words already moved
+        for (int i = 0; i < count; i++) {
+            if (!marked(i) || targets[i] == starts[i])
+                continue;
+            int from = starts[i], to = targets[i], length = 1 + words[from];
+            System.arraycopy(words, from, words, to, length);
+            for (int k = 0; k < length; k++) {
+                int src = from + k, dst = to + k;
+                if ((refs[src >> 6] & (1L << src)) != 0)
+                    refs[dst >> 6] |= 1L << dst;
+                else
+                    refs[dst >> 6] &= ~(1L << dst);
+            }
+        }
+
+        Arrays.fill(words, free, top, 0);
+        for (int w = free; w < top; w++)
+            refs[w >> 6] &= ~(1L << w);
+        top = free;
+
+        starts = null;
+        targets = null;
+        marks = null;
+        pending = null;
+
+        long pause = System.nanoTime() - begin;
+        collections++;
+        pauseNanos += pause;
+        maxPauseNanos = Math.max(maxPauseNanos, pause);
+        reclaimedBytes += (long) (before - top) << 2;
+
+        if (log != null)
+            log.format("[gc] #%d: %dK->%dK (%dK heap), %.3f ms%n",
+                       collections, (long) before >> 8, (long) top >> 8,
+                       (long) words.length >> 8, pause / 1e6);
+    }
+
+    public void printStatistics(PrintStream out) {
+        out.format("[gc] %d collections, %.3f ms total pause, %.3f ms max pause%n",
+                   collections, pauseNanos / 1e6, maxPauseNanos / 1e6);
+        out.format("[gc] %dK allocated, %dK reclaimed, %dK live, %dK heap%n",
+                   allocatedBytes >> 10, reclaimedBytes >> 10,
+                   (long) top >> 8, (long) words.length >> 8);
+    }
+
+    public int size() {
+        return top << 2;
+    }
+}
@@ -0,0 +1,23 @@
+package visitor;
+
+public class InterpreterException extends RuntimeException {
+    public InterpreterException() {
+        super();
+    }
+
+    public InterpreterException(Throwable cause) {
+        super(cause);
+    }
+
+    public InterpreterException(String message) {
+        super(message);
+    }
+
+    public InterpreterException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    protected InterpreterException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+}
@@ -6,21 +6,204 @@ import frame.InReg;
 import tree.*;
 import tree.node.*;
 import frame.*;
+import visitor.jvm.JvmCompiler;
 import visitor.translate.*;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
 
 public class InterpreterVisitor implements ResultVisitor<Void> {
     public Iterator<Frag> frags;
     public HashMap<String, Integer> labels;
     public ArrayList<Command> program;
-    public HashMap<String, Integer> temps;
-    public ArrayList<Integer> memory;
-    public int mp;
-    public Stack<Integer> stack;
-    public Stack<Integer> returns;
+    public HashMap<String, Procedure> procedures;
+    public int[] registers;
+    public boolean[] registerRefs;
+    public int fp;
+    public int[] code;
+    public Heap heap;
+    public int[] stack;
+    public boolean[] stackRefs;
+    public int sp;
+    public int tos;
+    public int[] returns;
+    public int rsp;
     public Access ret;
-    
+
+    private Procedure current;
+
+    /**
+     * Largest heap, in bytes, the program may use before it fails with an
+     * out of memory error.
+     */
+    public long heapLimit = (long) Heap.MAX_WORDS << 2;
+    public boolean collect = true;
+    public PrintStream gcLog;
+
+    /**
+     * Superinstructions link() may fuse, by default the whole table; null
+     * disables fusion.
+     */
+    List<Fusion> fusions = Arrays.asList(Fusion.TABLE);
+    public PrintStream fusionLog;
+
+    // executions of each code offset, only kept in a profiling run
+    public long[] counts;
+    private int[] ops;
+
+    /**
+     * Tiered execution: a procedure called {@link #invocationThreshold}
+     * times, or whose loops jumped back {@link #backedgeThreshold} times, is
+     * queued for compilation to JVM bytecode on a background thread, and its
+     * calls run the compiled code once it is ready.
+     */
+    public boolean tiered;
+    public int invocationThreshold = 1000;
+    public int backedgeThreshold = 10000;
+    public PrintStream tierLog;
+
+    /**
+     * Stack size of the thread running a tiered program, which compiled
+     * code recurses on.
+     */
+    public long stackSize = 1L << 30;
+
+    private ThreadPoolExecutor compiler;
+    private Map<String, ProcFrag> procFrags;
+    // procedure entered at each code offset, only kept when tiered
+    private Procedure[] entries;
+    // label of the loop header at each LOOP target
+    private HashMap<Integer, String> loopHeaders;
+
+    public void setHeapLimit(long bytes) {
+        heapLimit = bytes;
+    }
+
+    public void setCollect(boolean collect) {
+        this.collect = collect;
+    }
+
+    public void setGcLog(PrintStream log) {
+        gcLog = log;
+    }
+
+    public void setFuse(boolean fuse) {
+        fusions = fuse ? Arrays.asList(Fusion.TABLE) : null;
+    }
+
+    public void setFusionLog(PrintStream log) {
+        fusionLog = log;
+    }
+
+    public void setTiered(boolean tiered) {
+        this.tiered = tiered;
+    }
+
+    public void setInvocationThreshold(int calls) {
+        invocationThreshold = calls;
+    }
+
+    public void setBackedgeThreshold(int jumps) {
+        backedgeThreshold = jumps;
+    }
+
+    public void setTierLog(PrintStream log) {
+        tierLog = log;
+    }
+
+    /**
+     * Current tier of a procedure, by label; may be called from any thread
+     * while the program runs.
+     */
+    public Tier tierOf(String procedure) {
+        Procedure proc = procedures.get(procedure);
+        if (proc == null)
+            throw new IllegalArgumentException("Unknown procedure " + procedure);
+        return proc.tier;
+    }
+
+    public Map<String, Tier> tiers() {
+        Map<String, Tier> tiers = new LinkedHashMap<>();
+        for (Procedure proc : procedures.values())
+            tiers.put(proc.name, proc.tier);
+        return tiers;
+    }
+
+    /**
+     * Procedures waiting in the compile queue, the one being compiled
+     * excluded.
+     */
+    public int pendingCompilations() {
+        return compiler == null ? 0 : compiler.getQueue().size();
+    }
+
+    /**
+     * Prints the tier and counters of every procedure. The counters belong
+     * to the interpreter thread, so while the program runs they are only
+     * approximate.
+     */
+    public void printTiers(PrintStream out) {
+        for (Procedure proc : procedures.values())
+            out.format("[tier] %-40s %-11s %10d calls %12d back edges%s%n",
+                       proc.name, proc.tier, proc.invocations, proc.backedges,
+                       proc.osr != null ? ", entered at " + proc.osrLabel : "");
+    }
+
+    /**
+     * Fuses only the sequences that were frequent in the profiling run
+     * that wrote the given profile.
+     */
+    public void readFusionProfile(Reader in) throws IOException {
+        fusions = Fusion.select(Fusion.readProfile(in));
+    }
+
+    /**
+     * Makes this a profiling run: nothing is fused, and every instruction
+     * executed is counted so {@link #writeFusionProfile} can tell how often
+     * each fusible sequence ran.
+     */
+    public void setProfiling(boolean profiling) {
+        fusions = profiling ? null : Arrays.asList(Fusion.TABLE);
+        counts = profiling ? new long[0] : null;
+    }
+
+    public void writeFusionProfile(Writer out) {
+        Map<String, Long> profile = new HashMap<>();
+        long total = 0;
+        for (long count : counts)
+            total += count;
+        profile.put(Fusion.INSTRUCTIONS, total);
+        for (int i = 0; i < ops.length; i++) {
+            for (Fusion fusion : Fusion.TABLE) {
+                if (fusion.matches(ops, i))
+                    profile.merge(fusion.name, counts[offsets[i]], Long::sum);
+            }
+        }
+        Fusion.writeProfile(profile, out);
+    }
+
+    /**
+     * Writes how often each procedure called each other one in this
+     * profiling run, for {@link Inliner}.
+     */
+    public void writeCallProfile(Writer out) {
+        Map<String, Long> profile = new HashMap<>();
+        for (Procedure proc : procedures.values()) {
+            for (int i = proc.start; i < proc.end; i++) {
+                if (ops[i] == Opcode.CALL)
+                    profile.merge(proc.name + " " + program.get(i).param1, counts[offsets[i]], Long::sum);
+            }
+        }
+        Inliner.writeProfile(profile, out);
+    }
 
     public InterpreterVisitor(Iterator<Frag> frags) {
         this.frags = frags;
@@ -29,11 +212,18 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
     public void start() {
         labels = new HashMap<String, Integer>();
         program = new ArrayList<Command>();
-        temps = new HashMap<String, Integer>();
+        procedures = new LinkedHashMap<String, Procedure>();
+        procFrags = new HashMap<>();
         ret = null;
         
-        while (frags.hasNext()) {
-            Frag f = frags.next();
+        // the tables go first, the code reads their addresses as constants
+        List<Frag> all = new ArrayList<>();
+        frags.forEachRemaining(all::add);
+        heap = new Heap((int) Math.min(heapLimit >> 2, Heap.MAX_WORDS));
+        heap.place(all);
+
+        Procedure main = null;
+        for (Frag f : all) {
             if (f instanceof ProcFrag) {
                 Frame frame = ((ProcFrag) f).frame;
                 ret = frame.RVaccess();
@@ -41,60 +231,946 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
                 Stm body = ((ProcFrag) f).body;
                 System.out.println(frame.toString());
                 
+                current = new Procedure(frame.label.toString(), program.size());
+                procedures.put(current.name, current);
+                procFrags.put(current.name, (ProcFrag) f);
+                if (main == null)
+                    main = current;
+
                 labels.put(frame.label.toString(), program.size());
                 addCommand(body, new Command ("LABEL", frame.label.toString()));
                 
+                // CALL copies the arguments straight into the first slots
+                // of the callee's register window, in order
                 int numberOfParams = frame.formals.size();
-                for (int i = numberOfParams - 1; i >= 0; i--) {
+                for (int i = 0; i < numberOfParams; i++) {
                     frame.Access access = frame.formals.get(i);
                     if(access instanceof InFrame) {
+                        String slot = "arg" + i;
+                        current.register(slot);
+                        addCommand(body, new Command("TEMP", slot));
                         addCommand(body, new Command("CONST", access.toString()));
                         addCommand(body, new Command("MOVE", "MEM"));
                     } else {
-                        String tempName = access.toString();
-                        temps.put(tempName, 0);
-                        addCommand(body, new Command("MOVE", tempName));
+                        current.register(access.toString());
                     }                    
                 }
+                current.formals = numberOfParams;
+                current.rv = current.register(ret.toString());
                 
                 body.accept(this);
                 addCommand(body, new Command("RETURN"));
-
+                current.end = program.size();
+                current = null;
             }
         }
         labels.put("EOP", program.size());
         program.add(new Command("LABEL", "EOP"));
+        program.add(new Command("HALT"));
         
         for(Command cmd : program)
             System.out.println(cmd);
 
+        link();
+
         System.out.println("Running...");
 
-        temps.put(ret.toString(), 0);
-        stack = new Stack<Integer>();
-        stack.push(0); // main() recebe um parâmetro
-        returns = new Stack<Integer>();
-        returns.push(program.size());
-        memory = new ArrayList<Integer>();
-        mp = 0;
-        run();
+        registers = new int[Math.max(256, 2 * main.size)];
+        registerRefs = new boolean[registers.length];
+        fp = 0;
+        registers[0] = 0; // main() recebe um parâmetro
+        stack = new int[Math.max(256, main.maxStack + 2)];
+        stackRefs = new boolean[stack.length];
+        sp = 0;
+        tos = 0;
+        returns = new int[256];
+        rsp = 0;
+        returns[rsp++] = offsets[labels.get("EOP")];
+        returns[rsp++] = fp;
+        if (collect)
+            heap.roots = this::updateRoots;
+        heap.log = gcLog;
+        pc = offsets[main.start];
+        if (counts != null)
+            counts = new long[code.length];
+        if (tiered)
+            runTiered();
+        else
+            run();
+        if (gcLog != null)
+            heap.printStatistics(gcLog);
+    }
+
+    private void runTiered() {
+        entries = new Procedure[code.length];
+        for (Procedure proc : procedures.values())
+            entries[offsets[proc.start]] = proc;
+        compiler = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "minijava-compiler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                run();
+            } catch (RuntimeException e) {
+                failure[0] = e;
+            } catch (StackOverflowError e) {
+                failure[0] = new InterpreterException("Stack overflow in compiled code");
+            }
+        }, "minijava", stackSize);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            compiler.shutdownNow();
+        }
+        if (tierLog != null)
+            printTiers(tierLog);
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    /**
+     * Queues a procedure for compilation. When a loop made it hot, the loop
+     * header also gets an entry into the compiled code, so the activations
+     * running the loop can move over to it (on-stack replacement).
+     */
+    private void promote(Procedure proc, int loop) {
+        if (proc.tier != Tier.INTERPRETED)
+            return;
+        proc.tier = Tier.QUEUED;
+        if (loop >= 0) {
+            proc.osrEntry = loop;
+            proc.osrLabel = loopHeaders.get(loop);
+        }
+        if (tierLog != null)
+            tierLog.format("[tier] %s queued after %d calls, %d back edges%n",
+                           proc.name, proc.invocations, proc.backedges);
+        compiler.execute(() -> compile(proc));
+    }
+
+    // runs on the compiler thread
+    private void compile(Procedure proc) {
+        long start = System.nanoTime();
+        try {
+            ProcFrag frag = procFrags.get(proc.name);
+            JvmCompiler jit = new JvmCompiler();
+            jit.setPrecise(true);
+            MethodHandle compiled = jit.compile(frag, procFrags, heap);
+            MethodHandle osr = null;
+            if (proc.osrLabel != null) {
+                String[] temps = new String[proc.size];
+                for (Map.Entry<String, Integer> temp : proc.temps.entrySet())
+                    temps[temp.getValue()] = temp.getKey();
+                jit = new JvmCompiler();
+                jit.setPrecise(true);
+                osr = jit.compileOsr(frag, procFrags, heap, proc.osrLabel, Arrays.asList(temps));
+            }
+            proc.compiled = compiled;
+            proc.osr = osr;
+            proc.tier = Tier.COMPILED;
+            if (tierLog != null)
+                tierLog.format("[tier] %s compiled in %.1f ms%s%n",
+                               proc.name, (System.nanoTime() - start) / 1e6,
+                               osr != null ? ", entry at " + proc.osrLabel : "");
+        } catch (RuntimeException e) {
+            proc.tier = Tier.FAILED;
+            if (tierLog != null)
+                tierLog.format("[tier] %s not compiled: %s%n", proc.name, e.getMessage());
+        }
+    }
+
+    /**
+     * Runs compiled code, which is precise: it takes a tag after each value
+     * and saves the references it holds into the heap itself whenever it
+     * may collect, see {@link JvmCompiler#setPrecise}. The caller sets sp
+     * and registerTop first, for the roots of the interpreted activations
+     * below it, and finds the tag of the result in {@link Heap#resultRef}.
+     */
+    private int invokeCompiled(Procedure proc, MethodHandle compiled, int[] args) {
+        try {
+            return (int) compiled.invokeExact(args);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new InterpreterException("Invalid memory access in compiled " + proc.name);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // count values from an array, each followed by its tag, for compiled code
+    private static int[] tagged(int[] values, boolean[] refs, int from, int count) {
+        int[] tagged = new int[2 * count];
+        for (int i = 0; i < count; i++) {
+            tagged[2 * i] = values[from + i];
+            tagged[2 * i + 1] = refs[from + i] ? 1 : 0;
+        }
+        return tagged;
     }
 
     protected void addCommand(Hospitable n, Command cmd) {
         cmd.tag = n.tag;
         program.add(cmd);
     }
+
+    // code offset of each command in program; LABELs occupy no code
+    private int[] offsets;
+
+    private int target(String label) {
+        Integer index = labels.get(label);
+        if (index == null)
+            throw new IllegalStateException("Undefined label " + label);
+        return offsets[index];
+    }
+
+    /**
+     * Lowers the symbolic command list into the dense code array. Operand
+     * strings are decoded once here, and every label operand is replaced by
+     * the absolute offset of the instruction it names. Runs of commands
+     * matching an enabled {@link Fusion} become one superinstruction.
+     */
+    private void link() {
+        ops = new int[program.size()];
+        offsets = new int[program.size() + 1];
+        loopHeaders = tiered ? new HashMap<>() : null;
+        for (int i = 0; i < program.size(); i++) {
+            ops[i] = program.get(i).opcode();
+            // backward jumps count the loop iterations of their procedure
+            if (tiered && ops[i] == Opcode.JUMP) {
+                Integer target = labels.get(program.get(i).param1);
+                if (target != null && target <= i)
+                    ops[i] = Opcode.LOOP;
+            }
+        }
+
+        Fusion[] fused = new Fusion[program.size()];
+        Map<Fusion, Integer> fired = new LinkedHashMap<>();
+        int size = 0;
+        for (int i = 0; i < program.size(); ) {
+            offsets[i] = size;
+            Fusion fusion = fuse(i);
+            if (fusion != null) {
+                fused[i] = fusion;
+                fired.merge(fusion, 1, Integer::sum);
+                // the commands folded in produce no code of their own
+                for (int k = 1; k < fusion.pattern.length; k++)
+                    offsets[i + k] = size;
+                size += Opcode.LENGTHS[fusion.opcode];
+                i += fusion.pattern.length;
+            } else {
+                if (ops[i] >= 0)
+                    size += Opcode.LENGTHS[ops[i]];
+                i++;
+            }
+        }
+        offsets[program.size()] = size;
+
+        code = new int[size];
+        int[] part = new int[8];
+        Procedure proc = null;
+        for (int i = 0; i < program.size(); i++) {
+            Command cmd = program.get(i);
+            if (proc == null || i >= proc.end)
+                proc = procedures.get(cmd.param1);
+            if (fused[i] != null) {
+                // the immediates of each folded command, in order
+                int at = offsets[i];
+                code[at++] = fused[i].opcode;
+                for (int k = 0; k < fused[i].pattern.length; k++) {
+                    int op = ops[i + k];
+                    encode(program.get(i + k), op, proc, part, 0);
+                    System.arraycopy(part, 1, code, at, Opcode.LENGTHS[op] - 1);
+                    at += Opcode.LENGTHS[op] - 1;
+                }
+                i += fused[i].pattern.length - 1;
+            } else if (ops[i] >= 0) {
+                encode(cmd, ops[i], proc, code, offsets[i]);
+            }
+        }
+
+        if (fusionLog != null) {
+            for (Map.Entry<Fusion, Integer> entry : fired.entrySet())
+                fusionLog.format("[fusion] %-12s %6d sites%n",
+                                 entry.getKey().name, entry.getValue());
+        }
+
+        for (Procedure p : procedures.values())
+            p.maxStack = maxStack(p);
+        for (int i = 0; i < program.size(); i++) {
+            if (ops[i] == Opcode.CALL)
+                code[offsets[i] + 5] = procedures.get(program.get(i).param1).maxStack;
+        }
+        numbered = new Procedure[heap.procedures.size()];
+        for (int i = 0; i < numbered.length; i++)
+            numbered[i] = procedures.get(heap.procedures.get(i));
+    }
+
+    // the procedure each number in the tables names, see Heap.procedures
+    private Procedure[] numbered;
+
+    private Procedure numbered(int number, int nargs) {
+        Procedure callee = number > 0 && number <= numbered.length ? numbered[number - 1] : null;
+        if (callee == null || callee.formals != nargs)
+            throw new InterpreterException("Invalid indirect call");
+        return callee;
+    }
     
-    public int pp = 0;
+    private Fusion fuse(int i) {
+        if (fusions == null)
+            return null;
+        for (Fusion fusion : fusions) {
+            if (fusion.matches(ops, i))
+                return fusion;
+        }
+        return null;
+    }
+
+    // writes the instruction of one command at into[at]
+    private void encode(Command cmd, int op, Procedure proc, int[] into, int at) {
+        into[at] = op;
+        switch (op) {
+            case Opcode.CONST:
+                into[at + 1] = Integer.parseInt(cmd.param1);
+                break;
+            case Opcode.TEMP:
+            case Opcode.MOVE:
+                into[at + 1] = proc.temps.get(cmd.param1);
+                break;
+            case Opcode.JUMP:
+                into[at + 1] = target(cmd.param1);
+                break;
+            case Opcode.LOOP:
+                into[at + 1] = target(cmd.param1);
+                into[at + 2] = offsets[proc.start];
+                loopHeaders.put(into[at + 1], cmd.param1);
+                break;
+            case Opcode.CALL: {
+                Procedure callee = procedures.get(cmd.param1);
+                if (callee == null)
+                    throw new IllegalStateException("Undefined procedure " + cmd.param1);
+                int nargs = Integer.parseInt(cmd.param2);
+                if (nargs != callee.formals)
+                    throw new IllegalStateException(String.format(
+                        "%s expects %d arguments, got %d", callee.name,
+                        callee.formals, nargs));
+                into[at + 1] = offsets[callee.start];
+                into[at + 2] = nargs;
+                into[at + 3] = callee.size;
+                into[at + 4] = proc.size;
+                break;
+            }
+            case Opcode.CALLI:
+                into[at + 1] = Integer.parseInt(cmd.param1);
+                into[at + 2] = proc.size;
+                break;
+            case Opcode.HALLOC:
+            case Opcode.NEWARRAY:
+                checkArguments(cmd, 1);
+                into[at + 1] = proc.size;
+                break;
+            case Opcode.PRINTINT:
+                checkArguments(cmd, 1);
+                break;
+            case Opcode.ERROR:
+                checkArguments(cmd, 0);
+                break;
+            case Opcode.RETURN:
+                into[at + 1] = proc.rv;
+                break;
+            default:
+                if (op >= Opcode.CJUMP_EQ && op <= Opcode.CJUMP_UGE) {
+                    into[at + 1] = target(cmd.param2);
+                    into[at + 2] = target(cmd.param3);
+                }
+        }
+    }
+
+    private static void checkArguments(Command cmd, int expected) {
+        int nargs = Integer.parseInt(cmd.param2);
+        if (nargs != expected)
+            throw new IllegalStateException(String.format(
+                "%s called with %d arguments", cmd.param1, nargs));
+    }
+
+    public int pc = 0;
+
+    /**
+     * Computes the deepest operand stack a procedure can build on top of
+     * the depth it is entered with, following both arms of every branch.
+     */
+    private int maxStack(Procedure proc) {
+        int from = offsets[proc.start];
+        int to = offsets[proc.end];
+        int[] depth = new int[to - from];
+        Arrays.fill(depth, -1);
+
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        depth[0] = 0;
+        work.push(from);
+        int max = 0;
+        while (!work.isEmpty()) {
+            int at = work.pop();
+            int op = code[at];
+            int d = depth[at - from];
+            switch (op) {
+                case Opcode.CONST:
+                case Opcode.TEMP:
+                case Opcode.ERROR:
+                case Opcode.LOAD_TC:
+                case Opcode.TEMP_ADDI:
+                case Opcode.ADD_TT:
+                case Opcode.LOAD_T:
+                    d += 1;
+                    break;
+                case Opcode.MOVE:
+                case Opcode.POP:
+                case Opcode.PLUS:
+                case Opcode.MINUS:
+                case Opcode.MUL:
+                case Opcode.AND:
+                case Opcode.LSHIFT:
+                case Opcode.RSHIFT:
+                case Opcode.ARSHIFT:
+                case Opcode.STORE_TC:
+                case Opcode.CJUMP_EQ_C:
+                    d -= 1;
+                    break;
+                case Opcode.STORE:
+                    d -= 2;
+                    break;
+                case Opcode.CALL:
+                    d += 1 - code[at + 2];
+                    break;
+                case Opcode.CALLI:
+                    // the number goes too
+                    d -= code[at + 1];
+                    break;
+                default:
+                    if (op >= Opcode.CJUMP_EQ && op <= Opcode.CJUMP_UGE)
+                        d -= 2;
+            }
+            max = Math.max(max, d);
 
+            int[] next;
+            int targets = Opcode.targets(op);
+            if (op == Opcode.JUMP || op == Opcode.LOOP)
+                next = new int[] { code[at + 1] };
+            else if (targets > 0)
+                next = new int[] { code[at + targets], code[at + targets + 1] };
+            else if (op == Opcode.RETURN || op == Opcode.HALT)
+                next = new int[0];
+            else
+                next = new int[] { at + Opcode.LENGTHS[op] };
+
+            for (int succ : next) {
+                if (depth[succ - from] < 0) {
+                    depth[succ - from] = d;
+                    work.push(succ);
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Largest number of words the register, operand and return stacks may
+     * each grow to before the program is stopped with a stack overflow.
+     */
+    public int stackLimit = 16 * 1024 * 1024;
+
+    public void setStackLimit(int words) {
+        stackLimit = words;
+    }
+
+    private Procedure procedureAt(int pc) {
+        for (Procedure proc : procedures.values()) {
+            if (pc >= offsets[proc.start] && pc < offsets[proc.end])
+                return proc;
+        }
+        return null;
+    }
+
+    private int[] grow(int[] array, int needed, int pc, int depth) {
+        if (needed > stackLimit) {
+            Procedure proc = procedureAt(pc);
+            throw new InterpreterException(String.format(
+                "Stack overflow: %d nested calls deep in %s",
+                depth, proc == null ? "?" : proc.name));
+        }
+        int size = Math.max(needed, 2 * array.length);
+        return Arrays.copyOf(array, Math.min(size, stackLimit));
+    }
+
+    // end of the live register windows, only valid while the heap collects
+    private int registerTop;
+
+    /**
+     * Hands the heap every register and operand stack slot holding a
+     * reference. The top of the stack is never one: the heap collects
+     * inside HALLOC or NEWARRAY, where it is the requested size, or inside
+     * compiled code, which is only entered with the top pushed.
+     */
+    private void updateRoots(IntUnaryOperator f) {
+        for (int i = 0; i < registerTop; i++) {
+            if (registerRefs[i])
+                registers[i] = f.applyAsInt(registers[i]);
+        }
+        for (int i = 1; i < sp; i++) {
+            if (stackRefs[i])
+                stack[i] = f.applyAsInt(stack[i]);
+        }
+    }
+
+    // The operand stack keeps its top value in a local (tos) for the whole
+    // loop; stack[0, sp) holds the values below it. stack[0] is never a
+    // real value, it just receives the stale tos when the stack is empty.
+    //
+    // Every register and stack slot carries a flag telling whether it holds
+    // a heap reference, as does every heap word, so the collector can find
+    // and move them precisely. HALLOC and NEWARRAY results are references; PLUS and
+    // MINUS keep the flag of a reference operand, since the translated code
+    // walks arrays with derived pointers; every other result is plain data.
     private void run() {
-        while (pp < program.size()) {
-            Command cmd = program.get(pp);
-            cmd.run(this);
-            pp++;
+        final int[] code = this.code;
+        final long[] counts = this.counts;
+        int[] registers = this.registers;
+        boolean[] registerRefs = this.registerRefs;
+        int[] stack = this.stack;
+        boolean[] stackRefs = this.stackRefs;
+        int[] returns = this.returns;
+        int[] memory = heap.words;
+        long[] refs = heap.refs;
+        int fp = this.fp;
+        int pc = this.pc;
+        int sp = this.sp;
+        int rsp = this.rsp;
+        int tos = this.tos;
+        boolean tosRef = false;
+
+        try {
+            while (true) {
+                int l;
+                if (counts != null)
+                    counts[pc]++;
+                switch (code[pc]) {
+                    case Opcode.CONST:
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        tos = code[pc + 1];
+                        tosRef = false;
+                        pc += 2;
+                        break;
+                    case Opcode.TEMP:
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        tos = registers[fp + code[pc + 1]];
+                        tosRef = registerRefs[fp + code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Opcode.MOVE:
+                        registers[fp + code[pc + 1]] = tos;
+                        registerRefs[fp + code[pc + 1]] = tosRef;
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        pc += 2;
+                        break;
+                    case Opcode.STORE: {
+                        int value = stack[--sp];
+                        int w = tos >> 2;
+                        memory[w] = value;
+                        if (stackRefs[sp])
+                            refs[w >> 6] |= 1L << w;
+                        else
+                            refs[w >> 6] &= ~(1L << w);
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        pc += 1;
+                        break;
+                    }
+                    case Opcode.MEM: {
+                        int w = tos >> 2;
+                        tos = memory[w];
+                        tosRef = (refs[w >> 6] & (1L << w)) != 0;
+                        pc += 1;
+                        break;
+                    }
+                    case Opcode.PLUS:
+                        tos = stack[--sp] + tos;
+                        tosRef |= stackRefs[sp];
+                        pc += 1;
+                        break;
+                    case Opcode.MINUS:
+                        tos = stack[--sp] - tos;
+                        tosRef = stackRefs[sp];
+                        pc += 1;
+                        break;
+                    case Opcode.MUL:
+                        tos = stack[--sp] * tos;
+                        tosRef = false;
+                        pc += 1;
+                        break;
+                    case Opcode.AND:
+                        tos = stack[--sp] & tos;
+                        tosRef = false;
+                        pc += 1;
+                        break;
+                    case Opcode.CJUMP_EQ:
+                        l = stack[--sp];
+                        pc = l == tos ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_NE:
+                        l = stack[--sp];
+                        pc = l != tos ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_LT:
+                        l = stack[--sp];
+                        pc = l < tos ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_GT:
+                        l = stack[--sp];
+                        pc = l > tos ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_LE:
+                        l = stack[--sp];
+                        pc = l <= tos ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_GE:
+                        l = stack[--sp];
+                        pc = l >= tos ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_ULT:
+                        l = stack[--sp];
+                        pc = Integer.compareUnsigned(l, tos) < 0 ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_ULE:
+                        l = stack[--sp];
+                        pc = Integer.compareUnsigned(l, tos) <= 0 ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_UGT:
+                        l = stack[--sp];
+                        pc = Integer.compareUnsigned(l, tos) > 0 ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.CJUMP_UGE:
+                        l = stack[--sp];
+                        pc = Integer.compareUnsigned(l, tos) >= 0 ? code[pc + 1] : code[pc + 2];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case Opcode.LOOP: {
+                        Procedure proc = entries[code[pc + 2]];
+                        MethodHandle osr = proc.osr;
+                        if (osr != null && code[pc + 1] == proc.osrEntry) {
+                            // the compiled code takes the registers over and
+                            // runs the activation to its end; then return
+                            // from it as RETURN does
+                            int[] window = tagged(registers, registerRefs, fp, proc.size);
+                            stackRefs[sp] = tosRef;
+                            stack[sp++] = tos;
+                            this.sp = sp;
+                            registerTop = fp;
+                            tos = invokeCompiled(proc, osr, window);
+                            tosRef = heap.resultRef;
+                            memory = heap.words;
+                            refs = heap.refs;
+                            fp = returns[--rsp];
+                            pc = returns[--rsp];
+                            break;
+                        }
+                        if (++proc.backedges == backedgeThreshold)
+                            promote(proc, code[pc + 1]);
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    case Opcode.CALLI:
+                    case Opcode.CALL: {
+                        int nargs, target, size, frame, depth, next;
+                        if (code[pc] == Opcode.CALL) {
+                            target = code[pc + 1];
+                            nargs = code[pc + 2];
+                            size = code[pc + 3];
+                            frame = code[pc + 4];
+                            depth = code[pc + 5];
+                            next = pc + 6;
+                        } else {
+                            // take the number out from under the arguments
+                            nargs = code[pc + 1];
+                            Procedure proc;
+                            if (nargs > 0) {
+                                proc = numbered(stack[sp - nargs], nargs);
+                                System.arraycopy(stack, sp - nargs + 1, stack, sp - nargs, nargs - 1);
+                                System.arraycopy(stackRefs, sp - nargs + 1, stackRefs, sp - nargs, nargs - 1);
+                                sp--;
+                            } else {
+                                proc = numbered(tos, nargs);
+                                tos = stack[--sp];
+                                tosRef = stackRefs[sp];
+                            }
+                            target = offsets[proc.start];
+                            size = proc.size;
+                            frame = code[pc + 2];
+                            depth = proc.maxStack;
+                            next = pc + 3;
+                        }
+                        if (entries != null) {
+                            Procedure proc = entries[target];
+                            MethodHandle compiled = proc.compiled;
+                            if (compiled != null) {
+                                // with the top pushed, the arguments are the
+                                // last slots of the stack and the top of the
+                                // caller's part is left under them
+                                stackRefs[sp] = tosRef;
+                                stack[sp++] = tos;
+                                sp -= nargs;
+                                int[] args = tagged(stack, stackRefs, sp, nargs);
+                                this.sp = sp;
+                                registerTop = fp + frame;
+                                tos = invokeCompiled(proc, compiled, args);
+                                tosRef = heap.resultRef;
+                                // the compiled code may have grown the heap
+                                memory = heap.words;
+                                refs = heap.refs;
+                                pc = next;
+                                break;
+                            }
+                            if (++proc.invocations == invocationThreshold)
+                                promote(proc, -1);
+                        }
+                        int callee = fp + frame;
+                        int end = callee + size;
+                        if (end > registers.length) {
+                            this.registers = registers = grow(registers, end, pc, rsp / 2);
+                            this.registerRefs = registerRefs = Arrays.copyOf(registerRefs, registers.length);
+                        }
+                        if (rsp + 2 > returns.length)
+                            this.returns = returns = grow(returns, rsp + 2, pc, rsp / 2);
+                        if (nargs > 0) {
+                            registers[callee + nargs - 1] = tos;
+                            registerRefs[callee + nargs - 1] = tosRef;
+                            sp -= nargs - 1;
+                            System.arraycopy(stack, sp, registers, callee, nargs - 1);
+                            System.arraycopy(stackRefs, sp, registerRefs, callee, nargs - 1);
+                            tos = stack[--sp];
+                            tosRef = stackRefs[sp];
+                        }
+                        Arrays.fill(registers, callee + nargs, end, 0);
+                        Arrays.fill(registerRefs, callee + nargs, end, false);
+                        // room for everything the callee may push, plus the
+                        // slot its return value is pushed into
+                        if (sp + depth + 2 > stack.length) {
+                            this.stack = stack = grow(stack, sp + depth + 2, pc, rsp / 2);
+                            this.stackRefs = stackRefs = Arrays.copyOf(stackRefs, stack.length);
+                        }
+                        returns[rsp++] = next;
+                        returns[rsp++] = fp;
+                        fp = callee;
+                        pc = target;
+                        break;
+                    }
+                    case Opcode.PRINTINT:
+                        System.out.println(tos);
+                        tos = 0;
+                        tosRef = false;
+                        pc += 1;
+                        break;
+                    case Opcode.HALLOC:
+                        // the collector may run, and it reads and updates
+                        // the roots through the fields
+                        this.sp = sp;
+                        registerTop = fp + code[pc + 1];
+                        tos = heap.alloc(tos);
+                        tosRef = true;
+                        memory = heap.words;
+                        refs = heap.refs;
+                        pc += 2;
+                        break;
+                    case Opcode.NEWARRAY:
+                        // as HALLOC, but for the length of an array
+                        this.sp = sp;
+                        registerTop = fp + code[pc + 1];
+                        tos = heap.allocArray(tos);
+                        tosRef = true;
+                        memory = heap.words;
+                        refs = heap.refs;
+                        pc += 2;
+                        break;
+                    case Opcode.ERROR:
+                        System.out.println("ERRO: Acessando array fora dos limites!");
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        tos = 0;
+                        tosRef = false;
+                        pc += 1;
+                        break;
+                    case Opcode.POP:
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        pc += 1;
+                        break;
+                    case Opcode.RETURN: {
+                        int value = registers[fp + code[pc + 1]];
+                        boolean ref = registerRefs[fp + code[pc + 1]];
+                        fp = returns[--rsp];
+                        pc = returns[--rsp];
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        tos = value;
+                        tosRef = ref;
+                        break;
+                    }
+                    case Opcode.LOAD_TC: {
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        int w = (registers[fp + code[pc + 1]] + code[pc + 2]) >> 2;
+                        tos = memory[w];
+                        tosRef = (refs[w >> 6] & (1L << w)) != 0;
+                        pc += 3;
+                        break;
+                    }
+                    case Opcode.STORE_TC: {
+                        int w = (registers[fp + code[pc + 1]] + code[pc + 2]) >> 2;
+                        memory[w] = tos;
+                        if (tosRef)
+                            refs[w >> 6] |= 1L << w;
+                        else
+                            refs[w >> 6] &= ~(1L << w);
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        pc += 3;
+                        break;
+                    }
+                    case Opcode.ADDI_MOVE:
+                        registers[fp + code[pc + 3]] = registers[fp + code[pc + 1]] + code[pc + 2];
+                        registerRefs[fp + code[pc + 3]] = registerRefs[fp + code[pc + 1]];
+                        pc += 4;
+                        break;
+                    case Opcode.CJUMP_EQ_TC:
+                        pc = registers[fp + code[pc + 1]] == code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case Opcode.CJUMP_LT_TC:
+                        pc = registers[fp + code[pc + 1]] < code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case Opcode.CJUMP_LT_TT:
+                        pc = registers[fp + code[pc + 1]] < registers[fp + code[pc + 2]]
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case Opcode.CJUMP_UGE_TT:
+                        pc = Integer.compareUnsigned(registers[fp + code[pc + 1]],
+                                                     registers[fp + code[pc + 2]]) >= 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case Opcode.TEMP_ADDI:
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        tos = registers[fp + code[pc + 1]] + code[pc + 2];
+                        tosRef = registerRefs[fp + code[pc + 1]];
+                        pc += 3;
+                        break;
+                    case Opcode.ADD_TT:
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        tos = registers[fp + code[pc + 1]] + registers[fp + code[pc + 2]];
+                        tosRef = registerRefs[fp + code[pc + 1]] | registerRefs[fp + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case Opcode.LOAD_T: {
+                        stackRefs[sp] = tosRef;
+                        stack[sp++] = tos;
+                        int w = registers[fp + code[pc + 1]] >> 2;
+                        tos = memory[w];
+                        tosRef = (refs[w >> 6] & (1L << w)) != 0;
+                        pc += 2;
+                        break;
+                    }
+                    case Opcode.MOVE_CONST:
+                        registers[fp + code[pc + 2]] = code[pc + 1];
+                        registerRefs[fp + code[pc + 2]] = false;
+                        pc += 3;
+                        break;
+                    case Opcode.MOVE_TEMP:
+                        registers[fp + code[pc + 2]] = registers[fp + code[pc + 1]];
+                        registerRefs[fp + code[pc + 2]] = registerRefs[fp + code[pc + 1]];
+                        pc += 3;
+                        break;
+                    case Opcode.CJUMP_EQ_C:
+                        pc = tos == code[pc + 1] ? code[pc + 2] : code[pc + 3];
+                        tos = stack[--sp];
+                        tosRef = stackRefs[sp];
+                        break;
+                    case Opcode.ADDI:
+                        tos += code[pc + 1];
+                        pc += 2;
+                        break;
+                    case Opcode.MULI:
+                        tos *= code[pc + 1];
+                        tosRef = false;
+                        pc += 2;
+                        break;
+                    case Opcode.LSHIFT:
+                        tos = stack[--sp] << tos;
+                        tosRef = false;
+                        pc += 1;
+                        break;
+                    case Opcode.RSHIFT:
+                        tos = stack[--sp] >>> tos;
+                        tosRef = false;
+                        pc += 1;
+                        break;
+                    case Opcode.ARSHIFT:
+                        tos = stack[--sp] >> tos;
+                        tosRef = false;
+                        pc += 1;
+                        break;
+                    case Opcode.SHLI:
+                        tos <<= code[pc + 1];
+                        tosRef = false;
+                        pc += 2;
+                        break;
+                    case Opcode.HALT:
+                        this.fp = fp;
+                        this.pc = pc;
+                        this.sp = sp;
+                        this.rsp = rsp;
+                        this.tos = tos;
+                        return;
+                    default:
+                        throw new IllegalStateException("Bad opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // registers and stacks are sized ahead of time, so only a heap
+            // access can land out of bounds
+            Procedure proc = procedureAt(pc);
+            throw new InterpreterException(String.format(
+                "Invalid memory access in %s", proc == null ? "?" : proc.name));
         }
-        // for (int i = 0; i < memory.size(); i++)
-        //   System.out.println(":" + i + " -> " + memory.get(i));
     }
 
     public Void visit(SEQ n) {
@@ -123,12 +1199,26 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
 
     private String relop(int b) {
         switch (b) {
-            case 0:
+            case CJUMP.EQ:
                 return "EQ";
-            case 2:
+            case CJUMP.NE:
+                return "NE";
+            case CJUMP.LT:
                 return "LT";
-            case 5:
+            case CJUMP.GT:
+                return "GT";
+            case CJUMP.LE:
+                return "LE";
+            case CJUMP.GE:
                 return "GE";
+            case CJUMP.ULT:
+                return "ULT";
+            case CJUMP.ULE:
+                return "ULE";
+            case CJUMP.UGT:
+                return "UGT";
+            case CJUMP.UGE:
+                return "UGE";
         }
         return "";
     }
@@ -136,8 +1226,9 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
     public Void visit(MOVE n) {
         n.src.accept(this);
         if (n.dst instanceof TEMP) {
-
-            addCommand(n, new Command("MOVE", ((TEMP) n.dst).temp.toString()));
+            String tempName = ((TEMP) n.dst).temp.toString();
+            current.register(tempName);
+            addCommand(n, new Command("MOVE", tempName));
         } else if (n.dst instanceof MEM) {
             ((MEM) n.dst).exp.accept(this);
 
@@ -170,6 +1261,12 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
                 return "MUL";
             case 4:
                 return "AND";
+            case 6:
+                return "LSHIFT";
+            case 7:
+                return "RSHIFT";
+            case 8:
+                return "ARSHIFT";
         }
         return "";
     }
@@ -181,6 +1278,7 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
     }
 
     public Void visit(TEMP n) {
+        current.register(n.temp.toString());
         addCommand(n, new Command("TEMP", n.temp.toString()));
         return null;
     }
@@ -192,8 +1290,7 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
     }
 
     public Void visit(NAME n) {
-        labels.put(n.label.toString(), program.size());
-        addCommand(n, new Command("LABEL", n.label.toString()));
+        addCommand(n, new Command("CONST", String.valueOf(heap.table(n.label.toString()))));
         return null;
     }
 
@@ -203,10 +1300,15 @@ public class InterpreterVisitor implements ResultVisitor<Void> {
     }
 
     public Void visit(CALL n) {
+        if (!(n.func instanceof NAME))
+            n.func.accept(this);
         for (Exp e : n.args)
             e.accept(this);
         
-        addCommand(n, new Command("CALL", ((NAME) n.func).label.toString(), String.valueOf(n.args.size())));
+        if (n.func instanceof NAME)
+            addCommand(n, new Command("CALL", ((NAME) n.func).label.toString(), String.valueOf(n.args.size())));
+        else
+            addCommand(n, new Command("CALLI", String.valueOf(n.args.size())));
         return null;
     }
 
@@ -241,82 +1343,51 @@ class Command {
         command = cmd;
     }
 
-    public void run(InterpreterVisitor v) {
-        //System.out.println(this);
-        
-        if (command.equals("RETURN")) {
-            v.pp = v.returns.pop();
-            v.stack.push(v.temps.get(v.ret.toString()).intValue());
-        } else if (command.equals("CONST")) {
-            v.stack.push(Integer.parseInt(param1));
-        } else if (command.equals("MOVE")) {
-            if (param1.equals("MEM")) {
-                int address = v.stack.pop().intValue();
-                int value = v.stack.pop().intValue();
-                v.memory.set(address / 4, value);
-            } else {
-                v.temps.put(param1, v.stack.pop().intValue());
-            }
-        } else if (command.equals("MEM")) {
-            int address = v.stack.pop().intValue();
-            // System.out.println("***************** " + address + " -> " + v.memory.get(address/4).intValue());
-            // for (int i = 0; i < v.memory.size(); i++)
-            //   System.out.println(":" + i + " -> " + v.memory.get(i).intValue());
-            v.stack.push(v.memory.get(address / 4).intValue());
-        } else if (command.equals("BINOP")) {
-            int r = v.stack.pop().intValue();
-            int l = v.stack.pop().intValue();
-            if (param1.equals("PLUS")) {
-                v.stack.push(l + r);
-            } else if (param1.equals("MINUS")) {
-                v.stack.push(l - r);
-            } else if (param1.equals("MUL")) {
-                v.stack.push(l * r);
-            }
-        } else if (command.equals("CJUMP")) {
-            int r = v.stack.pop().intValue();
-            int l = v.stack.pop().intValue();
-            if (param1.equals("LT")) {
-                if (l < r) {
-                    v.pp = v.labels.get(param2);
-                } else {
-                    v.pp = v.labels.get(param3);
-                }
-            } else if (param1.equals("EQ")) {
-                if (l == r) {
-                    v.pp = v.labels.get(param2);
-                } else {
-                    v.pp = v.labels.get(param3);
-                }
-            } else if (param1.equals("GE")) {
-                if (l >= r) {
-                    v.pp = v.labels.get(param2);
-                } else {
-                    v.pp = v.labels.get(param3);
+    /**
+     * Decodes the symbolic command into its {@link Opcode}, or -1 for
+     * commands that produce no code (labels).
+     */
+    public int opcode() {
+        switch (command) {
+            case "LABEL":
+                return -1;
+            case "RETURN":
+                return Opcode.RETURN;
+            case "CONST":
+                return Opcode.CONST;
+            case "MOVE":
+                return param1.equals("MEM") ? Opcode.STORE : Opcode.MOVE;
+            case "MEM":
+                return Opcode.MEM;
+            case "BINOP":
+                return Opcode.binop(param1);
+            case "CJUMP":
+                return Opcode.cjump(param1);
+            case "TEMP":
+                return Opcode.TEMP;
+            case "JUMP":
+                return Opcode.JUMP;
+            case "CALL":
+                switch (param1) {
+                    case "_printint":
+                        return Opcode.PRINTINT;
+                    case "_halloc":
+                        return Opcode.HALLOC;
+                    case "_newarray":
+                        return Opcode.NEWARRAY;
+                    case "_error":
+                        return Opcode.ERROR;
+                    default:
+                        return Opcode.CALL;
                 }
-            }
-        } else if (command.equals("TEMP")) {
-            v.stack.push(v.temps.get(param1).intValue());
-        } else if (command.equals("JUMP")) {
-            v.pp = v.labels.get(param1);
-        } else if (command.equals("CALL")) {
-            if (param1.equals("_printint")) {
-                System.out.println(v.stack.pop());
-                v.stack.push(0);
-            } else if (param1.equals("_halloc")) {
-                int arraySize = v.stack.pop().intValue() / 4;
-                for (int i = 0; i < arraySize; i++)
-                    v.memory.add(0);
-                v.stack.push(v.mp * 4);
-                v.mp += arraySize;
-            } else if (param1.equals("_error")) {
-                System.out.println("ERRO: Acessando array fora dos limites!");
-                v.stack.push(0);
-            } else {
-                v.returns.push(v.pp);
-                v.pp = v.labels.get(param1);
-            }
+            case "CALLI":
+                return Opcode.CALLI;
+            case "EXPR":
+                return Opcode.POP;
+            case "HALT":
+                return Opcode.HALT;
         }
+        throw new IllegalArgumentException("Unknown command " + command);
     }
 
     public String toString() {
@@ -330,4 +1401,3 @@ class Command {
                              Arrays.toString(params.toArray()), tag);
     }
 }
-
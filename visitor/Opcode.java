@@ -0,0 +1,130 @@
+package visitor;
+
+/**
+ * Instruction set of the interpreter's linked code array. Every instruction
+ * is one opcode word followed by {@link #LENGTHS}[op] - 1 immediate words:
+ * constants, register numbers and absolute code offsets.
+ *
+ * The opcodes from {@link #LOAD_TC} to {@link #MULI}, and {@link #SHLI}, are
+ * superinstructions, which only link() produces; see {@link Fusion}. {@link #LOOP} is a JUMP to an earlier
+ * offset, which link() only emits under tiered execution, to count the
+ * back edges of the procedure whose entry offset it carries. {@link #CALLI}
+ * calls the procedure whose number, see {@link Heap#procedures}, is on the
+ * stack under its arguments.
+ */
+final class Opcode {
+    public final static int CONST = 0, TEMP = 1, MOVE = 2, STORE = 3, MEM = 4,
+            PLUS = 5, MINUS = 6, MUL = 7, AND = 8,
+            CJUMP_EQ = 9, CJUMP_NE = 10, CJUMP_LT = 11, CJUMP_GT = 12,
+            CJUMP_LE = 13, CJUMP_GE = 14, CJUMP_ULT = 15, CJUMP_ULE = 16,
+            CJUMP_UGT = 17, CJUMP_UGE = 18,
+            JUMP = 19, CALL = 20, PRINTINT = 21, HALLOC = 22, ERROR = 23,
+            POP = 24, RETURN = 25, HALT = 26,
+            LOAD_TC = 27, STORE_TC = 28, ADDI_MOVE = 29,
+            CJUMP_EQ_TC = 30, CJUMP_LT_TC = 31, CJUMP_LT_TT = 32, CJUMP_UGE_TT = 33,
+            TEMP_ADDI = 34, ADD_TT = 35, LOAD_T = 36, MOVE_CONST = 37,
+            MOVE_TEMP = 38, CJUMP_EQ_C = 39, ADDI = 40, MULI = 41,
+            LOOP = 42, LSHIFT = 43, RSHIFT = 44, ARSHIFT = 45, SHLI = 46,
+            CALLI = 47, NEWARRAY = 48;
+
+    static final String[] NAMES = {
+        "CONST", "TEMP", "MOVE", "STORE", "MEM",
+        "PLUS", "MINUS", "MUL", "AND",
+        "CJUMP_EQ", "CJUMP_NE", "CJUMP_LT", "CJUMP_GT",
+        "CJUMP_LE", "CJUMP_GE", "CJUMP_ULT", "CJUMP_ULE",
+        "CJUMP_UGT", "CJUMP_UGE",
+        "JUMP", "CALL", "PRINTINT", "HALLOC", "ERROR",
+        "POP", "RETURN", "HALT",
+        "LOAD_TC", "STORE_TC", "ADDI_MOVE",
+        "CJUMP_EQ_TC", "CJUMP_LT_TC", "CJUMP_LT_TT", "CJUMP_UGE_TT",
+        "TEMP_ADDI", "ADD_TT", "LOAD_T", "MOVE_CONST",
+        "MOVE_TEMP", "CJUMP_EQ_C", "ADDI", "MULI",
+        "LOOP", "LSHIFT", "RSHIFT", "ARSHIFT", "SHLI",
+        "CALLI", "NEWARRAY"
+    };
+
+    // opcode word included
+    static final int[] LENGTHS = {
+        2, 2, 2, 1, 1,
+        1, 1, 1, 1,
+        3, 3, 3, 3,
+        3, 3, 3, 3,
+        3, 3,
+        2, 6, 1, 2, 1,
+        1, 2, 1,
+        3, 3, 4,
+        5, 5, 5, 5,
+        3, 3, 2, 3,
+        3, 4, 2, 2,
+        3, 1, 1, 1, 2,
+        3, 2
+    };
+
+    private Opcode() {
+    }
+
+    /**
+     * Position of the first of the two branch targets of a conditional
+     * jump, relative to its opcode word, or 0 for every other instruction.
+     */
+    static int targets(int op) {
+        if (op >= CJUMP_EQ && op <= CJUMP_UGE)
+            return 1;
+        switch (op) {
+            case CJUMP_EQ_TC:
+            case CJUMP_LT_TC:
+            case CJUMP_LT_TT:
+            case CJUMP_UGE_TT:
+                return 3;
+            case CJUMP_EQ_C:
+                return 2;
+        }
+        return 0;
+    }
+
+    static int binop(String name) {
+        switch (name) {
+            case "PLUS":
+                return PLUS;
+            case "MINUS":
+                return MINUS;
+            case "MUL":
+                return MUL;
+            case "AND":
+                return AND;
+            case "LSHIFT":
+                return LSHIFT;
+            case "RSHIFT":
+                return RSHIFT;
+            case "ARSHIFT":
+                return ARSHIFT;
+        }
+        throw new IllegalArgumentException("Unsupported BINOP " + name);
+    }
+
+    static int cjump(String relop) {
+        switch (relop) {
+            case "EQ":
+                return CJUMP_EQ;
+            case "NE":
+                return CJUMP_NE;
+            case "LT":
+                return CJUMP_LT;
+            case "GT":
+                return CJUMP_GT;
+            case "LE":
+                return CJUMP_LE;
+            case "GE":
+                return CJUMP_GE;
+            case "ULT":
+                return CJUMP_ULT;
+            case "ULE":
+                return CJUMP_ULE;
+            case "UGT":
+                return CJUMP_UGT;
+            case "UGE":
+                return CJUMP_UGE;
+        }
+        throw new IllegalArgumentException("Unsupported CJUMP " + relop);
+    }
+}
@@ -0,0 +1,44 @@
+package visitor;
+
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+
+/**
+ * Register layout of one ProcFrag. Every temp the body mentions gets a dense
+ * slot number, formals first, so an activation is a window of {@link #size}
+ * consecutive words in the interpreter's register stack.
+ */
+class Procedure {
+    public String name;
+    public int start;
+    public int end;
+    public int formals;
+    public int rv;
+    public int size;
+    public int maxStack;
+    public HashMap<String, Integer> temps = new HashMap<>();
+
+    // tiered execution
+    public int invocations;
+    public int backedges;
+    public volatile Tier tier = Tier.INTERPRETED;
+    public volatile MethodHandle compiled;
+    // loop header the OSR entry was compiled for, as a code offset and label
+    public int osrEntry = -1;
+    public String osrLabel;
+    public volatile MethodHandle osr;
+
+    Procedure(String name, int start) {
+        this.name = name;
+        this.start = start;
+    }
+
+    public int register(String tempName) {
+        Integer reg = temps.get(tempName);
+        if (reg == null) {
+            reg = size++;
+            temps.put(tempName, reg);
+        }
+        return reg;
+    }
+}
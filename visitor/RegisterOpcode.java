@@ -0,0 +1,102 @@
+package visitor;
+
+import tree.node.BINOP;
+
+/**
+ * Instruction set of the register VM. Every instruction is one opcode word
+ * followed by {@link #LENGTHS}[op] - 1 operand words; registers are slots
+ * of the current activation's window, immediates are constants and branch
+ * targets are absolute code offsets. Arithmetic has the form dst = a op b,
+ * with an immediate variant (dst = a op c) for each operator.
+ *
+ * CALL and CALLI are the only instructions of variable length: their fixed
+ * part is followed by one register per argument. CALLI takes the number of
+ * its callee, see {@link Heap#procedures}, from a register, where CALL has
+ * its offset and window size.
+ */
+final class RegisterOpcode {
+    public final static int MOVE = 0, LI = 1,
+            ADD = 2, SUB = 3, MUL = 4, AND = 5, SHL = 6, SHR = 7, SAR = 8,
+            ADDI = 9, SUBI = 10, MULI = 11, ANDI = 12, SHLI = 13, SHRI = 14, SARI = 15,
+            LOAD = 16, STORE = 17,
+            CJUMP_EQ = 18, CJUMP_NE = 19, CJUMP_LT = 20, CJUMP_GT = 21,
+            CJUMP_LE = 22, CJUMP_GE = 23, CJUMP_ULT = 24, CJUMP_ULE = 25,
+            CJUMP_UGT = 26, CJUMP_UGE = 27,
+            CJUMPI_EQ = 28, CJUMPI_NE = 29, CJUMPI_LT = 30, CJUMPI_GT = 31,
+            CJUMPI_LE = 32, CJUMPI_GE = 33, CJUMPI_ULT = 34, CJUMPI_ULE = 35,
+            CJUMPI_UGT = 36, CJUMPI_UGE = 37,
+            JUMP = 38, CALL = 39, PRINTINT = 40, HALLOC = 41, ERROR = 42,
+            RETURN = 43, HALT = 44, CALLI = 45, NEWARRAY = 46;
+
+    static final String[] NAMES = {
+        "MOVE", "LI",
+        "ADD", "SUB", "MUL", "AND", "SHL", "SHR", "SAR",
+        "ADDI", "SUBI", "MULI", "ANDI", "SHLI", "SHRI", "SARI",
+        "LOAD", "STORE",
+        "CJUMP_EQ", "CJUMP_NE", "CJUMP_LT", "CJUMP_GT",
+        "CJUMP_LE", "CJUMP_GE", "CJUMP_ULT", "CJUMP_ULE",
+        "CJUMP_UGT", "CJUMP_UGE",
+        "CJUMPI_EQ", "CJUMPI_NE", "CJUMPI_LT", "CJUMPI_GT",
+        "CJUMPI_LE", "CJUMPI_GE", "CJUMPI_ULT", "CJUMPI_ULE",
+        "CJUMPI_UGT", "CJUMPI_UGE",
+        "JUMP", "CALL", "PRINTINT", "HALLOC", "ERROR",
+        "RETURN", "HALT", "CALLI", "NEWARRAY"
+    };
+
+    // opcode word included; CALL and CALLI add one word per argument
+    static final int[] LENGTHS = {
+        3, 3,
+        4, 4, 4, 4, 4, 4, 4,
+        4, 4, 4, 4, 4, 4, 4,
+        4, 4,
+        5, 5, 5, 5,
+        5, 5, 5, 5,
+        5, 5,
+        5, 5, 5, 5,
+        5, 5, 5, 5,
+        5, 5,
+        2, 6, 3, 3, 2,
+        2, 1, 6, 3
+    };
+
+    private RegisterOpcode() {
+    }
+
+    static int length(int[] code, int at) {
+        int op = code[at];
+        return op == CALL || op == CALLI ? LENGTHS[op] + code[at + 5] : LENGTHS[op];
+    }
+
+    static int binop(int binop) {
+        switch (binop) {
+            case BINOP.PLUS:
+                return ADD;
+            case BINOP.MINUS:
+                return SUB;
+            case BINOP.MUL:
+                return MUL;
+            case BINOP.AND:
+                return AND;
+            case BINOP.LSHIFT:
+                return SHL;
+            case BINOP.RSHIFT:
+                return SHR;
+            case BINOP.ARSHIFT:
+                return SAR;
+        }
+        throw new IllegalArgumentException("Unsupported BINOP " + binop);
+    }
+
+    static int immediate(int op) {
+        return op + (ADDI - ADD);
+    }
+
+    // the CJUMP relops are numbered in the same order as the opcodes
+    static int cjump(int relop) {
+        return CJUMP_EQ + relop;
+    }
+
+    static int cjumpImmediate(int relop) {
+        return CJUMPI_EQ + relop;
+    }
+}
@@ -0,0 +1,770 @@
+package visitor;
+
+import frame.Access;
+import frame.Frame;
+import frame.InReg;
+import frame.Temp;
+import tree.Exp;
+import tree.Stm;
+import tree.node.*;
+import visitor.translate.Frag;
+import visitor.translate.ProcFrag;
+
+import java.util.*;
+
+/**
+ * Execution engine that translates the tree IR straight into three-address
+ * {@link RegisterOpcode} instructions, dst = a op b, instead of the push
+ * and pop sequences of the command interpreter.
+ *
+ * Every temp of a procedure is a register of its window, formals first;
+ * intermediate values get scratch registers above the temps, allocated
+ * like a stack and released at the end of each statement. Constants on
+ * the right of an operator, and constant offsets of MEM addresses, are
+ * folded into the instruction as immediates.
+ *
+ * The heap is a {@link Heap} without roots: it never collects, it only
+ * grows up to the limit.
+ */
+public class RegisterVM {
+    public Iterator<Frag> frags;
+    public HashMap<String, Procedure> procedures;
+    public int[] code;
+    public int[] registers;
+    public int[] returns;
+    public Heap heap;
+
+    public long heapLimit = (long) Heap.MAX_WORDS << 2;
+
+    /**
+     * Largest number of words the register and return stacks may each grow
+     * to before the program is stopped with a stack overflow.
+     */
+    public int stackLimit = 16 * 1024 * 1024;
+
+    // code emitted so far, and the operands still waiting for a label
+    private int size;
+    private HashMap<String, Integer> labels;
+    private ArrayList<Fixup> fixups;
+    private ArrayList<Integer> calls;
+
+    private Procedure current;
+    private int temps;
+    private int scratch;
+    private int maxScratch;
+
+    /**
+     * An operand word that names a label, or the window size of a
+     * procedure, resolved once every procedure is compiled.
+     */
+    private static final class Fixup {
+        final int at;
+        final String label;
+        final boolean size;
+
+        Fixup(int at, String label, boolean size) {
+            this.at = at;
+            this.label = label;
+            this.size = size;
+        }
+    }
+
+    public RegisterVM(Iterator<Frag> frags) {
+        this.frags = frags;
+    }
+
+    public void setHeapLimit(long bytes) {
+        heapLimit = bytes;
+    }
+
+    public void setStackLimit(int words) {
+        stackLimit = words;
+    }
+
+    public void start() {
+        procedures = new HashMap<>();
+        labels = new HashMap<>();
+        fixups = new ArrayList<>();
+        calls = new ArrayList<>();
+        code = new int[1024];
+        size = 0;
+
+        List<Frag> all = new ArrayList<>();
+        frags.forEachRemaining(all::add);
+        List<ProcFrag> procs = new ArrayList<>();
+        for (Frag f : all) {
+            if (f instanceof ProcFrag)
+                procs.add((ProcFrag) f);
+        }
+        // the tables go first, the code loads their addresses as constants
+        heap = new Heap((int) Math.min(heapLimit >> 2, Heap.MAX_WORDS));
+        heap.place(all);
+
+        // main() recebe um parâmetro: the bootstrap window holds it in
+        // register 0, and receives main's result there
+        String main = procs.get(0).frame.label.toString();
+        emit(RegisterOpcode.CALL, 0, 0, 0, 1, 1, 0);
+        fixups.add(new Fixup(2, main, false));
+        fixups.add(new Fixup(3, main, true));
+        calls.add(0);
+        emit(RegisterOpcode.HALT);
+
+        for (ProcFrag proc : procs)
+            compile(proc);
+
+        code = Arrays.copyOf(code, size);
+        link();
+
+        for (ProcFrag proc : procs)
+            System.out.println(disassemble(procedures.get(proc.frame.label.toString())));
+
+        System.out.println("Running...");
+
+        registers = new int[Math.max(256, 2 * procedures.get(main).size)];
+        returns = new int[256];
+        run();
+    }
+
+    private void emit(int... words) {
+        if (size + words.length > code.length)
+            code = Arrays.copyOf(code, Math.max(2 * code.length, size + words.length));
+        System.arraycopy(words, 0, code, size, words.length);
+        size += words.length;
+    }
+
+    private void link() {
+        for (Fixup fixup : fixups) {
+            if (fixup.size) {
+                Procedure callee = procedures.get(fixup.label);
+                if (callee == null)
+                    throw new IllegalStateException("Undefined procedure " + fixup.label);
+                code[fixup.at] = callee.size;
+            } else {
+                Integer target = labels.get(fixup.label);
+                if (target == null)
+                    throw new IllegalStateException("Undefined label " + fixup.label);
+                code[fixup.at] = target;
+            }
+        }
+        fixups = null;
+
+        for (int at : calls) {
+            Procedure callee = procedureAt(code[at + 2]);
+            checkArity(callee.name, code[at + 5], callee.formals);
+        }
+        calls = null;
+
+        numbered = new Procedure[heap.procedures.size()];
+        for (int i = 0; i < numbered.length; i++)
+            numbered[i] = procedures.get(heap.procedures.get(i));
+    }
+
+    // the procedure each number in the tables names, see Heap.procedures
+    private Procedure[] numbered;
+
+    private Procedure numbered(int number, int nargs) {
+        Procedure callee = number > 0 && number <= numbered.length ? numbered[number - 1] : null;
+        if (callee == null || callee.formals != nargs)
+            throw new InterpreterException("Invalid indirect call");
+        return callee;
+    }
+
+    private void compile(ProcFrag proc) {
+        Frame frame = proc.frame;
+        current = new Procedure(frame.label.toString(), size);
+        procedures.put(current.name, current);
+        labels.put(current.name, size);
+
+        // the caller stores the arguments straight into the first slots
+        for (Access access : frame.formals) {
+            if (!(access instanceof InReg))
+                throw new IllegalStateException(
+                    "Formals in memory are not supported: " + current.name);
+            current.register(access.toString());
+        }
+        current.formals = frame.formals.size();
+        current.rv = current.register(frame.RV().toString());
+        collect(proc.body);
+        temps = current.size;
+
+        scratch = 0;
+        maxScratch = 0;
+        statement(proc.body);
+        emit(RegisterOpcode.RETURN, current.rv);
+
+        current.end = size;
+        current.size = temps + maxScratch;
+        current = null;
+    }
+
+    // registers every temp of the body up front, so scratch registers can
+    // be numbered right after them
+    private void collect(Stm stm) {
+        if (stm instanceof SEQ) {
+            collect(((SEQ) stm).left);
+            collect(((SEQ) stm).right);
+        } else if (stm instanceof MOVE) {
+            collect(((MOVE) stm).dst);
+            collect(((MOVE) stm).src);
+        } else if (stm instanceof EXPR) {
+            collect(((EXPR) stm).exp);
+        } else if (stm instanceof CJUMP) {
+            collect(((CJUMP) stm).left);
+            collect(((CJUMP) stm).right);
+        }
+    }
+
+    private void collect(Exp exp) {
+        if (exp instanceof TEMP) {
+            current.register(((TEMP) exp).temp.toString());
+        } else if (exp instanceof BINOP) {
+            collect(((BINOP) exp).left);
+            collect(((BINOP) exp).right);
+        } else if (exp instanceof MEM) {
+            collect(((MEM) exp).exp);
+        } else if (exp instanceof ESEQ) {
+            collect(((ESEQ) exp).stm);
+            collect(((ESEQ) exp).exp);
+        } else if (exp instanceof CALL) {
+            collect(((CALL) exp).func);
+            for (Exp arg : ((CALL) exp).args)
+                collect(arg);
+        }
+    }
+
+    private int temp(Temp temp) {
+        return current.temps.get(temp.toString());
+    }
+
+    private int newScratch() {
+        int reg = temps + scratch++;
+        maxScratch = Math.max(maxScratch, scratch);
+        return reg;
+    }
+
+    // the register to compute into: the one asked for, or a new scratch
+    private int target(int dst) {
+        return dst >= 0 ? dst : newScratch();
+    }
+
+    private void label(int at, String label) {
+        fixups.add(new Fixup(at, label, false));
+    }
+
+    private void statement(Stm stm) {
+        int mark = scratch;
+        if (stm instanceof SEQ) {
+            statement(((SEQ) stm).left);
+            statement(((SEQ) stm).right);
+        } else if (stm instanceof LABEL) {
+            labels.put(((LABEL) stm).label.toString(), size);
+        } else if (stm instanceof JUMP) {
+            JUMP jump = (JUMP) stm;
+            if (!(jump.exp instanceof NAME))
+                throw new IllegalStateException("Computed jumps are not supported");
+            emit(RegisterOpcode.JUMP, 0);
+            label(size - 1, ((NAME) jump.exp).label.toString());
+        } else if (stm instanceof CJUMP) {
+            cjump((CJUMP) stm);
+        } else if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            if (move.dst instanceof TEMP)
+                expression(move.src, temp(((TEMP) move.dst).temp));
+            else if (move.dst instanceof MEM)
+                store(((MEM) move.dst).exp, move.src);
+            else
+                throw new IllegalStateException("Bad MOVE destination");
+        } else if (stm instanceof EXPR) {
+            expression(((EXPR) stm).exp, -1);
+        } else {
+            throw new IllegalStateException("Unexpected " + stm.getClass().getSimpleName());
+        }
+        scratch = mark;
+    }
+
+    private void cjump(CJUMP cjump) {
+        int left = operand(cjump.left, cjump.right);
+        if (cjump.right instanceof CONST) {
+            emit(RegisterOpcode.cjumpImmediate(cjump.relop),
+                 left, ((CONST) cjump.right).value, 0, 0);
+        } else {
+            int right = expression(cjump.right, -1);
+            emit(RegisterOpcode.cjump(cjump.relop), left, right, 0, 0);
+        }
+        label(size - 2, cjump.iftrue.toString());
+        label(size - 1, cjump.iffalse.toString());
+    }
+
+    // the value is evaluated before the address, as in the command listing
+    private void store(Exp address, Exp src) {
+        int value = operand(src, address);
+        if (isPlusConst(address)) {
+            BINOP b = (BINOP) address;
+            int base = expression(b.left, -1);
+            emit(RegisterOpcode.STORE, base, ((CONST) b.right).value, value);
+        } else {
+            int base = expression(address, -1);
+            emit(RegisterOpcode.STORE, base, 0, value);
+        }
+    }
+
+    private static boolean isPlusConst(Exp e) {
+        return e instanceof BINOP && ((BINOP) e).binop == BINOP.PLUS
+            && ((BINOP) e).right instanceof CONST;
+    }
+
+    private static boolean hasEffects(Exp e) {
+        if (e instanceof ESEQ)
+            return true;
+        if (e instanceof BINOP)
+            return hasEffects(((BINOP) e).left) || hasEffects(((BINOP) e).right);
+        if (e instanceof MEM)
+            return hasEffects(((MEM) e).exp);
+        if (e instanceof CALL) {
+            if (hasEffects(((CALL) e).func))
+                return true;
+            for (Exp arg : ((CALL) e).args) {
+                if (hasEffects(arg))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates an operand that must keep its value while the expressions
+     * after it are evaluated. A temp is used in place unless one of those
+     * may assign it, in which case it is copied to a scratch register.
+     */
+    private int operand(Exp exp, Exp... later) {
+        int reg = expression(exp, -1);
+        if (reg >= temps)
+            return reg;
+        for (Exp e : later) {
+            if (hasEffects(e)) {
+                int copy = newScratch();
+                emit(RegisterOpcode.MOVE, copy, reg);
+                return copy;
+            }
+        }
+        return reg;
+    }
+
+    /**
+     * Compiles an expression and returns the register holding its value.
+     * When dst is not -1 the value is computed into that register.
+     */
+    private int expression(Exp exp, int dst) {
+        if (exp instanceof TEMP) {
+            int reg = temp(((TEMP) exp).temp);
+            if (dst < 0 || dst == reg)
+                return reg;
+            emit(RegisterOpcode.MOVE, dst, reg);
+            return dst;
+        }
+        if (exp instanceof CONST) {
+            int d = target(dst);
+            emit(RegisterOpcode.LI, d, ((CONST) exp).value);
+            return d;
+        }
+        if (exp instanceof NAME) {
+            int d = target(dst);
+            emit(RegisterOpcode.LI, d, heap.table(((NAME) exp).label.toString()));
+            return d;
+        }
+        if (exp instanceof BINOP)
+            return binop((BINOP) exp, dst);
+        if (exp instanceof MEM)
+            return load(((MEM) exp).exp, dst);
+        if (exp instanceof ESEQ) {
+            statement(((ESEQ) exp).stm);
+            return expression(((ESEQ) exp).exp, dst);
+        }
+        if (exp instanceof CALL)
+            return call((CALL) exp, dst);
+        throw new IllegalStateException("Unexpected " + exp.getClass().getSimpleName());
+    }
+
+    private int binop(BINOP b, int dst) {
+        int op = RegisterOpcode.binop(b.binop);
+        Exp left = b.left, right = b.right;
+        if (left instanceof CONST && !(right instanceof CONST)
+                && (b.binop == BINOP.PLUS || b.binop == BINOP.MUL || b.binop == BINOP.AND)) {
+            left = b.right;
+            right = b.left;
+        }
+
+        int mark = scratch;
+        int l = operand(left, right);
+        if (right instanceof CONST) {
+            scratch = mark;
+            int d = target(dst);
+            emit(RegisterOpcode.immediate(op), d, l, ((CONST) right).value);
+            return d;
+        }
+        int r = expression(right, -1);
+        // the operands are read before the result is written, so it may
+        // reuse their scratch registers
+        scratch = mark;
+        int d = target(dst);
+        emit(op, d, l, r);
+        return d;
+    }
+
+    private int load(Exp address, int dst) {
+        int mark = scratch;
+        int base, offset = 0;
+        if (isPlusConst(address)) {
+            base = expression(((BINOP) address).left, -1);
+            offset = ((CONST) ((BINOP) address).right).value;
+        } else {
+            base = expression(address, -1);
+        }
+        scratch = mark;
+        int d = target(dst);
+        emit(RegisterOpcode.LOAD, d, base, offset);
+        return d;
+    }
+
+    private int call(CALL call, int dst) {
+        if (!(call.func instanceof NAME))
+            return indirect(call, dst);
+        String name = ((NAME) call.func).label.toString();
+        int mark = scratch;
+        int[] args = new int[call.args.size()];
+        for (int i = 0; i < args.length; i++) {
+            List<Exp> rest = call.args.subList(i + 1, args.length);
+            args[i] = operand(call.args.get(i), rest.toArray(new Exp[0]));
+        }
+
+        switch (name) {
+            case "_printint":
+                checkArity(name, args.length, 1);
+                scratch = mark;
+                dst = target(dst);
+                emit(RegisterOpcode.PRINTINT, dst, args[0]);
+                return dst;
+            case "_halloc":
+                checkArity(name, args.length, 1);
+                scratch = mark;
+                dst = target(dst);
+                emit(RegisterOpcode.HALLOC, dst, args[0]);
+                return dst;
+            case "_newarray":
+                checkArity(name, args.length, 1);
+                scratch = mark;
+                dst = target(dst);
+                emit(RegisterOpcode.NEWARRAY, dst, args[0]);
+                return dst;
+            case "_error":
+                checkArity(name, args.length, 0);
+                dst = target(dst);
+                emit(RegisterOpcode.ERROR, dst);
+                return dst;
+        }
+
+        // the callee's window starts right after the caller's, whose size
+        // is only known once the whole procedure is compiled
+        scratch = mark;
+        int d = target(dst);
+        int at = size;
+        int[] words = new int[RegisterOpcode.LENGTHS[RegisterOpcode.CALL] + args.length];
+        words[0] = RegisterOpcode.CALL;
+        words[1] = d;
+        words[5] = args.length;
+        System.arraycopy(args, 0, words, 6, args.length);
+        emit(words);
+        fixups.add(new Fixup(at + 2, name, false));
+        fixups.add(new Fixup(at + 3, name, true));
+        fixups.add(new Fixup(at + 4, current.name, true));
+        calls.add(at);
+        return d;
+    }
+
+    // a CALL laid out the same way, with the register holding the number
+    // of the procedure in place of its offset
+    private int indirect(CALL call, int dst) {
+        int mark = scratch;
+        int func = operand(call.func, call.args.toArray(new Exp[0]));
+        int[] args = new int[call.args.size()];
+        for (int i = 0; i < args.length; i++) {
+            List<Exp> rest = call.args.subList(i + 1, args.length);
+            args[i] = operand(call.args.get(i), rest.toArray(new Exp[0]));
+        }
+
+        scratch = mark;
+        int d = target(dst);
+        int at = size;
+        int[] words = new int[RegisterOpcode.LENGTHS[RegisterOpcode.CALLI] + args.length];
+        words[0] = RegisterOpcode.CALLI;
+        words[1] = d;
+        words[2] = func;
+        words[5] = args.length;
+        System.arraycopy(args, 0, words, 6, args.length);
+        emit(words);
+        fixups.add(new Fixup(at + 4, current.name, true));
+        return d;
+    }
+
+    private static void checkArity(String name, int nargs, int expected) {
+        if (nargs != expected)
+            throw new IllegalStateException(String.format(
+                "%s expects %d arguments, got %d", name, expected, nargs));
+    }
+
+    private Procedure procedureAt(int pc) {
+        for (Procedure proc : procedures.values()) {
+            if (pc >= proc.start && pc < proc.end)
+                return proc;
+        }
+        return null;
+    }
+
+    public String disassemble(Procedure proc) {
+        StringBuilder out = new StringBuilder(proc.name).append(":\n");
+        for (int at = proc.start; at < proc.end; at += RegisterOpcode.length(code, at)) {
+            int op = code[at];
+            out.append(String.format("%6d  %-10s", at, RegisterOpcode.NAMES[op]));
+            for (int i = 1; i < RegisterOpcode.length(code, at); i++)
+                out.append(' ').append(code[at + i]);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private int[] grow(int[] array, int needed, int pc, int depth) {
+        if (needed > stackLimit) {
+            Procedure proc = procedureAt(pc);
+            throw new InterpreterException(String.format(
+                "Stack overflow: %d nested calls deep in %s",
+                depth, proc == null ? "?" : proc.name));
+        }
+        int size = Math.max(needed, 2 * array.length);
+        return Arrays.copyOf(array, Math.min(size, stackLimit));
+    }
+
+    private void run() {
+        final int[] code = this.code;
+        int[] r = this.registers;
+        int[] returns = this.returns;
+        int[] memory = heap.words;
+        int fp = 0;
+        int pc = 0;
+        int rsp = 0;
+
+        try {
+            while (true) {
+                switch (code[pc]) {
+                    case RegisterOpcode.MOVE:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]];
+                        pc += 3;
+                        break;
+                    case RegisterOpcode.LI:
+                        r[fp + code[pc + 1]] = code[pc + 2];
+                        pc += 3;
+                        break;
+                    case RegisterOpcode.ADD:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] + r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SUB:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] - r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.MUL:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] * r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.AND:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] & r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SHL:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] << r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SHR:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] >>> r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SAR:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] >> r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.ADDI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] + code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SUBI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] - code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.MULI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] * code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.ANDI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] & code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SHLI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] << code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SHRI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] >>> code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.SARI:
+                        r[fp + code[pc + 1]] = r[fp + code[pc + 2]] >> code[pc + 3];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.LOAD:
+                        r[fp + code[pc + 1]] = memory[(r[fp + code[pc + 2]] + code[pc + 3]) >> 2];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.STORE:
+                        memory[(r[fp + code[pc + 1]] + code[pc + 2]) >> 2] = r[fp + code[pc + 3]];
+                        pc += 4;
+                        break;
+                    case RegisterOpcode.CJUMP_EQ:
+                        pc = r[fp + code[pc + 1]] == r[fp + code[pc + 2]] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_NE:
+                        pc = r[fp + code[pc + 1]] != r[fp + code[pc + 2]] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_LT:
+                        pc = r[fp + code[pc + 1]] < r[fp + code[pc + 2]] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_GT:
+                        pc = r[fp + code[pc + 1]] > r[fp + code[pc + 2]] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_LE:
+                        pc = r[fp + code[pc + 1]] <= r[fp + code[pc + 2]] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_GE:
+                        pc = r[fp + code[pc + 1]] >= r[fp + code[pc + 2]] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_ULT:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], r[fp + code[pc + 2]]) < 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_ULE:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], r[fp + code[pc + 2]]) <= 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_UGT:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], r[fp + code[pc + 2]]) > 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMP_UGE:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], r[fp + code[pc + 2]]) >= 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_EQ:
+                        pc = r[fp + code[pc + 1]] == code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_NE:
+                        pc = r[fp + code[pc + 1]] != code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_LT:
+                        pc = r[fp + code[pc + 1]] < code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_GT:
+                        pc = r[fp + code[pc + 1]] > code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_LE:
+                        pc = r[fp + code[pc + 1]] <= code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_GE:
+                        pc = r[fp + code[pc + 1]] >= code[pc + 2] ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_ULT:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], code[pc + 2]) < 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_ULE:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], code[pc + 2]) <= 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_UGT:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], code[pc + 2]) > 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.CJUMPI_UGE:
+                        pc = Integer.compareUnsigned(r[fp + code[pc + 1]], code[pc + 2]) >= 0
+                            ? code[pc + 3] : code[pc + 4];
+                        break;
+                    case RegisterOpcode.JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case RegisterOpcode.CALLI:
+                    case RegisterOpcode.CALL: {
+                        int nargs = code[pc + 5];
+                        int target, window;
+                        if (code[pc] == RegisterOpcode.CALL) {
+                            target = code[pc + 2];
+                            window = code[pc + 3];
+                        } else {
+                            Procedure proc = numbered(r[fp + code[pc + 2]], nargs);
+                            target = proc.start;
+                            window = proc.size;
+                        }
+                        int callee = fp + code[pc + 4];
+                        int end = callee + window;
+                        if (end > r.length)
+                            this.registers = r = grow(r, end, pc, rsp / 2);
+                        if (rsp + 2 > returns.length)
+                            this.returns = returns = grow(returns, rsp + 2, pc, rsp / 2);
+                        for (int i = 0; i < nargs; i++)
+                            r[callee + i] = r[fp + code[pc + 6 + i]];
+                        Arrays.fill(r, callee + nargs, end, 0);
+                        returns[rsp++] = pc;
+                        returns[rsp++] = fp;
+                        fp = callee;
+                        pc = target;
+                        break;
+                    }
+                    case RegisterOpcode.RETURN: {
+                        int value = r[fp + code[pc + 1]];
+                        fp = returns[--rsp];
+                        int call = returns[--rsp];
+                        r[fp + code[call + 1]] = value;
+                        pc = call + RegisterOpcode.LENGTHS[RegisterOpcode.CALL] + code[call + 5];
+                        break;
+                    }
+                    case RegisterOpcode.PRINTINT:
+                        System.out.println(r[fp + code[pc + 2]]);
+                        r[fp + code[pc + 1]] = 0;
+                        pc += 3;
+                        break;
+                    case RegisterOpcode.HALLOC:
+                        r[fp + code[pc + 1]] = heap.alloc(r[fp + code[pc + 2]]);
+                        memory = heap.words;
+                        pc += 3;
+                        break;
+                    case RegisterOpcode.NEWARRAY:
+                        r[fp + code[pc + 1]] = heap.allocArray(r[fp + code[pc + 2]]);
+                        memory = heap.words;
+                        pc += 3;
+                        break;
+                    case RegisterOpcode.ERROR:
+                        System.out.println("ERRO: Acessando array fora dos limites!");
+                        r[fp + code[pc + 1]] = 0;
+                        pc += 2;
+                        break;
+                    case RegisterOpcode.HALT:
+                        return;
+                    default:
+                        throw new IllegalStateException("Bad opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // windows are sized before every call, so only a heap access
+            // can land out of bounds
+            Procedure proc = procedureAt(pc);
+            throw new InterpreterException(String.format(
+                "Invalid memory access in %s", proc == null ? "?" : proc.name));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package visitor;
+
+/**
+ * Where the calls to a procedure run under tiered execution; see
+ * {@link InterpreterVisitor#setTiered}.
+ */
+public enum Tier {
+    /** Interpreted, counting invocations and back edges. */
+    INTERPRETED,
+    /** Hot, waiting in the compile queue or being compiled. */
+    QUEUED,
+    /** Compiled to JVM bytecode; every later call runs the compiled code. */
+    COMPILED,
+    /** The compiler rejected it; it stays interpreted. */
+    FAILED
+}
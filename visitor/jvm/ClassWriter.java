@@ -0,0 +1,155 @@
+package visitor.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes class files. Only what the compiler needs is supported: static
+ * fields, and methods whose bodies are assembled by a {@link Code}.
+ *
+ * Names are internal names, with slashes (visitor/Heap); descriptors are
+ * JVM descriptors ((II)I).
+ */
+public class ClassWriter {
+    public static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002,
+            ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    // Java 8: the first version whose verifier requires a StackMapTable
+    static final int MAJOR_VERSION = 52;
+
+    private static final int CONSTANT_Utf8 = 1, CONSTANT_Integer = 3,
+            CONSTANT_Class = 7, CONSTANT_String = 8, CONSTANT_Fieldref = 9,
+            CONSTANT_Methodref = 10, CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String, Integer> constants = new HashMap<>();
+    private int poolSize = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    public final String name;
+
+    public ClassWriter(String name, String superName) {
+        this.name = name;
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    private int constant(String key, int tag, Object... values) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            poolOut.writeByte(tag);
+            for (Object value : values) {
+                if (value instanceof String)
+                    poolOut.writeUTF((String) value);
+                else if (tag == CONSTANT_Integer)
+                    poolOut.writeInt((Integer) value);
+                else
+                    poolOut.writeShort((Integer) value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolSize++;
+        if (index > 0xffff)
+            throw new IllegalStateException("Constant pool of " + name + " is full");
+        constants.put(key, index);
+        return index;
+    }
+
+    public int utf8(String value) {
+        return constant("U" + value, CONSTANT_Utf8, value);
+    }
+
+    public int integer(int value) {
+        return constant("I" + value, CONSTANT_Integer, value);
+    }
+
+    public int string(String value) {
+        return constant("S" + value, CONSTANT_String, utf8(value));
+    }
+
+    public int classRef(String internalName) {
+        return constant("C" + internalName, CONSTANT_Class, utf8(internalName));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, CONSTANT_NameAndType,
+                        utf8(name), utf8(descriptor));
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return constant("F" + owner + "." + name + ":" + descriptor, CONSTANT_Fieldref,
+                        classRef(owner), nameAndType(name, descriptor));
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return constant("M" + owner + "." + name + ":" + descriptor, CONSTANT_Methodref,
+                        classRef(owner), nameAndType(name, descriptor));
+    }
+
+    public void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    public void method(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            code.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolSize);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(fields.size());
+            for (byte[] field : fields)
+                out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods)
+                out.write(method);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
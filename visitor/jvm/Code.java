@@ -0,0 +1,262 @@
+package visitor.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assembles the body of one method. Every local is an int, and so is every
+ * value the operand stack holds at a label, which is all the compiled
+ * procedures need; that is what lets the StackMapTable be written without
+ * any type inference: each label gets a full frame of ints.
+ *
+ * Labels are the IR's label names, and each may only be defined once.
+ */
+public class Code {
+    public static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+            LDC = 0x12, LDC_W = 0x13, ILOAD = 0x15, ALOAD_0 = 0x2a, ISTORE = 0x36,
+            IALOAD = 0x2e, IASTORE = 0x4f, POP = 0x57, DUP_X2 = 0x5b, SWAP = 0x5f,
+            IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c,
+            ISHL = 0x78, ISHR = 0x7a, IUSHR = 0x7c, IAND = 0x7e, IOR = 0x80, IXOR = 0x82,
+            IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e,
+            IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2,
+            IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7, IRETURN = 0xac,
+            GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4, PUTFIELD = 0xb5,
+            INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+    private static final int ITEM_Integer = 1, FULL_FRAME = 255;
+
+    private final ClassWriter cw;
+    private final int locals;
+    private byte[] bytes = new byte[256];
+    private int length;
+    private int depth;
+    private int maxStack;
+    private boolean reachable = true;
+
+    // offset and stack depth of each label defined so far
+    private final HashMap<String, int[]> labels = new HashMap<>();
+    // jumps waiting for the next definition: offset and stack depth
+    private final HashMap<String, List<int[]>> pending = new HashMap<>();
+    // stack depth at each offset that needs a frame
+    private final TreeMap<Integer, Integer> frames = new TreeMap<>();
+
+    public Code(ClassWriter cw, int locals) {
+        this.cw = cw;
+        this.locals = locals;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public boolean isReachable() {
+        return reachable;
+    }
+
+    private void u1(int value) {
+        if (length == bytes.length)
+            bytes = Arrays.copyOf(bytes, 2 * length);
+        bytes[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    private void instruction(int opcode, int delta) {
+        if (!reachable) {
+            // dead code still needs a frame to be verified against
+            frames.put(length, depth);
+            reachable = true;
+        }
+        u1(opcode);
+        depth += delta;
+        if (depth < 0)
+            throw new IllegalStateException("Operand stack underflow at " + length);
+        maxStack = Math.max(maxStack, depth);
+    }
+
+    public void op(int opcode, int delta) {
+        instruction(opcode, delta);
+    }
+
+    public void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            instruction(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            instruction(BIPUSH, 1);
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            instruction(SIPUSH, 1);
+            u2(value);
+        } else {
+            ldc(cw.integer(value));
+        }
+    }
+
+    private void ldc(int index) {
+        if (index < 256) {
+            instruction(LDC, 1);
+            u1(index);
+        } else {
+            instruction(LDC_W, 1);
+            u2(index);
+        }
+    }
+
+    public void sconst(String value) {
+        ldc(cw.string(value));
+    }
+
+    private void local(int opcode, int shortForm, int local, int delta) {
+        if (local < 0 || local >= locals)
+            throw new IllegalStateException("Bad local " + local);
+        if (local <= 3) {
+            instruction(shortForm + local, delta);
+        } else if (local < 256) {
+            instruction(opcode, delta);
+            u1(local);
+        } else {
+            instruction(WIDE, 0);
+            u1(opcode);
+            u2(local);
+            depth += delta;
+            maxStack = Math.max(maxStack, depth);
+        }
+    }
+
+    public void iload(int local) {
+        local(ILOAD, 0x1a, local, 1);
+    }
+
+    public void istore(int local) {
+        local(ISTORE, 0x3b, local, -1);
+    }
+
+    /**
+     * A field or method instruction; delta is its net effect on the depth
+     * of the operand stack.
+     */
+    public void member(int opcode, int index, int delta) {
+        instruction(opcode, delta);
+        u2(index);
+    }
+
+    public void ireturn() {
+        instruction(IRETURN, -1);
+        reachable = false;
+    }
+
+    public void jump(int opcode, String label) {
+        int delta;
+        if (opcode == GOTO)
+            delta = 0;
+        else if (opcode >= IF_ICMPEQ)
+            delta = -2;
+        else
+            delta = -1;
+
+        int at = length;
+        instruction(opcode, delta);
+        int[] target = labels.get(label);
+        if (target != null) {
+            checkDepth(label, target[1]);
+            branch(at, target[0]);
+        } else {
+            pending.computeIfAbsent(label, k -> new ArrayList<>())
+                   .add(new int[] { at, depth });
+            u2(0);
+        }
+        if (opcode == GOTO)
+            reachable = false;
+    }
+
+    private void checkDepth(String label, int expected) {
+        if (depth != expected)
+            throw new IllegalStateException(String.format(
+                "Stack depth %d at a jump to %s, which expects %d", depth, label, expected));
+    }
+
+    private void branch(int at, int target) {
+        int offset = target - at;
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+            throw new IllegalStateException("Method too large");
+        if (at + 1 == length) {
+            u2(offset);
+        } else {
+            bytes[at + 1] = (byte) (offset >> 8);
+            bytes[at + 2] = (byte) offset;
+        }
+    }
+
+    public void label(String label) {
+        if (labels.containsKey(label))
+            throw new IllegalStateException("Label " + label + " defined twice");
+        List<int[]> jumps = pending.remove(label);
+        // a label nothing has jumped to yet keeps the depth of the code before
+        // it: it may sit inside an expression whose operands are on the stack
+        if (!reachable && jumps != null)
+            depth = jumps.get(0)[1];
+        if (jumps != null) {
+            for (int[] jump : jumps) {
+                checkDepth(label, jump[1]);
+                branch(jump[0], length);
+            }
+        }
+
+        Integer frame = frames.get(length);
+        if (frame != null && frame != depth)
+            throw new IllegalStateException("Conflicting frames at " + length);
+        frames.put(length, depth);
+        labels.put(label, new int[] { length, depth });
+        reachable = true;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        if (!pending.isEmpty())
+            throw new IllegalStateException("Undefined label " + pending.keySet().iterator().next());
+        if (length > 0xffff)
+            throw new IllegalStateException("Method too large");
+
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream stackMap = new DataOutputStream(table);
+        stackMap.writeShort(frames.size());
+        int previous = -1;
+        for (Map.Entry<Integer, Integer> frame : frames.entrySet()) {
+            stackMap.writeByte(FULL_FRAME);
+            stackMap.writeShort(frame.getKey() - previous - 1);
+            stackMap.writeShort(locals);
+            for (int i = 0; i < locals; i++)
+                stackMap.writeByte(ITEM_Integer);
+            stackMap.writeShort(frame.getValue());
+            for (int i = 0; i < frame.getValue(); i++)
+                stackMap.writeByte(ITEM_Integer);
+            previous = frame.getKey();
+        }
+
+        int attributes = frames.isEmpty() ? 0 : 1;
+        int size = 2 + 2 + 4 + length + 2 + 2
+            + (attributes > 0 ? 6 + table.size() : 0);
+        out.writeShort(cw.utf8("Code"));
+        out.writeInt(size);
+        out.writeShort(maxStack);
+        out.writeShort(locals);
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+        out.writeShort(0); // exception table
+        out.writeShort(attributes);
+        if (attributes > 0) {
+            out.writeShort(cw.utf8("StackMapTable"));
+            out.writeInt(table.size());
+            table.writeTo(out);
+        }
+    }
+}
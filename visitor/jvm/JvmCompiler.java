@@ -0,0 +1,945 @@
+package visitor.jvm;
+
+import frame.Access;
+import frame.Frame;
+import frame.InReg;
+import frame.Label;
+import frame.Temp;
+import tree.Canon;
+import tree.ControlFlow;
+import tree.Dataflow;
+import tree.Exp;
+import tree.Liveness;
+import tree.Stm;
+import tree.node.*;
+import visitor.Heap;
+import visitor.InterpreterException;
+import visitor.translate.Frag;
+import visitor.translate.ProcFrag;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * Execution engine that compiles every ProcFrag into a static method of a
+ * class defined at run time with {@link MethodHandles.Lookup#defineHiddenClass},
+ * and lets HotSpot take it from there.
+ *
+ * Temps become int locals, formals first. The heap is the words array of a
+ * {@link Heap} held in a static field of the class, and is fetched again
+ * at every access since allocation may replace it. CALLs to procedures are
+ * plain invokestatic instructions; the runtime procedures are expanded in
+ * place. A CALL through a method table goes to a dispatch method per
+ * arity, which compares the number the table holds, see
+ * {@link Heap#procedures}, against each procedure's.
+ *
+ * Like the other compiled engines, the heap has no roots: it never
+ * collects, it only grows up to the limit. The code compiled for another
+ * engine whose heap does collect is {@link #setPrecise precise} instead.
+ */
+public class JvmCompiler {
+    // the hidden class must live in the package of the lookup defining it
+    static final String CLASS = "visitor/jvm/Program";
+    static final String HEAP = "visitor/Heap";
+
+    public Iterator<Frag> frags;
+    public Heap heap;
+    public long heapLimit = (long) Heap.MAX_WORDS << 2;
+    public long stackSize = 1L << 30;
+
+    private HashMap<String, ProcFrag> procedures;
+    // arities of the dispatch methods the indirect calls need
+    private TreeSet<Integer> dispatchers;
+    private ClassWriter cw;
+    private Code code;
+    private HashMap<Temp, Integer> locals;
+
+    // whether every temp also has a local holding its tag, and the temps
+    // live across each call that may collect, see setPrecise
+    private boolean precise;
+    private Map<Stm, List<Temp>> spills;
+
+    // ESEQs already compiled once; Translate shares some subtrees, and the
+    // labels of every later copy are renamed
+    private Set<ESEQ> compiled;
+    private ArrayDeque<Map<String, String>> renames;
+    private int copies;
+
+    // the procedure that gets an extra entry at a loop label, if any, and
+    // the temp held by each register of the interpreter frame it comes from
+    private ProcFrag osrProc;
+    private String osrLabel;
+    private List<String> osrTemps;
+
+    public JvmCompiler(Iterator<Frag> frags) {
+        this.frags = frags;
+    }
+
+    /**
+     * A compiler only used through {@link #compile}, to compile single
+     * procedures for another engine.
+     */
+    public JvmCompiler() {
+    }
+
+    public void setHeapLimit(long bytes) {
+        heapLimit = bytes;
+    }
+
+    public void setStackSize(long bytes) {
+        stackSize = bytes;
+    }
+
+    /**
+     * Makes the code track which values are references, as the interpreter
+     * does, so that the heap may collect while it runs. Each temp gets a
+     * second local holding 1 when it holds a reference; every procedure
+     * takes a tag after each argument, and leaves the tag of its result in
+     * {@link Heap#resultRef}. Bodies are canonicalized first, so each call
+     * is a statement of its own; around every call that may collect, the
+     * temps live across it are saved into the heap with their tags, see
+     * {@link Heap#save}, and loaded back after.
+     */
+    public void setPrecise(boolean precise) {
+        this.precise = precise;
+    }
+
+    public void start() {
+        List<Frag> all = new ArrayList<>();
+        frags.forEachRemaining(all::add);
+        LinkedHashMap<String, ProcFrag> procs = new LinkedHashMap<>();
+        for (Frag f : all) {
+            if (f instanceof ProcFrag)
+                procs.put(((ProcFrag) f).frame.label.toString(), (ProcFrag) f);
+        }
+
+        // the tables go first, the code loads their addresses as constants
+        heap = new Heap((int) Math.min(heapLimit >> 2, Heap.MAX_WORDS));
+        heap.place(all);
+        MethodHandle main = compile(procs.values().iterator().next(), procs, heap);
+
+        System.out.println("Running...");
+
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                // main() recebe um parâmetro
+                int unused = (int) main.invokeExact(new int[] { 0 });
+            } catch (InterpreterException e) {
+                failure[0] = e;
+            } catch (StackOverflowError e) {
+                failure[0] = new InterpreterException("Stack overflow");
+            } catch (ArrayIndexOutOfBoundsException e) {
+                failure[0] = new InterpreterException(
+                    "Invalid memory access in " + procedureOf(e));
+            } catch (RuntimeException e) {
+                failure[0] = e;
+            } catch (Throwable e) {
+                failure[0] = new IllegalStateException(e);
+            }
+        }, "minijava", stackSize);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    private static String procedureOf(Throwable e) {
+        for (StackTraceElement frame : e.getStackTrace()) {
+            if (frame.getClassName().startsWith(CLASS.replace('/', '.')))
+                return frame.getMethodName();
+        }
+        return "?";
+    }
+
+    /**
+     * Compiles a procedure, along with every procedure it may call, into a
+     * class of its own that works on the given heap. The handle returned
+     * takes the arguments as an int[], precise code each followed by its
+     * tag, and returns the procedure's result.
+     */
+    public MethodHandle compile(ProcFrag root, Map<String, ProcFrag> all, Heap heap) {
+        int params = params(root.frame.formals.size());
+        return link(root, all, heap, methodName(root.frame.label.toString()),
+                    MethodType.methodType(int.class, Collections.nCopies(params, int.class)))
+            .asSpreader(int[].class, params);
+    }
+
+    /**
+     * Compiles a version of a procedure entered at one of its labels, for
+     * on-stack replacement of an interpreted activation stopped there. The
+     * handle returned takes the interpreter's registers, where temps[r]
+     * names the temp register r holds, precise code each followed by its
+     * tag, and runs the activation to its end, returning the procedure's
+     * result.
+     */
+    public MethodHandle compileOsr(ProcFrag root, Map<String, ProcFrag> all, Heap heap,
+                                   String label, List<String> temps) {
+        osrProc = root;
+        osrLabel = label;
+        osrTemps = temps;
+        try {
+            return link(root, all, heap, methodName(root.frame.label.toString()) + "$osr",
+                        MethodType.methodType(int.class, int[].class));
+        } finally {
+            osrProc = null;
+            osrLabel = null;
+            osrTemps = null;
+        }
+    }
+
+    private MethodHandle link(ProcFrag root, Map<String, ProcFrag> all, Heap heap,
+                              String entry, MethodType type) {
+        this.heap = heap;
+        LinkedHashMap<String, ProcFrag> reachable = new LinkedHashMap<>();
+        ArrayDeque<ProcFrag> work = new ArrayDeque<>();
+        reachable.put(root.frame.label.toString(), root);
+        work.add(root);
+        while (!work.isEmpty()) {
+            Set<String> names = new LinkedHashSet<>();
+            calls(work.poll().body, names);
+            for (String name : names) {
+                ProcFrag callee = all.get(name);
+                if (callee != null && reachable.putIfAbsent(name, callee) == null)
+                    work.add(callee);
+            }
+        }
+
+        MethodHandles.Lookup program = define(assemble(new ArrayList<>(reachable.values())));
+        try {
+            program.findStaticSetter(program.lookupClass(), "heap", Heap.class)
+                   .invoke(heap);
+            return program.findStatic(program.lookupClass(), entry, type);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot link the compiled program", e);
+        }
+    }
+
+    private MethodHandles.Lookup define(byte[] bytes) {
+        try {
+            return MethodHandles.lookup().defineHiddenClass(bytes, true);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // labels may hold characters the JVM does not allow in method names
+    static String methodName(String label) {
+        return label.replaceAll("[.;\\[/<>]", "\\$");
+    }
+
+    private static String descriptor(int params) {
+        StringBuilder d = new StringBuilder("(");
+        for (int i = 0; i < params; i++)
+            d.append('I');
+        return d.append(")I").toString();
+    }
+
+    // the parameters of a procedure taking as many arguments
+    private int params(int formals) {
+        return precise ? 2 * formals : formals;
+    }
+
+    /**
+     * Writes the class file holding one static method per procedure.
+     */
+    public byte[] assemble(List<ProcFrag> procs) {
+        procedures = new HashMap<>();
+        for (ProcFrag proc : procs)
+            procedures.put(proc.frame.label.toString(), proc);
+
+        cw = new ClassWriter(CLASS, "java/lang/Object");
+        cw.field(ClassWriter.ACC_STATIC, "heap", "L" + HEAP + ";");
+        dispatchers = new TreeSet<>();
+        for (ProcFrag proc : procs)
+            compile(proc, false);
+        if (osrProc != null)
+            compile(osrProc, true);
+        for (int nargs : dispatchers)
+            dispatcher(nargs);
+        dispatchers = null;
+
+        byte[] bytes = cw.toByteArray();
+        cw = null;
+        procedures = null;
+        return bytes;
+    }
+
+    /**
+     * Writes the method indirect calls with the given number of arguments
+     * go through: it takes the number of the callee, then its arguments.
+     */
+    private void dispatcher(int nargs) {
+        int params = params(nargs);
+        code = new Code(cw, params + 1);
+        for (int i = 0; i < heap.procedures.size(); i++) {
+            String name = heap.procedures.get(i);
+            ProcFrag callee = procedures.get(name);
+            if (callee == null || callee.frame.formals.size() != nargs)
+                continue;
+            code.iload(0);
+            code.iconst(i + 1);
+            code.jump(Code.IF_ICMPNE, "not" + (i + 1));
+            for (int a = 1; a <= params; a++)
+                code.iload(a);
+            code.member(Code.INVOKESTATIC,
+                        cw.methodRef(CLASS, methodName(name), descriptor(params)), 1 - params);
+            code.ireturn();
+            code.label("not" + (i + 1));
+        }
+        code.iload(0);
+        code.member(Code.INVOKESTATIC,
+                    cw.methodRef("visitor/jvm/JvmCompiler", "badCall", "(I)I"), 0);
+        code.ireturn();
+        cw.method(ClassWriter.ACC_STATIC, "dispatch$" + nargs, descriptor(params + 1), code);
+        code = null;
+    }
+
+    /** Where the dispatch methods send a number no procedure has. */
+    public static int badCall(int number) {
+        throw new InterpreterException("Invalid indirect call");
+    }
+
+    private void compile(ProcFrag proc, boolean osr) {
+        Frame frame = proc.frame;
+        String name = frame.label.toString();
+        locals = new HashMap<>();
+        compiled = Collections.newSetFromMap(new IdentityHashMap<>());
+        renames = new ArrayDeque<>();
+
+        for (Access access : frame.formals) {
+            if (!(access instanceof InReg))
+                throw new IllegalStateException(
+                    "Formals in memory are not supported: " + name);
+            local(((InReg) access).temp);
+        }
+        Temp rv = frame.RV();
+        local(rv);
+        List<Stm> body = new ArrayList<>();
+        if (precise) {
+            body = Canon.canonicalize(proc.body);
+            spills = spills(body);
+        } else {
+            flatten(proc.body, body);
+        }
+        for (Stm stm : body)
+            collect(stm);
+
+        int slots = precise ? 2 * locals.size() : locals.size();
+        code = new Code(cw, slots);
+        if (osr) {
+            transfer();
+        } else {
+            for (int i = params(frame.formals.size()); i < slots; i++) {
+                code.iconst(0);
+                code.istore(i);
+            }
+        }
+        statements(body);
+        if (code.isReachable()) {
+            if (precise) {
+                code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+                code.iload(tag(rv));
+                code.member(Code.PUTFIELD, cw.fieldRef(HEAP, "resultRef", "Z"), -2);
+            }
+            code.iload(slot(rv));
+            code.ireturn();
+        }
+
+        if (osr)
+            cw.method(ClassWriter.ACC_STATIC, methodName(name) + "$osr", "([I)I", code);
+        else
+            cw.method(ClassWriter.ACC_STATIC, methodName(name),
+                      descriptor(params(frame.formals.size())), code);
+        code = null;
+        locals = null;
+        spills = null;
+        compiled = null;
+        renames = null;
+    }
+
+    /**
+     * The temps live across each call of a canonical body, but the one it
+     * assigns; none for the runtime procedures that never allocate.
+     */
+    private static Map<Stm, List<Temp>> spills(List<Stm> body) {
+        Map<Stm, List<Temp>> spills = new IdentityHashMap<>();
+        Liveness liveness = new Liveness(new ControlFlow(body));
+        ControlFlow cfg = liveness.cfg;
+        for (int b = 0; b < cfg.size(); b++) {
+            long[] live = liveness.out[b].clone();
+            for (int i = cfg.start[b + 1] - 1; i >= cfg.start[b]; i--) {
+                Stm stm = body.get(i);
+                if (stm instanceof LABEL)
+                    continue;
+                Temp dst = null;
+                if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+                    dst = ((TEMP) ((MOVE) stm).dst).temp;
+                Exp src = stm instanceof MOVE ? ((MOVE) stm).src
+                        : stm instanceof EXPR ? ((EXPR) stm).exp : null;
+                if (src instanceof CALL) {
+                    List<Temp> across = new ArrayList<>();
+                    for (int w = 0; mayCollect((CALL) src) && w < live.length; w++) {
+                        for (long word = live[w]; word != 0; word &= word - 1) {
+                            Temp t = liveness.temps.get(w << 6 | Long.numberOfTrailingZeros(word));
+                            if (!t.equals(dst))
+                                across.add(t);
+                        }
+                    }
+                    spills.put(stm, across);
+                }
+                if (dst != null)
+                    Dataflow.clear(live, liveness.temps.indexOf(dst));
+                for (Exp kid : stm.kids())
+                    reads(kid, liveness, live);
+            }
+        }
+        return spills;
+    }
+
+    private static void reads(Exp exp, Liveness liveness, long[] live) {
+        if (exp instanceof TEMP) {
+            Dataflow.set(live, liveness.temps.indexOf(((TEMP) exp).temp));
+        } else {
+            for (Exp kid : exp.kids())
+                reads(kid, liveness, live);
+        }
+    }
+
+    private static boolean mayCollect(CALL call) {
+        if (!(call.func instanceof NAME))
+            return true;
+        String name = ((NAME) call.func).label.toString();
+        return !name.equals("_printint") && !name.equals("_error");
+    }
+
+    /**
+     * Loads every local from the registers array the OSR entry takes, then
+     * jumps to the loop label. The array arrives in local 0, so that one is
+     * loaded last; from then on every local is an int, as the frames at
+     * the labels say. Precise code finds each tag after its register.
+     */
+    private void transfer() {
+        HashMap<String, Integer> registers = new HashMap<>();
+        for (int r = 0; r < osrTemps.size(); r++)
+            registers.put(osrTemps.get(r), r);
+        Temp[] temps = new Temp[locals.size()];
+        for (Map.Entry<Temp, Integer> local : locals.entrySet())
+            temps[local.getValue()] = local.getKey();
+
+        for (int i = temps.length - 1; i >= 0; i--) {
+            Integer register = registers.get(temps[i].toString());
+            if (precise)
+                load(register == null ? -1 : 2 * register + 1, tag(temps[i]));
+            load(register == null ? -1 : precise ? 2 * register : register, slot(temps[i]));
+        }
+        code.jump(Code.GOTO, osrLabel);
+    }
+
+    // one word of the OSR registers array into a local, 0 for none
+    private void load(int index, int local) {
+        if (index < 0) {
+            code.iconst(0);
+        } else {
+            code.op(Code.ALOAD_0, 1);
+            code.iconst(index);
+            code.op(Code.IALOAD, -1);
+        }
+        code.istore(local);
+    }
+
+    private int local(Temp temp) {
+        Integer local = locals.get(temp);
+        if (local == null) {
+            local = locals.size();
+            locals.put(temp, local);
+        }
+        return local;
+    }
+
+    // the JVM local holding a temp, and the one holding its tag
+    private int slot(Temp temp) {
+        return precise ? 2 * local(temp) : local(temp);
+    }
+
+    private int tag(Temp temp) {
+        return 2 * local(temp) + 1;
+    }
+
+    // numbers every temp of the body up front, the frames need the count
+    private void collect(Stm stm) {
+        if (stm instanceof SEQ) {
+            collect(((SEQ) stm).left);
+            collect(((SEQ) stm).right);
+        } else if (stm instanceof MOVE) {
+            collect(((MOVE) stm).dst);
+            collect(((MOVE) stm).src);
+        } else if (stm instanceof EXPR) {
+            collect(((EXPR) stm).exp);
+        } else if (stm instanceof CJUMP) {
+            collect(((CJUMP) stm).left);
+            collect(((CJUMP) stm).right);
+        }
+    }
+
+    private void collect(Exp exp) {
+        if (exp instanceof TEMP) {
+            local(((TEMP) exp).temp);
+        } else if (exp instanceof BINOP) {
+            collect(((BINOP) exp).left);
+            collect(((BINOP) exp).right);
+        } else if (exp instanceof MEM) {
+            collect(((MEM) exp).exp);
+        } else if (exp instanceof ESEQ) {
+            collect(((ESEQ) exp).stm);
+            collect(((ESEQ) exp).exp);
+        } else if (exp instanceof CALL) {
+            collect(((CALL) exp).func);
+            for (Exp arg : ((CALL) exp).args)
+                collect(arg);
+        }
+    }
+
+    private static void labels(Stm stm, Map<String, String> into, int copy) {
+        if (stm instanceof SEQ) {
+            labels(((SEQ) stm).left, into, copy);
+            labels(((SEQ) stm).right, into, copy);
+        } else if (stm instanceof LABEL) {
+            String name = ((LABEL) stm).label.toString();
+            into.put(name, name + "#" + copy);
+        } else if (stm instanceof MOVE) {
+            labels(((MOVE) stm).dst, into, copy);
+            labels(((MOVE) stm).src, into, copy);
+        } else if (stm instanceof EXPR) {
+            labels(((EXPR) stm).exp, into, copy);
+        } else if (stm instanceof CJUMP) {
+            labels(((CJUMP) stm).left, into, copy);
+            labels(((CJUMP) stm).right, into, copy);
+        }
+    }
+
+    private static void labels(Exp exp, Map<String, String> into, int copy) {
+        if (exp instanceof BINOP) {
+            labels(((BINOP) exp).left, into, copy);
+            labels(((BINOP) exp).right, into, copy);
+        } else if (exp instanceof MEM) {
+            labels(((MEM) exp).exp, into, copy);
+        } else if (exp instanceof ESEQ) {
+            labels(((ESEQ) exp).stm, into, copy);
+            labels(((ESEQ) exp).exp, into, copy);
+        } else if (exp instanceof CALL) {
+            labels(((CALL) exp).func, into, copy);
+            for (Exp arg : ((CALL) exp).args)
+                labels(arg, into, copy);
+        }
+    }
+
+    // names of the procedures a body calls, runtime ones included; a call
+    // through a table may reach any procedure a table names
+    private void calls(Stm stm, Set<String> into) {
+        if (stm instanceof SEQ) {
+            calls(((SEQ) stm).left, into);
+            calls(((SEQ) stm).right, into);
+        } else if (stm instanceof MOVE) {
+            calls(((MOVE) stm).dst, into);
+            calls(((MOVE) stm).src, into);
+        } else if (stm instanceof EXPR) {
+            calls(((EXPR) stm).exp, into);
+        } else if (stm instanceof CJUMP) {
+            calls(((CJUMP) stm).left, into);
+            calls(((CJUMP) stm).right, into);
+        }
+    }
+
+    private void calls(Exp exp, Set<String> into) {
+        if (exp instanceof BINOP) {
+            calls(((BINOP) exp).left, into);
+            calls(((BINOP) exp).right, into);
+        } else if (exp instanceof MEM) {
+            calls(((MEM) exp).exp, into);
+        } else if (exp instanceof ESEQ) {
+            calls(((ESEQ) exp).stm, into);
+            calls(((ESEQ) exp).exp, into);
+        } else if (exp instanceof CALL) {
+            Exp func = ((CALL) exp).func;
+            if (func instanceof NAME) {
+                into.add(((NAME) func).label.toString());
+            } else {
+                into.addAll(heap.procedures);
+                calls(func, into);
+            }
+            for (Exp arg : ((CALL) exp).args)
+                calls(arg, into);
+        }
+    }
+
+    private String label(Label label) {
+        String name = label.toString();
+        for (Map<String, String> rename : renames) {
+            String renamed = rename.get(name);
+            if (renamed != null)
+                return renamed;
+        }
+        return name;
+    }
+
+    private static void flatten(Stm stm, List<Stm> into) {
+        if (stm instanceof SEQ) {
+            flatten(((SEQ) stm).left, into);
+            flatten(((SEQ) stm).right, into);
+        } else if (stm != null) {
+            into.add(stm);
+        }
+    }
+
+    private void statements(Stm stm) {
+        List<Stm> stms = new ArrayList<>();
+        flatten(stm, stms);
+        statements(stms);
+    }
+
+    private void statements(List<Stm> stms) {
+        for (int i = 0; i < stms.size(); i++) {
+            Stm s = stms.get(i);
+            // nothing falls into the code after a jump; it can only be
+            // entered at a label
+            if (!code.isReachable() && !(s instanceof LABEL))
+                continue;
+            statement(s, i + 1 < stms.size() ? stms.get(i + 1) : null);
+        }
+    }
+
+    private void statement(Stm stm, Stm next) {
+        if (stm instanceof LABEL) {
+            code.label(label(((LABEL) stm).label));
+        } else if (stm instanceof JUMP) {
+            JUMP jump = (JUMP) stm;
+            if (!(jump.exp instanceof NAME))
+                throw new IllegalStateException("Computed jumps are not supported");
+            code.jump(Code.GOTO, label(((NAME) jump.exp).label));
+        } else if (stm instanceof CJUMP) {
+            cjump((CJUMP) stm, next);
+        } else if (stm instanceof MOVE) {
+            MOVE move = (MOVE) stm;
+            if (move.dst instanceof TEMP && precise) {
+                Temp t = ((TEMP) move.dst).temp;
+                if (move.src instanceof CALL) {
+                    call((CALL) move.src, spills.get(stm));
+                    code.istore(tag(t));
+                    code.istore(slot(t));
+                } else {
+                    tag(move.src);
+                    expression(move.src);
+                    code.istore(slot(t));
+                    code.istore(tag(t));
+                }
+            } else if (move.dst instanceof TEMP) {
+                expression(move.src);
+                code.istore(local(((TEMP) move.dst).temp));
+            } else if (move.dst instanceof MEM && precise) {
+                code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+                expression(((MEM) move.dst).exp);
+                expression(move.src);
+                tag(move.src);
+                code.member(Code.INVOKEVIRTUAL, cw.methodRef(HEAP, "store", "(IIZ)V"), -4);
+            } else if (move.dst instanceof MEM) {
+                store(((MEM) move.dst).exp, move.src);
+            } else {
+                throw new IllegalStateException("Bad MOVE destination");
+            }
+        } else if (stm instanceof EXPR && precise && ((EXPR) stm).exp instanceof CALL) {
+            call((CALL) ((EXPR) stm).exp, spills.get(stm));
+            code.op(Code.POP, -1);
+            code.op(Code.POP, -1);
+        } else if (stm instanceof EXPR) {
+            expression(((EXPR) stm).exp);
+            code.op(Code.POP, -1);
+        } else if (stm instanceof SEQ) {
+            statements(stm);
+        } else {
+            throw new IllegalStateException("Unexpected " + stm.getClass().getSimpleName());
+        }
+    }
+
+    private static boolean isLabel(Stm stm, Label label) {
+        return stm instanceof LABEL
+            && ((LABEL) stm).label.toString().equals(label.toString());
+    }
+
+    /**
+     * Branches to the true label and falls through to the false one, or the
+     * other way round, when either comes next.
+     */
+    private void cjump(CJUMP cjump, Stm next) {
+        int relop = cjump.relop;
+        Label target = cjump.iftrue, other = cjump.iffalse;
+        if (isLabel(next, cjump.iftrue)) {
+            relop = CJUMP.notRel(relop);
+            target = cjump.iffalse;
+            other = cjump.iftrue;
+        }
+
+        expression(cjump.left);
+        boolean unsigned = relop >= CJUMP.ULT;
+        if (unsigned) {
+            expression(cjump.right);
+            code.member(Code.INVOKESTATIC,
+                        cw.methodRef("java/lang/Integer", "compareUnsigned", "(II)I"), -1);
+            code.jump(zeroBranch(relop), label(target));
+        } else if (cjump.right instanceof CONST && ((CONST) cjump.right).value == 0) {
+            code.jump(zeroBranch(relop), label(target));
+        } else {
+            expression(cjump.right);
+            code.jump(zeroBranch(relop) + (Code.IF_ICMPEQ - Code.IFEQ), label(target));
+        }
+
+        if (!isLabel(next, other))
+            code.jump(Code.GOTO, label(other));
+    }
+
+    // the IFxx opcode testing a value against zero, the IF_ICMPxx opcodes
+    // follow in the same order
+    private static int zeroBranch(int relop) {
+        switch (relop) {
+            case CJUMP.EQ:
+                return Code.IFEQ;
+            case CJUMP.NE:
+                return Code.IFNE;
+            case CJUMP.LT:
+            case CJUMP.ULT:
+                return Code.IFLT;
+            case CJUMP.GE:
+            case CJUMP.UGE:
+                return Code.IFGE;
+            case CJUMP.GT:
+            case CJUMP.UGT:
+                return Code.IFGT;
+            case CJUMP.LE:
+            case CJUMP.ULE:
+                return Code.IFLE;
+        }
+        throw new IllegalStateException("Unsupported CJUMP " + relop);
+    }
+
+    private void words() {
+        code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+        code.member(Code.GETFIELD, cw.fieldRef(HEAP, "words", "[I"), 0);
+    }
+
+    // the value is evaluated before the address, as in the command listing;
+    // the words array is only fetched after both, allocation may replace it
+    private void store(Exp address, Exp src) {
+        expression(src);
+        expression(address);
+        code.iconst(2);
+        code.op(Code.ISHR, -1);
+        words();
+        code.op(Code.DUP_X2, 1);
+        code.op(Code.POP, -1);
+        code.op(Code.SWAP, 0);
+        code.op(Code.IASTORE, -3);
+    }
+
+    private void expression(Exp exp) {
+        if (exp instanceof CONST) {
+            code.iconst(((CONST) exp).value);
+        } else if (exp instanceof NAME) {
+            code.iconst(heap.table(((NAME) exp).label.toString()));
+        } else if (exp instanceof TEMP) {
+            code.iload(slot(((TEMP) exp).temp));
+        } else if (exp instanceof BINOP) {
+            BINOP b = (BINOP) exp;
+            expression(b.left);
+            expression(b.right);
+            code.op(binop(b.binop), -1);
+        } else if (exp instanceof MEM) {
+            expression(((MEM) exp).exp);
+            code.iconst(2);
+            code.op(Code.ISHR, -1);
+            words();
+            code.op(Code.SWAP, 0);
+            code.op(Code.IALOAD, -1);
+        } else if (exp instanceof ESEQ) {
+            ESEQ eseq = (ESEQ) exp;
+            boolean copy = !compiled.add(eseq);
+            if (copy) {
+                Map<String, String> rename = new HashMap<>();
+                labels(eseq.stm, rename, ++copies);
+                renames.push(rename);
+            }
+            statements(eseq.stm);
+            expression(eseq.exp);
+            if (copy)
+                renames.pop();
+        } else if (exp instanceof CALL && !precise) {
+            call((CALL) exp, null);
+        } else {
+            throw new IllegalStateException("Unexpected " + exp.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Pushes the tag of a call-free expression, by the interpreter's rules:
+     * a word of the heap has the tag stored with it, PLUS keeps that of a
+     * reference operand and MINUS that of its left one, for the derived
+     * pointers walking arrays; every other result is plain data.
+     */
+    private void tag(Exp exp) {
+        if (exp instanceof TEMP) {
+            code.iload(tag(((TEMP) exp).temp));
+        } else if (exp instanceof MEM) {
+            code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+            expression(((MEM) exp).exp);
+            code.member(Code.INVOKEVIRTUAL, cw.methodRef(HEAP, "isRef", "(I)Z"), -1);
+        } else if (exp instanceof BINOP && ((BINOP) exp).binop == BINOP.PLUS) {
+            tag(((BINOP) exp).left);
+            tag(((BINOP) exp).right);
+            code.op(Code.IOR, -1);
+        } else if (exp instanceof BINOP && ((BINOP) exp).binop == BINOP.MINUS) {
+            tag(((BINOP) exp).left);
+        } else {
+            code.iconst(0);
+        }
+    }
+
+    private static int binop(int binop) {
+        switch (binop) {
+            case BINOP.PLUS:
+                return Code.IADD;
+            case BINOP.MINUS:
+                return Code.ISUB;
+            case BINOP.MUL:
+                return Code.IMUL;
+            case BINOP.DIV:
+                return Code.IDIV;
+            case BINOP.AND:
+                return Code.IAND;
+            case BINOP.OR:
+                return Code.IOR;
+            case BINOP.LSHIFT:
+                return Code.ISHL;
+            case BINOP.RSHIFT:
+                return Code.IUSHR;
+            case BINOP.ARSHIFT:
+                return Code.ISHR;
+            case BINOP.XOR:
+                return Code.IXOR;
+        }
+        throw new IllegalStateException("Unsupported BINOP " + binop);
+    }
+
+    /**
+     * Pushes the result of a call; precise code also pushes its tag, after
+     * saving the temps live across the call and before loading them back.
+     */
+    private void call(CALL call, List<Temp> live) {
+        if (precise) {
+            for (Temp t : live) {
+                code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+                code.iload(slot(t));
+                code.iload(tag(t));
+                code.member(Code.INVOKEVIRTUAL, cw.methodRef(HEAP, "save", "(IZ)V"), -3);
+            }
+        }
+        int ref = invoke(call);
+        if (precise) {
+            for (int i = live.size() - 1; i >= 0; i--) {
+                code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+                code.member(Code.INVOKEVIRTUAL, cw.methodRef(HEAP, "restore", "()I"), 0);
+                code.istore(slot(live.get(i)));
+            }
+            if (ref >= 0) {
+                code.iconst(ref);
+            } else {
+                code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+                code.member(Code.GETFIELD, cw.fieldRef(HEAP, "resultRef", "Z"), 0);
+            }
+        }
+    }
+
+    private void arguments(CALL call) {
+        for (Exp arg : call.args) {
+            expression(arg);
+            if (precise)
+                tag(arg);
+        }
+    }
+
+    // pushes the result of a call and returns its tag, that of a runtime
+    // procedure's is known here, or -1 when it is left in Heap.resultRef
+    private int invoke(CALL call) {
+        if (!(call.func instanceof NAME)) {
+            expression(call.func);
+            arguments(call);
+            int nargs = call.args.size();
+            dispatchers.add(nargs);
+            code.member(Code.INVOKESTATIC,
+                        cw.methodRef(CLASS, "dispatch$" + nargs, descriptor(params(nargs) + 1)),
+                        -params(nargs));
+            return -1;
+        }
+        String name = ((NAME) call.func).label.toString();
+        int nargs = call.args.size();
+        if (procedures.containsKey(name)) {
+            arguments(call);
+        } else {
+            for (Exp arg : call.args)
+                expression(arg);
+        }
+
+        switch (name) {
+            case "_printint":
+                checkArity(name, nargs, 1);
+                code.member(Code.GETSTATIC,
+                            cw.fieldRef("java/lang/System", "out", "Ljava/io/PrintStream;"), 1);
+                code.op(Code.SWAP, 0);
+                code.member(Code.INVOKEVIRTUAL,
+                            cw.methodRef("java/io/PrintStream", "println", "(I)V"), -2);
+                code.iconst(0);
+                return 0;
+            case "_halloc":
+                checkArity(name, nargs, 1);
+                code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+                code.op(Code.SWAP, 0);
+                code.member(Code.INVOKEVIRTUAL, cw.methodRef(HEAP, "alloc", "(I)I"), -1);
+                return 1;
+            case "_newarray":
+                checkArity(name, nargs, 1);
+                code.member(Code.GETSTATIC, cw.fieldRef(CLASS, "heap", "L" + HEAP + ";"), 1);
+                code.op(Code.SWAP, 0);
+                code.member(Code.INVOKEVIRTUAL, cw.methodRef(HEAP, "allocArray", "(I)I"), -1);
+                return 1;
+            case "_error":
+                checkArity(name, nargs, 0);
+                code.member(Code.GETSTATIC,
+                            cw.fieldRef("java/lang/System", "out", "Ljava/io/PrintStream;"), 1);
+                code.sconst("ERRO: Acessando array fora dos limites!");
+                code.member(Code.INVOKEVIRTUAL,
+                            cw.methodRef("java/io/PrintStream", "println",
+                                         "(Ljava/lang/String;)V"), -2);
+                code.iconst(0);
+                return 0;
+        }
+
+        ProcFrag callee = procedures.get(name);
+        if (callee == null)
+            throw new IllegalStateException("Undefined procedure " + name);
+        checkArity(name, nargs, callee.frame.formals.size());
+        code.member(Code.INVOKESTATIC,
+                    cw.methodRef(CLASS, methodName(name), descriptor(params(nargs))),
+                    1 - params(nargs));
+        return -1;
+    }
+
+    private static void checkArity(String name, int nargs, int expected) {
+        if (nargs != expected)
+            throw new IllegalStateException(String.format(
+                "%s expects %d arguments, got %d", name, expected, nargs));
+    }
+}
@@ -0,0 +1,22 @@
+package visitor.translate;
+
+import frame.Label;
+import tree.node.LABEL;
+import tree.node.SEQ;
+
+/**
+ * left && right: right is only tested when left holds.
+ */
+class AndCx extends Cx {
+    final TrExp left, right;
+
+    AndCx(TrExp left, TrExp right) {
+        this.left = left;
+        this.right = right;
+    }
+
+    tree.Stm unCx(Label t, Label f) {
+        Label z = new Label();
+        return new SEQ(left.unCx(z, f), new SEQ(new LABEL(z), right.unCx(t, f)));
+    }
+}
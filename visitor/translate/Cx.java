@@ -0,0 +1,29 @@
+package visitor.translate;
+
+import frame.Label;
+import frame.Temp;
+import tree.node.CONST;
+import tree.node.ESEQ;
+import tree.node.LABEL;
+import tree.node.MOVE;
+import tree.node.SEQ;
+import tree.node.TEMP;
+
+/**
+ * A condition, translated into jumps. Only when its value is used is it
+ * materialized as 0 or 1 in a temp.
+ */
+abstract class Cx extends TrExp {
+    tree.Exp unEx() {
+        Temp r = new Temp();
+        Label t = new Label();
+        Label f = new Label();
+        return new ESEQ(
+            new SEQ(new MOVE(new TEMP(r), new CONST(1)),
+            new SEQ(unCx(t, f),
+            new SEQ(new LABEL(f),
+            new SEQ(new MOVE(new TEMP(r), new CONST(0)),
+                    new LABEL(t))))),
+            new TEMP(r));
+    }
+}
@@ -1,13 +1,37 @@
 //package Translate;
 package visitor.translate;
 
+import frame.Label;
+
+import java.util.List;
+
 public class DataFrag extends Frag {
     public String data;
 
+    /**
+     * For a table of words, such as the method table of a class: its
+     * label and the procedure each word names; null otherwise.
+     */
+    public Label label;
+    public List<Label> words;
+
     public DataFrag(String s) {
         data = s;
     }
 
+    public DataFrag(Label label, List<Label> words) {
+        this.label = label;
+        this.words = words;
+
+        StringBuilder data = new StringBuilder();
+        data.append("         .data            \n");
+        data.append("         .align   2       \n");
+        data.append(label).append(":\n");
+        for (Label word : words)
+            data.append("         .word ").append(word).append('\n');
+        this.data = data.toString();
+    }
+
     public String toString() {
         return data;
     }
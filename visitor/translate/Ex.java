@@ -0,0 +1,28 @@
+package visitor.translate;
+
+import frame.Label;
+import tree.node.CJUMP;
+import tree.node.CONST;
+import tree.node.JUMP;
+
+/**
+ * An expression used for its value.
+ */
+class Ex extends TrExp {
+    final tree.Exp exp;
+
+    Ex(tree.Exp e) {
+        exp = e;
+    }
+
+    tree.Exp unEx() {
+        return exp;
+    }
+
+    tree.Stm unCx(Label t, Label f) {
+        // booleans are 0 or 1; a constant one always goes the same way
+        if (exp instanceof CONST)
+            return new JUMP(((CONST) exp).value != 0 ? t : f);
+        return new CJUMP(CJUMP.NE, exp, new CONST(0), t, f);
+    }
+}
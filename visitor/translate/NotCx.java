@@ -0,0 +1,27 @@
+package visitor.translate;
+
+import frame.Label;
+import tree.node.BINOP;
+import tree.node.CONST;
+
+/**
+ * !exp, which swaps the labels of a condition.
+ */
+class NotCx extends Cx {
+    final TrExp exp;
+
+    NotCx(TrExp exp) {
+        this.exp = exp;
+    }
+
+    tree.Exp unEx() {
+        // a value that is already 0 or 1 needs no jumps
+        if (exp instanceof Ex)
+            return new BINOP(BINOP.MINUS, new CONST(1), exp.unEx());
+        return super.unEx();
+    }
+
+    tree.Stm unCx(Label t, Label f) {
+        return exp.unCx(f, t);
+    }
+}
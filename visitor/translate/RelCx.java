@@ -0,0 +1,22 @@
+package visitor.translate;
+
+import frame.Label;
+import tree.node.CJUMP;
+
+/**
+ * A comparison between two values.
+ */
+class RelCx extends Cx {
+    final int relop;
+    final tree.Exp left, right;
+
+    RelCx(int relop, tree.Exp left, tree.Exp right) {
+        this.relop = relop;
+        this.left = left;
+        this.right = right;
+    }
+
+    tree.Stm unCx(Label t, Label f) {
+        return new CJUMP(relop, left, right, t, f);
+    }
+}
@@ -0,0 +1,15 @@
+package visitor.translate;
+
+import frame.Label;
+
+/**
+ * The translation of an expression, after Appel: either a value
+ * ({@link Ex}) or a condition that jumps to one of two labels
+ * ({@link Cx}), converted to what the place using it needs. Statements
+ * have no value and keep their own channel in {@link Translate}.
+ */
+abstract class TrExp {
+    abstract tree.Exp unEx();
+
+    abstract tree.Stm unCx(Label t, Label f);
+}
@@ -27,12 +27,24 @@ public class Translate extends BaseAnalysis {
     
     private tree.Exp currentExpression;
     private tree.Stm currentStatement;
+    private Cx currentCondition;
     private Stack<Node> nodeStack = new Stack<>();
     
     private Map<Symbol, Frame> frames = new HashMap<>();
     private Map<Variable, frame.Access> variableAccesses = new HashMap<>();
     private List<Frag> frags = new LinkedList<>();
 
+    // the methods of each class by the slot of its method table they fill,
+    // a subclass's slots following those of its base class
+    private Map<ClassS, List<Method>> vtables = new HashMap<>();
+    private Map<ClassS, Label> vtableLabels = new HashMap<>();
+
+    // calls only one method can answer, after class hierarchy analysis,
+    // are made directly instead of through the method table
+    private boolean devirtualize = true;
+    /** Calls made through a method table, and calls made directly. */
+    public int virtualCalls, directCalls;
+
     public Translate(Frame globalFrame, SymbolTable symbolTable,
                      Map<PExpression, PType> types) {
         this.globalFrame = globalFrame;
@@ -48,6 +60,10 @@ public class Translate extends BaseAnalysis {
     public List<Frag> getResults() {
         return Collections.unmodifiableList(frags);
     }
+
+    public void setDevirtualize(boolean devirtualize) {
+        this.devirtualize = devirtualize;
+    }
     
     private Frame parseClass(ClassS cls) {
         ClassS baseClass = cls.getBaseClass();
@@ -62,12 +78,26 @@ public class Translate extends BaseAnalysis {
             offset = baseFrame.getOffset();
         } else {
             baseFrame = globalFrame;
-            offset = 0;
+            // word 0 of every object points to its class's method table
+            offset = 4;
         }
         
         Frame frame = baseFrame.newFrame(cls);
         frame.setOffset(offset);
         
+        List<Method> vtable = new ArrayList<>();
+        if(baseClass != null)
+            vtable.addAll(vtables.get(baseClass));
+        for (Method method : cls.getMethods().values()) {
+            int slot = slot(vtable, method.getId());
+            if(slot >= 0)
+                vtable.set(slot, method);
+            else
+                vtable.add(method);
+        }
+        vtables.put(cls, vtable);
+        vtableLabels.put(cls, new Label(frame.label.name + "$vtable"));
+        
         for (Variable v : cls.getVars().values()) {
             variableAccesses.put(v, frame.allocLocal(true));
         }
@@ -79,6 +109,37 @@ public class Translate extends BaseAnalysis {
         return frame;
     }
 
+    private static int slot(List<Method> vtable, String name) {
+        for (int i = 0; i < vtable.size(); i++) {
+            if(vtable.get(i).getId().equals(name))
+                return i;
+        }
+        return -1;
+    }
+    
+    private DataFrag vtable(ClassS cls) {
+        List<Label> words = new ArrayList<>();
+        for (Method method : vtables.get(cls))
+            words.add(frames.get(method).label);
+        return new DataFrag(vtableLabels.get(cls), words);
+    }
+    
+    /**
+     * The only method a call on an instance of the class can reach, or
+     * null when a subclass overrides it.
+     */
+    private Method monomorphic(ClassS cls, String name) {
+        Method target = cls.getMethodInHierarchy(name);
+        for (ClassS sub : symbolTable.getClasses().values()) {
+            ClassS base = sub;
+            while(base != null && base != cls)
+                base = base.getBaseClass();
+            if(base != null && sub.getMethodInHierarchy(name) != target)
+                return null;
+        }
+        return target;
+    }
+
     private Frame parseMethod(Method method, ClassS cls, Frame classFrame) {
         int numParams = method.getNumParams() + 1; // + this
         Frame frame = classFrame.newFrame(method,
@@ -120,9 +181,17 @@ public class Translate extends BaseAnalysis {
     private tree.Exp visitExp(Node node) {
         currentStatement = null;
         currentExpression = null;
+        currentCondition = null;
         
         node.apply(this);
-        tree.Exp exp = asExp(currentExpression);
+        tree.Exp exp;
+        if(currentCondition != null) {
+            // a condition used as a value
+            exp = currentCondition.unEx();
+            setTag(exp, input.nodeLine(node));
+        } else {
+            exp = asExp(currentExpression);
+        }
         if(exp == null) {
             fail(node, "Expected expression");
             return null;
@@ -130,9 +199,34 @@ public class Translate extends BaseAnalysis {
         
         currentStatement = null;
         currentExpression = null;
+        currentCondition = null;
         return exp;
     }
     
+    private TrExp visitCondition(Node node) {
+        currentStatement = null;
+        currentExpression = null;
+        currentCondition = null;
+        
+        node.apply(this);
+        TrExp cond;
+        if(currentCondition != null) {
+            cond = currentCondition;
+        } else {
+            tree.Exp exp = asExp(currentExpression);
+            if(exp == null) {
+                fail(node, "Expected expression");
+                return null;
+            }
+            cond = new Ex(exp);
+        }
+        
+        currentStatement = null;
+        currentExpression = null;
+        currentCondition = null;
+        return cond;
+    }
+    
     
     private tree.Stm visitStm(Node node) {
         currentStatement = null;
@@ -255,6 +349,25 @@ public class Translate extends BaseAnalysis {
         for (PMethodDeclaration e : node.getMethods()) {
             e.apply(this);
         }
+        frags.add(vtable(currentClass));
+        
+        currentClassFrame = null;
+        currentClass = null;
+    
+        defaultOut(node);
+    }
+    
+    @Override
+    public void caseAExtendsClassDecl(AExtendsClassDecl node) {
+        defaultIn(node);
+        
+        currentClass = symbolTable.getClass(node.getName().toString());
+        currentClassFrame = frames.get(currentClass);
+        
+        for (PMethodDeclaration e : node.getMethods()) {
+            e.apply(this);
+        }
+        frags.add(vtable(currentClass));
         
         currentClassFrame = null;
         currentClass = null;
@@ -312,7 +425,9 @@ public class Translate extends BaseAnalysis {
             fail(expr, "`this` used in frame with no parameters");
         }
         
-        frame.Access access = variableAccesses.get(currentClass.getThisVar());
+        // `this` is always the first formal of the current method; the
+        // class-wide this variable only remembers the last method parsed
+        frame.Access access = currentMethodFrame.formals.get(0);
         return access.exp(TEMP(currentMethodFrame.FP()));
     }
     
@@ -412,25 +527,9 @@ public class Translate extends BaseAnalysis {
     public void caseAAndExpression(AAndExpression node) {
         defaultIn(node);
         
-        Temp t1 = new Temp();
-        Label done = new Label();
-        Label ok1 = new Label();
-        Label ok2 = new Label();
-        tree.Exp left = visitExp(node.getLeft());
-        tree.Exp right = visitExp(node.getRight());
-
-        currentExpression = ESEQ(
-            seq(
-                MOVE(TEMP(t1), CONST(0)),
-                CJUMP(tree.node.CJUMP.EQ, left, CONST(1), ok1, done),
-                LABEL(ok1),
-                CJUMP(tree.node.CJUMP.EQ, right, CONST(1), ok2, done),
-                LABEL(ok2),
-                MOVE(TEMP(t1), CONST(1)),
-                LABEL(done)
-            ),
-            TEMP(t1)
-        );
+        TrExp left = visitCondition(node.getLeft());
+        TrExp right = visitCondition(node.getRight());
+        currentCondition = new AndCx(left, right);
     
         defaultOut(node);
     }
@@ -439,22 +538,9 @@ public class Translate extends BaseAnalysis {
     public void caseALessThanExpression(ALessThanExpression node) {
         defaultIn(node);
         
-        Temp t1 = new Temp();
-        Label done = new Label();
-        Label trueL = new Label();
         tree.Exp left = visitExp(node.getLeft());
         tree.Exp right = visitExp(node.getRight());
-
-        currentExpression = ESEQ(
-            seq(
-                MOVE(TEMP(t1), CONST(0)),
-                CJUMP(CJUMP.LT, left, right, trueL, done),
-                LABEL(trueL),
-                MOVE(TEMP(t1), CONST(1)),
-                LABEL(done)
-            ),
-            TEMP(t1)
-        );
+        currentCondition = new RelCx(CJUMP.LT, left, right);
     
         defaultOut(node);
     }
@@ -463,8 +549,7 @@ public class Translate extends BaseAnalysis {
     public void caseANotExpression(ANotExpression node) {
         defaultIn(node);
         
-        tree.Exp e = visitExp(node.getExpression());
-        currentExpression = BINOP(BINOP.MINUS, CONST(1), e);
+        currentCondition = new NotCx(visitCondition(node.getExpression()));
     
         defaultOut(node);
     }
@@ -494,11 +579,11 @@ public class Translate extends BaseAnalysis {
         Label T = new Label();
         Label F = new Label();
         Label D = new Label();
-        tree.Exp exp = visitExp(node.getCondition());
+        TrExp cond = visitCondition(node.getCondition());
         tree.Stm stmT = visitStm(node.getTrueStatement());
         tree.Stm stmF = visitStm(node.getFalseStatement());
         currentStatement = seq(
-            CJUMP(CJUMP.EQ, exp, CONST(1), T, F),
+            cond.unCx(T, F),
             LABEL(T),
             stmT,
             JUMP(D),
@@ -518,11 +603,11 @@ public class Translate extends BaseAnalysis {
         Label body = new Label();
         Label done = new Label();
         
-        tree.Exp condition = visitExp(node.getCondition());
+        TrExp condition = visitCondition(node.getCondition());
         tree.Stm bodyStm = visitStm(node.getStatement());
         currentStatement = seq(
             LABEL(check),
-            CJUMP(CJUMP.EQ, condition, CONST(1), body, done),
+            condition.unCx(body, done),
             LABEL(body),
             bodyStm,
             JUMP(check),
@@ -546,65 +631,98 @@ public class Translate extends BaseAnalysis {
         defaultIn(node);
         
         Temp addr = new Temp();
-        Temp pos = new Temp();
-        Label check = new Label();
-        Label done = new Label();
-        Label body = new Label();
 
         tree.Exp numElems = visitExp(node.getSize());
-        tree.Exp totalElems = BINOP(tree.node.BINOP.PLUS, numElems, CONST(1));
-        tree.Exp size = BINOP(tree.node.BINOP.MUL, totalElems, CONST(4));
+        tree.Stm bind = null;
+        if (!isLeaf(numElems)) {
+            Temp tElems = new Temp();
+            bind = MOVE(TEMP(tElems), numElems);
+            numElems = TEMP(tElems);
+        }
 
-        // 1. call _halloc get pointer to space allocated in t1
-        List<tree.Exp> args1 = Arrays.asList(size);
+        // 0. a negative size is as much an error as a negative index
+        Label error = new Label();
+        Label ok = new Label();
+        List<tree.Exp> args0 = Collections.emptyList();
+        tree.Stm checkSize = seq(
+            bind,
+            CJUMP(tree.node.CJUMP.LT, numElems, CONST(0), error, ok),
+            LABEL(error),
+            MOVE(TEMP(new Temp()), CALL(NAME(new Label("_error")), args0)),
+            LABEL(ok)
+        );
+
+        // 1. _newarray writes the length word and hands back zeroed
+        // elements, so there is nothing left to initialize
+        List<tree.Exp> args1 = Arrays.asList(numElems);
         
         tree.Stm getAddr = MOVE(TEMP(addr),
-                                CALL(NAME(new Label("_halloc")), args1));
-
-        // 2.Initialization
-        tree.Stm init = seq(
-            MOVE(TEMP(pos), CONST(4)),
-            LABEL(check),
-            CJUMP(tree.node.CJUMP.LT, TEMP(pos), size, body, done),
-            LABEL(body),
-            MOVE(MEM(BINOP(tree.node.BINOP.PLUS, TEMP(addr), TEMP(pos))),
-                 CONST(0)),
-            MOVE(TEMP(pos), BINOP(tree.node.BINOP.PLUS, TEMP(pos), CONST(4))),
-            JUMP(check),
-            LABEL(done),
-            MOVE(MEM(TEMP(addr)), BINOP(tree.node.BINOP.MUL, numElems, CONST(4)))
-        );
+                                CALL(NAME(new Label("_newarray")), args1));
 
-        currentExpression = ESEQ(SEQ(getAddr, init), TEMP(addr));
+        currentExpression = ESEQ(seq(checkSize, getAddr), TEMP(addr));
     
         defaultOut(node);
     }
 
-    private tree.Exp arrayReference(tree.Exp array, tree.Exp index) {
-        Temp tIndex = new Temp();
-        Temp tSize = new Temp();
+    /**
+     * The element count of an array; its length word holds the size in
+     * bytes.
+     */
+    private static tree.Exp arrayLength(tree.Exp array) {
+        return BINOP(BINOP.RSHIFT, MEM(array), CONST(2));
+    }
+
+    /**
+     * Leaves for _error unless 0 <= index < length of array. Both are read
+     * again after the check, so both must be temps or constants.
+     */
+    private static tree.Stm boundsCheck(tree.Exp array, tree.Exp index) {
+        Temp tLength = new Temp();
 
         Label F = new Label();
         Label T = new Label();
 
         List<tree.Exp> args1 = Collections.emptyList();
 
-        tree.Stm checkIndex = seq(
-            MOVE(TEMP(tIndex), BINOP(tree.node.BINOP.MUL, index, CONST(4))),
-            MOVE(TEMP(tSize), MEM(array)),
-            CJUMP(tree.node.CJUMP.GE, TEMP(tIndex), TEMP(tSize), T, F),
+        // unsigned, so a negative index is out of range as a large one is
+        return seq(
+            MOVE(TEMP(tLength), arrayLength(array)),
+            CJUMP(tree.node.CJUMP.UGE, index, TEMP(tLength), T, F),
             LABEL(T),
             MOVE(TEMP(new Temp()), CALL(NAME(new Label("_error")), args1)),
             LABEL(F)
         );
-        
+    }
+
+    private static boolean isLeaf(tree.Exp exp) {
+        return exp instanceof tree.node.TEMP || exp instanceof tree.node.CONST;
+    }
+
+    private static tree.Exp elementAddress(tree.Exp array, tree.Exp index) {
         tree.Exp base = BINOP(BINOP.PLUS, array, CONST(4));
         tree.Exp offset = BINOP(BINOP.MUL, index, CONST(4));
-        
+        return BINOP(BINOP.PLUS, base, offset);
+    }
+
+    private tree.Exp arrayReference(tree.Exp array, tree.Exp index) {
+        // the array and index are each evaluated once
+        tree.Stm bind = null;
+        if (!(array instanceof tree.node.TEMP)) {
+            Temp tArray = new Temp();
+            bind = MOVE(TEMP(tArray), array);
+            array = TEMP(tArray);
+        }
+        if (!isLeaf(index)) {
+            Temp tIndex = new Temp();
+            bind = SEQ(bind, MOVE(TEMP(tIndex), index));
+            index = TEMP(tIndex);
+        }
+
         Temp t = new Temp();
         tree.Stm calc = seq(
-            checkIndex,
-            MOVE(TEMP(t), MEM(BINOP(BINOP.PLUS, base, offset)))
+            bind,
+            boundsCheck(array, index),
+            MOVE(TEMP(t), MEM(elementAddress(array, index)))
         );
 
         return ESEQ(calc, TEMP(t));
@@ -622,6 +740,16 @@ public class Translate extends BaseAnalysis {
     }
     
     
+    @Override
+    public void caseAArrayLengthExpression(AArrayLengthExpression node) {
+        defaultIn(node);
+        
+        tree.Exp array = visitExp(node.getArray());
+        currentExpression = arrayLength(array);
+    
+        defaultOut(node);
+    }
+    
     @Override
     public void caseAArrayAssignStatement(AArrayAssignStatement node) {
         defaultIn(node);
@@ -630,33 +758,22 @@ public class Translate extends BaseAnalysis {
         tree.Exp index = visitExp(node.getIndex());
         tree.Exp value = visitExp(node.getValue());
         
+        tree.Stm bind = null;
         if (!(array instanceof tree.node.TEMP)) {
             Temp tAux = new Temp();
-            array = ESEQ(MOVE(TEMP(tAux), array), TEMP(tAux));
+            bind = MOVE(TEMP(tAux), array);
+            array = TEMP(tAux);
+        }
+        if (!isLeaf(index)) {
+            Temp tIndex = new Temp();
+            bind = SEQ(bind, MOVE(TEMP(tIndex), index));
+            index = TEMP(tIndex);
         }
-        
-        Temp offset = new Temp();
-        Temp size = new Temp();
-        Label error = new Label();
-        Label ok = new Label();
-        
-        List<tree.Exp> args=  Collections.emptyList();
-        
-        tree.Stm calcOffset = seq(
-            MOVE(TEMP(offset), BINOP(tree.node.BINOP.MUL, index, CONST(4))),
-            MOVE(TEMP(size), MEM(array)),
-            CJUMP(CJUMP.GE, TEMP(offset), TEMP(size), error, ok),
-            LABEL(error),
-            asStm(CALL(NAME(new Label("_error")), args)),
-            LABEL(ok)
-        );
         
         currentStatement = seq(
-            calcOffset,
-            MOVE(TEMP(offset),
-                 BINOP(tree.node.BINOP.PLUS, TEMP(offset), CONST(4))),
-            MOVE(TEMP(offset), BINOP(BINOP.PLUS, array, TEMP(offset))),
-            MOVE(MEM(TEMP(offset)), value)
+            bind,
+            boundsCheck(array, index),
+            MOVE(MEM(elementAddress(array, index)), value)
         );
     
         defaultOut(node);
@@ -677,28 +794,13 @@ public class Translate extends BaseAnalysis {
         // Allocate something even if the class has no members
         int size = Math.max(4, frames.get(cls).getOffset());
         Temp addr = new Temp();
-        Temp pos = new Temp();
-        Label check = new Label();
-        Label body = new Label();
-        Label done = new Label();
         
         List<tree.Exp> args1 = Arrays.asList(CONST(size));
         
+        // _halloc hands back zeroed memory, so only the vtable is stored
         tree.Stm getAddr = MOVE(TEMP(addr),
                                 CALL(NAME(new Label("_halloc")), args1));
-
-        // 2.Initialization
-        tree.Stm init = seq(
-            MOVE(TEMP(pos), CONST(0)),
-            LABEL(check),
-            CJUMP(tree.node.CJUMP.LT, TEMP(pos), CONST(size), body, done),
-            LABEL(body),
-            MOVE(MEM(BINOP(tree.node.BINOP.PLUS, TEMP(addr), TEMP(pos))),
-                 CONST(0)),
-            MOVE(TEMP(pos), BINOP(tree.node.BINOP.PLUS, TEMP(pos), CONST(4))),
-            JUMP(check),
-            LABEL(done)
-        );
+        tree.Stm init = MOVE(MEM(TEMP(addr)), NAME(vtableLabels.get(cls)));
 
         currentExpression = ESEQ(SEQ(getAddr, init), TEMP(addr));
     
@@ -720,7 +822,6 @@ public class Translate extends BaseAnalysis {
         String methodName = node.getName().toString();
         ClassS cls = symbolTable.getClass(className);
         Method method = cls.getMethodInHierarchy(methodName);
-        Frame callMethodFrame = frames.get(method);
  
         List<tree.Exp> actuals = new LinkedList<>();
         Iterator<Variable> formals = method.getParams().iterator();
@@ -750,8 +851,26 @@ public class Translate extends BaseAnalysis {
             return;
         }
         
-        actuals.add(0, instanceExp);
-        currentExpression = CALL(NAME(callMethodFrame.label), actuals);
+        Method target = devirtualize ? monomorphic(cls, methodName) : null;
+        if(target != null) {
+            directCalls++;
+            actuals.add(0, instanceExp);
+            currentExpression = CALL(NAME(frames.get(target).label), actuals);
+        } else {
+            // the receiver is evaluated once, before the arguments, and
+            // the method is found in its table at the slot of the name
+            virtualCalls++;
+            tree.Exp receiver = instanceExp;
+            if(!isLeaf(instanceExp)) {
+                Temp tReceiver = new Temp();
+                instanceExp = ESEQ(MOVE(TEMP(tReceiver), instanceExp), TEMP(tReceiver));
+                receiver = TEMP(tReceiver);
+            }
+            int slot = slot(vtables.get(cls), method.getId());
+            tree.Exp address = MEM(BINOP(BINOP.PLUS, MEM(instanceExp), CONST(slot * 4)));
+            actuals.add(0, receiver);
+            currentExpression = CALL(address, actuals);
+        }
     
         defaultOut(node);
     }